@@ -343,6 +343,11 @@ public final class GeocellUtils {
      * @return The geocell string containing the given point, of length resolution.
      */
     public static String compute(Point point, int resolution) {
+        // The packed computation is exact and doesn't allocate per character.
+        // The float version below loses precision past resolution 10.
+        if(resolution >= 1 && resolution <= MAX_PACKED_RESOLUTION) {
+            return packedToString(computePacked(point.getLat(), point.getLon(), resolution));
+        }
         float north = 90.0f;
         float south = -90.0f;
         float east = 180.0f;
@@ -520,6 +525,301 @@ public final class GeocellUtils {
 
 
 
+    /*
+     * Packed geocells.
+     *
+     * A geocell of up to MAX_PACKED_RESOLUTION characters can be packed into a
+     * long, which avoids creating strings and arrays when working with many
+     * cells. Each character of a geocell is a 4-bit index into the alphabet
+     * whose bits are (y1, x1, y0, x0), so the characters taken together are
+     * the bits of the cell's row (y) and column (x) in the grid of its
+     * resolution, interleaved. The cell's row and column can then be computed
+     * directly and adjacent cells found by adding to them.
+     *
+     * Layout, from the most significant bit:
+     *   8 unused bits | 4 bits per character, padded with 0 to 13 characters | 4 bits of resolution
+     *
+     * Packed cells sort in the same order as their strings.
+     */
+
+    /**
+     * The highest resolution that can be packed into a long.
+     */
+    public static final int MAX_PACKED_RESOLUTION = 13;
+
+    /**
+     * Returned by the packed methods when there is no such cell.
+     */
+    public static final long INVALID_PACKED = -1;
+
+    private static final long RESOLUTION_MASK = 0xf;
+
+    /**
+     * Computes the packed geocell containing the given point. This is the same
+     * cell as {@link #compute(Point, int)}, but without any allocation.
+     *
+     * @param lat
+     * @param lon
+     * @param resolution 1 to {@link #MAX_PACKED_RESOLUTION}
+     * @return the packed geocell
+     */
+    public static long computePacked(double lat, double lon, int resolution) {
+        final long cells = 1L << (2 * resolution); // per side
+        final long x = Math.max(0, Math.min((long)(cells * (lon + 180.0) / 360.0), cells - 1));
+        final long y = Math.max(0, Math.min((long)(cells * (lat + 90.0) / 180.0), cells - 1));
+        return fromXY(x, y, resolution);
+    }
+
+    /**
+     * @param x the column of the cell, counting from the west
+     * @param y the row of the cell, counting from the south
+     * @param resolution
+     * @return the packed geocell at the given position in the grid of the given resolution
+     */
+    public static long fromXY(long x, long y, int resolution) {
+        checkPackedResolution(resolution);
+        final long interleaved = spreadBits(y) << 1 | spreadBits(x);
+        return interleaved << (4 * (MAX_PACKED_RESOLUTION - resolution) + 4) | resolution;
+    }
+
+    /**
+     * @param packed
+     * @return the number of characters in the geocell
+     */
+    public static int packedResolution(long packed) {
+        return (int)(packed & RESOLUTION_MASK);
+    }
+
+    /**
+     * @param packed
+     * @return the column of the cell in the grid of its resolution, counting from the west
+     */
+    public static long packedX(long packed) {
+        return compactBits(interleaved(packed));
+    }
+
+    /**
+     * @param packed
+     * @return the row of the cell in the grid of its resolution, counting from the south
+     */
+    public static long packedY(long packed) {
+        return compactBits(interleaved(packed) >>> 1);
+    }
+
+    /**
+     * Calculates the packed geocell adjacent to the given cell. Like
+     * {@link #adjacent(String, int[])}, this wraps horizontally, but not
+     * vertically.
+     *
+     * @param packed
+     * @param dx -1 for west, 1 for east or 0
+     * @param dy -1 for south, 1 for north or 0
+     * @return the adjacent packed geocell or {@link #INVALID_PACKED} if there is none
+     */
+    public static long packedAdjacent(long packed, int dx, int dy) {
+        final int resolution = packedResolution(packed);
+        final long cells = 1L << (2 * resolution);
+        final long y = packedY(packed) + dy;
+        if (y < 0 || y >= cells) {
+            return INVALID_PACKED;
+        }
+        final long x = (packedX(packed) + dx + cells) & (cells - 1);
+        return fromXY(x, y, resolution);
+    }
+
+    /**
+     * @param packed
+     * @return the packed geocell containing the given one, or {@link #INVALID_PACKED} if it has
+     *          a resolution of 1
+     */
+    public static long packedParent(long packed) {
+        return packedTruncate(packed, packedResolution(packed) - 1);
+    }
+
+    /**
+     * @param packed
+     * @param resolution the new resolution. Must not be higher than that of the given cell.
+     * @return the packed geocell of the given resolution containing the given one, or
+     *          {@link #INVALID_PACKED} if the resolution is less than 1
+     */
+    public static long packedTruncate(long packed, int resolution) {
+        if (resolution < 1) {
+            return INVALID_PACKED;
+        }
+        final int shift = 4 * (MAX_PACKED_RESOLUTION - resolution) + 4;
+        return (packed >>> shift) << shift | resolution;
+    }
+
+    /**
+     * @param packed
+     * @param index the index of the child in the geocell alphabet, 0 to 15
+     * @return the given child of the packed geocell
+     */
+    public static long packedChild(long packed, int index) {
+        final int resolution = packedResolution(packed) + 1;
+        checkPackedResolution(resolution);
+        final int shift = 4 * (MAX_PACKED_RESOLUTION - resolution) + 4;
+        return (packed & ~RESOLUTION_MASK) | ((long)index << shift) | resolution;
+    }
+
+    /**
+     * Computes the boundaries of the given packed geocell without any allocation.
+     *
+     * @param packed
+     * @param box output: {north, east, south, west}
+     */
+    public static void packedBox(long packed, double[] box) {
+        final long cells = 1L << (2 * packedResolution(packed));
+        final double lonSpan = 360.0 / cells;
+        final double latSpan = 180.0 / cells;
+        final long x = packedX(packed);
+        final long y = packedY(packed);
+        box[0] = -90.0 + latSpan * (y + 1);
+        box[1] = -180.0 + lonSpan * (x + 1);
+        box[2] = -90.0 + latSpan * y;
+        box[3] = -180.0 + lonSpan * x;
+    }
+
+    /**
+     * @param packed
+     * @return the boundaries of the given packed geocell
+     */
+    public static BoundingBox computeBox(long packed) {
+        final double[] box = new double[4];
+        packedBox(packed, box);
+        return new BoundingBox(box[0], box[1], box[2], box[3]);
+    }
+
+    /**
+     * @param packed1
+     * @param packed2
+     * @param columnTest true to test whether the cells are in the same column, false for the same row
+     * @return whether the cells are collinear, compared at the lower resolution of the two. See
+     *          {@link #collinear(String, String, boolean)}.
+     */
+    public static boolean packedCollinear(long packed1, long packed2, boolean columnTest) {
+        final int resolution = Math.min(packedResolution(packed1), packedResolution(packed2));
+        final long cell1 = packedTruncate(packed1, resolution);
+        final long cell2 = packedTruncate(packed2, resolution);
+        return columnTest ? packedX(cell1) == packedX(cell2) : packedY(cell1) == packedY(cell2);
+    }
+
+    /**
+     * Counts the cells in the grid formed between the given cells without computing them.
+     *
+     * @param packedNE the northeast cell
+     * @param packedSW the southwest cell, of the same resolution
+     * @return the number of cells that {@link #packedInterpolate(long, long, long[])} will return
+     */
+    public static long packedInterpolationCount(long packedNE, long packedSW) {
+        final long rows = packedY(packedNE) - packedY(packedSW) + 1;
+        if (rows <= 0) {
+            return 0;
+        }
+        return rows * packedColumnCount(packedNE, packedSW);
+    }
+
+    /**
+     * Computes the cells in the grid formed between the given cells, like
+     * {@link #interpolate(String, String)}. The cells are written to the given
+     * array, row by row from the south and west to east within each row,
+     * so it can be reused between calls.
+     *
+     * @param packedNE the northeast cell
+     * @param packedSW the southwest cell, of the same resolution
+     * @param result output. Must have room for {@link #packedInterpolationCount(long, long)} cells.
+     * @return the number of cells written to the result
+     */
+    public static int packedInterpolate(long packedNE, long packedSW, long[] result) {
+        final int count = (int)packedInterpolationCount(packedNE, packedSW);
+        if (count > result.length) {
+            throw new IllegalArgumentException("need room for " + count + " cells");
+        }
+        final int resolution = packedResolution(packedSW);
+        final long cells = 1L << (2 * resolution);
+        final long columns = packedColumnCount(packedNE, packedSW);
+        final long x0 = packedX(packedSW);
+        final long y0 = packedY(packedSW);
+        final long y1 = packedY(packedNE);
+
+        int i = 0;
+        for (long y = y0; y <= y1; y++) {
+            for (long col = 0; col < columns; col++) {
+                result[i++] = fromXY((x0 + col) & (cells - 1), y, resolution);
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @param packed
+     * @return the geocell string of the packed geocell
+     */
+    public static String packedToString(long packed) {
+        final int resolution = packedResolution(packed);
+        final char[] cell = new char[resolution];
+        for (int i = 0; i < resolution; i++) {
+            cell[i] = GEOCELL_ALPHABET.charAt((int)(packed >>> (4 * (MAX_PACKED_RESOLUTION - i))) & 0xf);
+        }
+        return new String(cell);
+    }
+
+    /**
+     * @param cell a geocell string of up to {@link #MAX_PACKED_RESOLUTION} characters
+     * @return the packed geocell
+     */
+    public static long packedFromString(String cell) {
+        final int resolution = cell.length();
+        checkPackedResolution(resolution);
+        long packed = 0;
+        for (int i = 0; i < resolution; i++) {
+            final int index = GEOCELL_ALPHABET.indexOf(Character.toLowerCase(cell.charAt(i)));
+            if (index < 0) {
+                throw new IllegalArgumentException("invalid geocell " + cell);
+            }
+            packed |= (long)index << (4 * (MAX_PACKED_RESOLUTION - i));
+        }
+        return packed | resolution;
+    }
+
+    private static long packedColumnCount(long packedNE, long packedSW) {
+        final long cells = 1L << (2 * packedResolution(packedSW));
+        // the grid may cross the antimeridian
+        return ((packedX(packedNE) - packedX(packedSW) + cells) & (cells - 1)) + 1;
+    }
+
+    private static long interleaved(long packed) {
+        return packed >>> (4 * (MAX_PACKED_RESOLUTION - packedResolution(packed)) + 4);
+    }
+
+    private static void checkPackedResolution(int resolution) {
+        if (resolution < 1 || resolution > MAX_PACKED_RESOLUTION) {
+            throw new IllegalArgumentException("resolution must be from 1 to " + MAX_PACKED_RESOLUTION);
+        }
+    }
+
+    // spreads the low 32 bits so that there's a 0 bit between each of them
+    private static long spreadBits(long v) {
+        v &= 0xffffffffL;
+        v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+        v = (v | (v << 8)) & 0x00ff00ff00ff00ffL;
+        v = (v | (v << 4)) & 0x0f0f0f0f0f0f0f0fL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    // the reverse of spreadBits(), ignoring the odd bits
+    private static long compactBits(long v) {
+        v &= 0x5555555555555555L;
+        v = (v | (v >>> 1)) & 0x3333333333333333L;
+        v = (v | (v >>> 2)) & 0x0f0f0f0f0f0f0f0fL;
+        v = (v | (v >>> 4)) & 0x00ff00ff00ff00ffL;
+        v = (v | (v >>> 8)) & 0x0000ffff0000ffffL;
+        v = (v | (v >>> 16)) & 0x00000000ffffffffL;
+        return v;
+    }
+
 	private static Field getField(Class<?> type, Class<? extends Annotation> annotation) {
 	    for(final Field field : type.getDeclaredFields()) {
     		if(field.isAnnotationPresent(annotation)) {
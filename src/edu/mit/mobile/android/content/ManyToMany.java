@@ -123,6 +123,20 @@ public class ManyToMany {
 					+ ","
 					+ ManyToManyColumns.FROM_ID 		+ " INTEGER"
 					+ ");");
+			createJoinTableIndexes(db);
+		}
+
+		/**
+		 * Indexes the join table in both directions: the children of an item
+		 * and the parents of an item. This is done by
+		 * {@link #createJoinTable(SQLiteDatabase)} and only needs to be called
+		 * to add the indexes to an existing table.
+		 */
+		public void createJoinTableIndexes(SQLiteDatabase db){
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + mJoinTable + "_" + ManyToManyColumns.FROM_ID
+					+ " ON " + mJoinTable + " (" + ManyToManyColumns.FROM_ID + "," + ManyToManyColumns.TO_ID + ")");
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + mJoinTable + "_" + ManyToManyColumns.TO_ID
+					+ " ON " + mJoinTable + " (" + ManyToManyColumns.TO_ID + ")");
 		}
 
 		/**
@@ -0,0 +1,218 @@
+package edu.mit.mobile.android.json;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads a JSON array of JSON objects from a stream, one object at a time.
+ *
+ * Only the text of the current object is ever held in memory, so very large
+ * arrays can be processed without first loading the whole document into a
+ * String and then a {@link org.json.JSONArray}. Each object is handed to
+ * {@link JSONObject#JSONObject(String)} for the actual parsing.
+ *
+ * <pre>
+ * final JSONArrayStreamReader items = new JSONArrayStreamReader(is);
+ * try {
+ * 	while (items.hasNext()) {
+ * 		final JSONObject jo = items.next();
+ * 		...
+ * 	}
+ * } finally {
+ * 	items.close();
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class JSONArrayStreamReader {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Reader mReader;
+
+	private final StringBuilder mItem = new StringBuilder(1024);
+
+	private boolean mStarted = false;
+	private boolean mFinished = false;
+
+	// a single character of lookahead
+	private int mPeek = -2;
+
+	private int mItemCount = 0;
+
+	/**
+	 * @param in
+	 *            a stream of UTF-8 encoded JSON, whose top level is an array
+	 *            of objects.
+	 * @throws IOException
+	 */
+	public JSONArrayStreamReader(InputStream in) throws IOException {
+		this(new InputStreamReader(in, "UTF-8"));
+	}
+
+	/**
+	 * @param reader
+	 *            a reader whose top level value is an array of objects.
+	 */
+	public JSONArrayStreamReader(Reader reader) {
+		mReader = reader instanceof BufferedReader ? reader : new BufferedReader(reader,
+				BUFFER_SIZE);
+	}
+
+	/**
+	 * @return true if there is another object in the array.
+	 * @throws IOException
+	 * @throws JSONException
+	 *             if the stream isn't an array
+	 */
+	public boolean hasNext() throws IOException, JSONException {
+		if (mFinished) {
+			return false;
+		}
+		if (!mStarted) {
+			if (nextNonWhitespace() != '[') {
+				throw new JSONException("expecting a JSON array");
+			}
+			mStarted = true;
+			if (peekNonWhitespace() == ']') {
+				read();
+				mFinished = true;
+				return false;
+			}
+			return true;
+		}
+
+		// between items
+		return peekNonWhitespace() != ']';
+	}
+
+	/**
+	 * @return the next object in the array
+	 * @throws IOException
+	 * @throws JSONException
+	 *             if there are no more items or the stream is malformed
+	 */
+	public JSONObject next() throws IOException, JSONException {
+		if (!hasNext()) {
+			throw new JSONException("no more items in the array");
+		}
+
+		mItem.setLength(0);
+
+		int c = nextNonWhitespace();
+		if (c != '{') {
+			throw new JSONException("expecting a JSON object at item " + mItemCount);
+		}
+		mItem.append((char) c);
+
+		int depth = 1;
+		boolean inString = false;
+
+		while (depth > 0) {
+			c = read();
+			if (c == -1) {
+				throw new JSONException("unexpected end of stream in item " + mItemCount);
+			}
+			mItem.append((char) c);
+
+			if (inString) {
+				if (c == '\\') {
+					final int escaped = read();
+					if (escaped == -1) {
+						throw new JSONException("unexpected end of stream in item " + mItemCount);
+					}
+					mItem.append((char) escaped);
+
+				} else if (c == '"') {
+					inString = false;
+				}
+				continue;
+			}
+
+			switch (c) {
+				case '"':
+					inString = true;
+					break;
+
+				case '{':
+				case '[':
+					depth++;
+					break;
+
+				case '}':
+				case ']':
+					depth--;
+					break;
+			}
+		}
+
+		// consume the delimiter so the next call starts on the next item
+		c = nextNonWhitespace();
+		if (c == ']') {
+			mFinished = true;
+		} else if (c != ',') {
+			throw new JSONException("expecting ',' or ']' after item " + mItemCount);
+		}
+
+		mItemCount++;
+
+		return new JSONObject(mItem.toString());
+	}
+
+	/**
+	 * @return the number of items that have been read so far.
+	 */
+	public int getItemCount() {
+		return mItemCount;
+	}
+
+	public void close() throws IOException {
+		mReader.close();
+	}
+
+	private int read() throws IOException {
+		if (mPeek != -2) {
+			final int c = mPeek;
+			mPeek = -2;
+			return c;
+		}
+		return mReader.read();
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = read();
+		} while (c != -1 && Character.isWhitespace(c));
+		return c;
+	}
+
+	private int peekNonWhitespace() throws IOException {
+		mPeek = nextNonWhitespace();
+		return mPeek;
+	}
+}
@@ -19,7 +19,6 @@ package edu.mit.mobile.android.locast.data;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.json.JSONArray;
@@ -34,8 +33,8 @@ import android.net.Uri;
 
 import com.google.android.maps.GeoPoint;
 
+import edu.mit.mobile.android.locast.maps.PathSimplifier;
 import edu.mit.mobile.android.locast.net.NetworkProtocolException;
-import edu.mit.mobile.android.utils.ListUtils;
 
 public class Itinerary extends TaggableItem implements Favoritable.Columns {
 	public final static String PATH = "itineraries";
@@ -47,6 +46,7 @@ public class Itinerary extends TaggableItem implements Favoritable.Columns {
 
 	public static final String
 		_PATH = "path",
+		_PATH_LEVELS = "path_levels",
 		_TITLE = "title",
 		_DESCRIPTION = "description",
 		_CASTS_URI = "casts",
@@ -64,6 +64,7 @@ public class Itinerary extends TaggableItem implements Favoritable.Columns {
 		_CREATED_DATE,
 		_MODIFIED_DATE,
 		_PATH,
+		_PATH_LEVELS,
 		_THUMBNAIL,
 		_DRAFT,
 	};
@@ -90,35 +91,75 @@ public class Itinerary extends TaggableItem implements Favoritable.Columns {
 		return SYNC_MAP;
 	}
 
+	/**
+	 * @param c
+	 * @return the {@link #_PATH}, encoded with {@link PolylineCodec}, or null
+	 *         if there isn't one
+	 */
+	public static byte[] getEncodedPath(Cursor c){
+		return c.getBlob(c.getColumnIndex(_PATH));
+	}
+
+	/**
+	 * @param c
+	 * @return the points of the path
+	 */
 	public static List<GeoPoint> getPath(Cursor c){
-		final ArrayList<GeoPoint> path = new ArrayList<GeoPoint>();
-		final String encodedPath = c.getString(c.getColumnIndex(_PATH));
-		if (encodedPath == null){
-			return new ArrayList<GeoPoint>();
+		final byte[] encodedPath = getEncodedPath(c);
+		final int count = PolylineCodec.getCount(encodedPath);
+		final int[] latE6 = new int[count];
+		final int[] lonE6 = new int[count];
+		PolylineCodec.decode(encodedPath, latE6, lonE6);
+
+		final ArrayList<GeoPoint> path = new ArrayList<GeoPoint>(count);
+		for (int i = 0; i < count; i++){
+			path.add(new GeoPoint(latE6[i], lonE6[i]));
 		}
+		return path;
+	}
 
-		int prevI = 0;
-
-		int i = 0;
-		while(i != -1){
-			i = encodedPath.indexOf(',', i+1);
-			// handle the case for empty paths
-			if (i == -1){
-				break;
-			}
-			final int lat = Integer.parseInt(encodedPath.substring(prevI, i));
-			prevI = i+1;
-			i = encodedPath.indexOf(',', prevI);
-
-			int end = i;
-			if (i == -1){
-				end = encodedPath.length();
-			}
-			final int lon = Integer.parseInt(encodedPath.substring(prevI, end));
-			path.add(new GeoPoint(lat, lon));
-			prevI = i+1;
+	/**
+	 * @param c
+	 * @return the minimum zoom level of each point of the path, as computed by
+	 *         {@link PathSimplifier}, or null if they haven't been computed
+	 */
+	public static int[] getPathLevels(Cursor c){
+		final int col = c.getColumnIndex(_PATH_LEVELS);
+		if (col == -1 || c.isNull(col)){
+			return null;
 		}
-		return path;
+		final byte[] encodedLevels = c.getBlob(col);
+		final int[] levels = new int[encodedLevels.length];
+		for (int i = 0; i < levels.length; i++){
+			levels[i] = encodedLevels[i];
+		}
+		return levels;
+	}
+
+	/**
+	 * Computes the {@link #_PATH_LEVELS} of an encoded {@link #_PATH}.
+	 *
+	 * @param encodedPath
+	 * @return the encoded levels
+	 */
+	public static byte[] computePathLevels(byte[] encodedPath){
+		final int count = PolylineCodec.getCount(encodedPath);
+		final int[] latE6 = new int[count];
+		final int[] lonE6 = new int[count];
+		PolylineCodec.decode(encodedPath, latE6, lonE6);
+		return encodePathLevels(PathSimplifier.getMinZoomLevels(latE6, lonE6, count));
+	}
+
+	/**
+	 * @param levels
+	 * @return the levels, one byte per point. They all fit.
+	 */
+	private static byte[] encodePathLevels(int[] levels){
+		final byte[] encoded = new byte[levels.length];
+		for (int i = 0; i < levels.length; i++){
+			encoded[i] = (byte) levels[i];
+		}
+		return encoded;
 	}
 
 	public static final ItemSyncMap SYNC_MAP = new ItemSyncMap();
@@ -157,19 +198,20 @@ public class Itinerary extends TaggableItem implements Favoritable.Columns {
 					if (jsonPath == null){
 						return null;
 					}
-					final String[] path = new String[jsonPath.length() * 2];
-
-					// TODO loads it all into memory. May make more sense to use a StringBuilder
 					final int len = jsonPath.length();
+					final int[] latE6 = new int[len];
+					final int[] lonE6 = new int[len];
 					for (int i = 0; i < len; i++){
 						final JSONArray point = jsonPath.getJSONArray(i);
 						// stored in [lon,lat] form. Internally, we use lat,lon.
-						path[i*2] = String.valueOf((long)(point.getDouble(1) * 1E6));
-						path[i*2+1] = String.valueOf((long)(point.getDouble(0) * 1E6));
+						latE6[i] = (int)(point.getDouble(1) * 1E6);
+						lonE6[i] = (int)(point.getDouble(0) * 1E6);
 					}
 					final ContentValues cv = new ContentValues();
 
-					cv.put(lProp, ListUtils.join(Arrays.asList(path), ","));
+					cv.put(lProp, PolylineCodec.encode(latE6, lonE6, len));
+					// simplify it once here, rather than every time it's drawn
+					cv.put(_PATH_LEVELS, encodePathLevels(PathSimplifier.getMinZoomLevels(latE6, lonE6, len)));
 
 					return cv;
 
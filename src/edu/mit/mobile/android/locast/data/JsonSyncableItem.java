@@ -41,6 +41,7 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import edu.mit.mobile.android.locast.net.NetworkClient;
 import edu.mit.mobile.android.locast.net.NetworkProtocolException;
+import edu.mit.mobile.android.locast.sync.ChildSyncCoordinator;
 import edu.mit.mobile.android.locast.sync.LocastSyncService;
 import edu.mit.mobile.android.utils.ListUtils;
 
@@ -559,7 +560,7 @@ public abstract class JsonSyncableItem implements BaseColumns {
         	case SyncFieldMap.DATE:
 
         		retval =
-					NetworkClient.dateFormat.format(new Date(c.getLong(columnIndex)));
+					NetworkClient.formatDate(new Date(c.getLong(columnIndex)));
 			break;
 
         	case SyncFieldMap.DURATION:{
@@ -653,7 +654,15 @@ public abstract class JsonSyncableItem implements BaseColumns {
 			final Uri childDir = mRelationship.getChildDirUri(uri);
 			try {
 				final String childPubUri = item.getString(remoteKey);
-				// TODO optimize so it doesn't need to create a whole new instance
+
+				// if this is being called during a sync, the child can be
+				// fetched in the same pass.
+				final ChildSyncCoordinator coordinator = ChildSyncCoordinator.getCurrent();
+				if (coordinator != null) {
+					coordinator.enqueue(childPubUri, childDir);
+					return;
+				}
+
 				final NetworkClient nc = NetworkClient.getInstance(context);
 				final Uri serverUri = nc.getFullUri(childPubUri);
 
@@ -16,6 +16,9 @@ package edu.mit.mobile.android.locast.data;
  * along with this program; if not, write to the Free Software
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
  */
+import java.util.ArrayList;
+import java.util.List;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -27,7 +30,9 @@ import android.location.Location;
 import android.net.Uri;
 
 import com.beoui.geocell.GeocellUtils;
-import com.beoui.geocell.model.Point;
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.CostFunction;
+import com.beoui.geocell.model.DefaultCostFunction;
 import com.google.android.maps.GeoPoint;
 
 import edu.mit.mobile.android.locast.data.JsonSyncableItem.SyncCustom;
@@ -53,12 +58,243 @@ public abstract class Locatable {
 
 	};
 
+	/**
+	 * Items within a distance of a point. The value is "lon,lat,distance",
+	 * with the distance in meters. Locally, the circle is cut off at the
+	 * antimeridian; items on the other side of it aren't found.
+	 */
 	public static final String
 		SERVER_QUERY_PARAMETER = "dist";
 
+	/**
+	 * Limits a distance search to the given number of nearest items. This is
+	 * only used locally.
+	 */
+	public static final String
+		NEAREST_QUERY_PARAMETER = "nearest";
+
 	public static final String
 		SELECTION_LAT_LON = "abs("+Columns._LATITUDE + " - ?) < 1 and abs("+Columns._LONGITUDE + " - ?) < 1";
 
+	/**
+	 * Items within a bounding box. The value is "north,east,south,west", in
+	 * degrees. If west is greater than east, the box crosses the
+	 * antimeridian. This is only used locally.
+	 */
+	public static final String
+		BBOX_QUERY_PARAMETER = "bbox";
+
+	/**
+	 * The resolution of the geocell that is stored in {@link Columns#_GEOCELL}.
+	 * Every coarser cell containing the item is a prefix of it, so a single
+	 * index on the column can be used to search at any resolution. Must not be
+	 * higher than {@link GeocellUtils#MAX_PACKED_RESOLUTION}.
+	 */
+	public static final int GEOCELL_RESOLUTION = 13;
+
+	/**
+	 * Bounding box searches that would need more than this many cells at a
+	 * given resolution don't consider that resolution.
+	 */
+	private static final int MAX_FEASIBLE_BBOX_SEARCH_CELLS = 300;
+
+	/**
+	 * The cost function used to pick cells when none is given. It allows up to
+	 * 16 cells, each of which is an index range.
+	 */
+	public static final CostFunction DEFAULT_COST_FUNCTION = new DefaultCostFunction();
+
+	// meters
+	private static final double EARTH_RADIUS = 6378135;
+
+	// the upper bound of a prefix range. It sorts after every character in the geocell alphabet.
+	private static final String GEOCELL_RANGE_END = "g";
+
+	/**
+	 * Computes a set of geocells that covers a circle around the given point,
+	 * using {@link #getBoundingBoxCells(BoundingBox, CostFunction)} and the
+	 * {@link #DEFAULT_COST_FUNCTION}.
+	 *
+	 * @param lat
+	 * @param lon
+	 * @param distance
+	 *            the radius of the circle, in meters
+	 * @return geocells of the same resolution. Each of them is a prefix of the
+	 *         {@link Columns#_GEOCELL} of the items inside it.
+	 */
+	public static List<String> getGeocellCover(double lat, double lon, double distance){
+		final double dLat = Math.toDegrees(distance / EARTH_RADIUS);
+		final double dLon = dLat / Math.max(Math.cos(Math.toRadians(lat)), 0.01);
+
+		return getBoundingBoxCells(new BoundingBox(
+				Math.min(lat + dLat, 90), Math.min(lon + dLon, 180),
+				Math.max(lat - dLat, -90), Math.max(lon - dLon, -180)),
+				DEFAULT_COST_FUNCTION);
+	}
+
+	/**
+	 * Picks the resolution whose cover of the given box has the lowest cost
+	 * and returns that cover. This starts at the finest resolution that
+	 * contains the whole box in one cell and tries finer resolutions until the
+	 * cost goes up, as in geomodel's best_bbox_search_cells().
+	 *
+	 * A box that crosses the antimeridian (its west is greater than its east)
+	 * is covered as two boxes, one on each side, each at its own resolution.
+	 *
+	 * @param bbox
+	 * @param costFunction
+	 *            the cost of searching a given number of cells of a given
+	 *            resolution
+	 * @return geocells of the same resolution, unless the box crosses the
+	 *         antimeridian. Each of them is a prefix of the
+	 *         {@link Columns#_GEOCELL} of the items inside it.
+	 */
+	public static List<String> getBoundingBoxCells(BoundingBox bbox, CostFunction costFunction){
+		if (bbox.getWest() > bbox.getEast()){
+			final List<String> cells = getBoundingBoxCells(new BoundingBox(bbox.getNorth(), 180, bbox.getSouth(), bbox.getWest()), costFunction);
+			cells.addAll(getBoundingBoxCells(new BoundingBox(bbox.getNorth(), bbox.getEast(), bbox.getSouth(), -180), costFunction));
+			return cells;
+		}
+
+		// packed cells are used so that only the resulting cells are allocated
+		final long cellNE = GeocellUtils.computePacked(bbox.getNorth(), bbox.getEast(), GEOCELL_RESOLUTION);
+		final long cellSW = GeocellUtils.computePacked(bbox.getSouth(), bbox.getWest(), GEOCELL_RESOLUTION);
+
+		int minResolution = 1;
+		while (minResolution < GEOCELL_RESOLUTION
+				&& GeocellUtils.packedTruncate(cellNE, minResolution + 1) == GeocellUtils.packedTruncate(cellSW, minResolution + 1)){
+			minResolution++;
+		}
+
+		double minCost = Double.MAX_VALUE;
+		int minCostResolution = minResolution;
+
+		for (int resolution = minResolution; resolution <= GEOCELL_RESOLUTION; resolution++){
+			final long count = GeocellUtils.packedInterpolationCount(
+					GeocellUtils.packedTruncate(cellNE, resolution), GeocellUtils.packedTruncate(cellSW, resolution));
+
+			if (count > MAX_FEASIBLE_BBOX_SEARCH_CELLS){
+				continue;
+			}
+
+			final double cost = costFunction.defaultCostFunction((int) count, resolution);
+			if (cost <= minCost){
+				minCost = cost;
+				minCostResolution = resolution;
+			}else{
+				break;
+			}
+		}
+
+		final long curNE = GeocellUtils.packedTruncate(cellNE, minCostResolution);
+		final long curSW = GeocellUtils.packedTruncate(cellSW, minCostResolution);
+		final long[] packed = new long[(int) GeocellUtils.packedInterpolationCount(curNE, curSW)];
+		final int count = GeocellUtils.packedInterpolate(curNE, curSW, packed);
+
+		final List<String> cells = new ArrayList<String>(count);
+		for (int k = 0; k < count; k++){
+			cells.add(GeocellUtils.packedToString(packed[k]));
+		}
+		return cells;
+	}
+
+	/**
+	 * Creates a selection that matches items within the given bounding box.
+	 * The candidates are found using the geocell index; the exact bounds
+	 * are then checked.
+	 *
+	 * @param bbox
+	 * @param costFunction
+	 *            see {@link #getBoundingBoxCells(BoundingBox, CostFunction)}
+	 * @param selectionArgs
+	 *            output. The arguments of the selection are added to it.
+	 * @return the selection
+	 */
+	public static String getBoundingBoxSelection(BoundingBox bbox, CostFunction costFunction, List<String> selectionArgs){
+		final List<String> cells = getBoundingBoxCells(bbox, costFunction);
+		for (final String arg : getGeocellSelectionArgs(cells)){
+			selectionArgs.add(arg);
+		}
+		final String lonSelection;
+		if (bbox.getWest() > bbox.getEast()){
+			// crosses the antimeridian
+			lonSelection = "(" + Columns._LONGITUDE + " >= " + bbox.getWest() + " OR " + Columns._LONGITUDE + " <= " + bbox.getEast() + ")";
+		}else{
+			lonSelection = Columns._LONGITUDE + " BETWEEN " + bbox.getWest() + " AND " + bbox.getEast();
+		}
+		return getGeocellSelection(cells)
+			+ " AND " + Columns._LATITUDE + " BETWEEN " + bbox.getSouth() + " AND " + bbox.getNorth()
+			+ " AND " + lonSelection;
+	}
+
+	/**
+	 * Creates a selection that matches items whose {@link Columns#_GEOCELL}
+	 * starts with any of the given cells. Each cell is a range on the column,
+	 * so an index on it can be used.
+	 *
+	 * @param cells
+	 *            as returned by {@link #getGeocellCover(double, double, double)}
+	 * @return the selection. Its arguments are made by
+	 *         {@link #getGeocellSelectionArgs(List)}
+	 */
+	public static String getGeocellSelection(List<String> cells){
+		final StringBuilder sb = new StringBuilder();
+		sb.append('(');
+		for (int i = 0; i < cells.size(); i++){
+			if (i > 0){
+				sb.append(" OR ");
+			}
+			sb.append('(');
+			sb.append(Columns._GEOCELL);
+			sb.append(" >= ? AND ");
+			sb.append(Columns._GEOCELL);
+			sb.append(" < ?)");
+		}
+		sb.append(')');
+		return sb.toString();
+	}
+
+	/**
+	 * @param cells
+	 * @return the arguments for {@link #getGeocellSelection(List)}
+	 */
+	public static String[] getGeocellSelectionArgs(List<String> cells){
+		final String[] args = new String[cells.size() * 2];
+		int i = 0;
+		for (final String cell : cells){
+			args[i++] = cell;
+			args[i++] = cell + GEOCELL_RANGE_END;
+		}
+		return args;
+	}
+
+	/**
+	 * Creates an expression that is proportional to the square of the
+	 * distance between an item and the given point. It uses the equirectangular
+	 * approximation, as SQLite has no trigonometric functions. At the distances
+	 * of a nearby search, this is accurate to well within a percent.
+	 *
+	 * @param lat
+	 * @param lon
+	 * @return the expression. It uses no arguments.
+	 */
+	public static String getDistanceExpression(double lat, double lon){
+		final double lonScale = Math.cos(Math.toRadians(lat));
+		return "(("+Columns._LATITUDE+" - "+lat+") * ("+Columns._LATITUDE+" - "+lat+") + "
+			+ "("+Columns._LONGITUDE+" - "+lon+") * ("+Columns._LONGITUDE+" - "+lon+") * "+(lonScale * lonScale)+")";
+	}
+
+	/**
+	 * @param distance
+	 *            in meters
+	 * @return the value of {@link #getDistanceExpression(double, double)} at
+	 *         the given distance
+	 */
+	public static double toDistanceExpressionValue(double distance){
+		final double degrees = Math.toDegrees(distance / EARTH_RADIUS);
+		return degrees * degrees;
+	}
+
 	public static Uri toGeoUri(Cursor c){
 		if (c.isNull(c.getColumnIndex(Columns._LATITUDE)) || c.isNull(c.getColumnIndex(Columns._LONGITUDE))) {
 			return null;
@@ -78,6 +314,30 @@ public abstract class Locatable {
 		return contentUri.buildUpon().appendQueryParameter(SERVER_QUERY_PARAMETER, location.getLongitude()+","+location.getLatitude()+","+distance).build();
 	}
 
+	/**
+	 * Makes a URI that queries the items within the given bounding box.
+	 *
+	 * @param contentUri the Locatable content URI to build upon. Must be a dir, not an item.
+	 * @param bbox
+	 * @return
+	 */
+	public static Uri toBoundingBoxSearchUri(Uri contentUri, BoundingBox bbox){
+		return contentUri.buildUpon().appendQueryParameter(BBOX_QUERY_PARAMETER, bbox.getNorth()+","+bbox.getEast()+","+bbox.getSouth()+","+bbox.getWest()).build();
+	}
+
+	/**
+	 * Makes a URI that queries the items nearest to the given location.
+	 *
+	 * @param contentUri the Locatable content URI to build upon. Must be a dir, not an item.
+	 * @param location center point
+	 * @param count the maximum number of items
+	 * @param maxDistance the maximum distance in meters
+	 * @return
+	 */
+	public static Uri toNearestSearchUri(Uri contentUri, Location location, int count, double maxDistance){
+		return toDistanceSearchUri(contentUri, location, maxDistance).buildUpon().appendQueryParameter(NEAREST_QUERY_PARAMETER, String.valueOf(count)).build();
+	}
+
 	/**
 	 * Get the latitude/longitude from the row currently selected in the cursor. Requires Locatable.Columns._LATITUDE and Locatable.Columns._LONGITUDE to be selected.
 	 * @param c
@@ -125,14 +385,17 @@ public abstract class Locatable {
 	}
 
 	/**
-	 * Adds the appropriate {@link Columns#_LATITUDE}, {@link Columns#_LONGITUDE} columns to the given {@link ContentValues} for the given location.
+	 * Adds the appropriate {@link Columns#_LATITUDE}, {@link Columns#_LONGITUDE} and {@link Columns#_GEOCELL} columns to the given {@link ContentValues} for the given location.
 	 * @param cv
 	 * @param location
 	 * @return the same {@link ContentValues} that was passed in.
 	 */
 	public static ContentValues toContentValues(ContentValues cv, GeoPoint location){
-		cv.put(Columns._LATITUDE, location.getLatitudeE6() / 1E6d);
-		cv.put(Columns._LONGITUDE, location.getLongitudeE6() / 1E6d);
+		final double lat = location.getLatitudeE6() / 1E6d;
+		final double lon = location.getLongitudeE6() / 1E6d;
+		cv.put(Columns._LATITUDE, lat);
+		cv.put(Columns._LONGITUDE, lon);
+		cv.put(Columns._GEOCELL, GeocellUtils.packedToString(GeocellUtils.computePacked(lat, lon, GEOCELL_RESOLUTION)));
 
 		return cv;
 	}
@@ -168,7 +431,7 @@ public abstract class Locatable {
 				final double lat = ja.getDouble(1);
 				cv.put(Columns._LONGITUDE, lon);
 				cv.put(Columns._LATITUDE, lat);
-				cv.put(Columns._GEOCELL, GeocellUtils.compute(new Point(lat, lon), 6));
+				cv.put(Columns._GEOCELL, GeocellUtils.packedToString(GeocellUtils.computePacked(lat, lon, GEOCELL_RESOLUTION)));
 				return cv;
 			}
 		});
@@ -0,0 +1,114 @@
+package edu.mit.mobile.android.locast.data;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import android.app.IntentService;
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Performs database maintenance in the background: returning free pages to
+ * the filesystem using {@code PRAGMA incremental_vacuum} and refreshing the
+ * query planner's statistics using {@code ANALYZE}.
+ *
+ * Maintenance is requested by {@link MediaProvider} when the number of free
+ * pages crosses a threshold and by {@link PowerConnectedReceiver} when the
+ * device is plugged in, which is a good sign that it isn't being used. The
+ * space reclaimed by each pass is logged.
+ *
+ * The first pass also switches the database to incremental auto_vacuum, which
+ * takes a full VACUUM.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class MaintenanceService extends IntentService {
+	private static final String TAG = MaintenanceService.class.getSimpleName();
+
+	public static final String ACTION_MAINTAIN = "edu.mit.mobile.android.locast.ACTION_MAINTAIN";
+
+	/**
+	 * A boolean extra. If true, the statistics are refreshed as well. This is
+	 * still only done once every {@link #ANALYZE_INTERVAL}.
+	 */
+	public static final String EXTRA_ANALYZE = "edu.mit.mobile.android.locast.EXTRA_ANALYZE";
+
+	private static final long ANALYZE_INTERVAL = 24 * 60 * 60 * 1000; // ms
+
+	private static final String
+		PREFS_NAME = "maintenance",
+		PREF_LAST_ANALYZE = "last_analyze";
+
+	public MaintenanceService() {
+		super(TAG);
+	}
+
+	/**
+	 * Requests a maintenance pass.
+	 *
+	 * @param context
+	 * @param analyze
+	 *            if true, the statistics are refreshed too (at most once a
+	 *            day)
+	 */
+	public static void start(Context context, boolean analyze) {
+		context.startService(new Intent(ACTION_MAINTAIN).setClass(context, MaintenanceService.class)
+				.putExtra(EXTRA_ANALYZE, analyze));
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+		final long now = System.currentTimeMillis();
+
+		final boolean analyze = intent.getBooleanExtra(EXTRA_ANALYZE, false)
+				&& (now - prefs.getLong(PREF_LAST_ANALYZE, 0)) > ANALYZE_INTERVAL;
+
+		final ContentValues cv = new ContentValues();
+		cv.put(MediaProvider.CV_MAINTENANCE_ANALYZE, analyze);
+
+		final long start = System.nanoTime();
+		final int reclaimed = getContentResolver().update(MediaProvider.MAINTENANCE_URI, cv, null,
+				null);
+
+		if (analyze) {
+			prefs.edit().putLong(PREF_LAST_ANALYZE, now).commit();
+		}
+
+		Log.i(TAG, "maintenance reclaimed " + reclaimed + " bytes" + (analyze ? " and analyzed" : "")
+				+ " in " + ((System.nanoTime() - start) / 1000000) + "ms");
+	}
+
+	/**
+	 * Starts maintenance, including refreshing the statistics, when the device
+	 * is plugged in.
+	 *
+	 */
+	public static class PowerConnectedReceiver extends BroadcastReceiver {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())) {
+				start(context, true);
+			}
+		}
+	}
+}
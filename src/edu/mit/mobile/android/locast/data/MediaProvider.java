@@ -17,8 +17,10 @@ package edu.mit.mobile.android.locast.data;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
  */
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -28,30 +30,47 @@ import junit.framework.Assert;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.beoui.geocell.GeocellUtils;
+import com.beoui.geocell.model.BoundingBox;
+import com.beoui.geocell.model.GeocellQuery;
+import com.beoui.geocell.model.Point;
+import com.beoui.geocell.model.Tuple;
+
 import edu.mit.mobile.android.content.DBHelper;
 import edu.mit.mobile.android.content.DBHelperMapper;
 import edu.mit.mobile.android.content.GenericDBHelper;
 import edu.mit.mobile.android.content.ManyToMany;
 import edu.mit.mobile.android.content.ProviderUtils;
+import edu.mit.mobile.android.locast.Constants;
 import edu.mit.mobile.android.locast.accounts.AuthenticationService;
 import edu.mit.mobile.android.locast.accounts.Authenticator;
 import edu.mit.mobile.android.locast.sync.LocastSyncService;
+import edu.mit.mobile.android.locast.ver2.R;
 import edu.mit.mobile.android.utils.ListUtils;
 
 public class MediaProvider extends ContentProvider {
-	@SuppressWarnings("unused")
 	private final static String TAG = MediaProvider.class.getSimpleName();
+	private static final boolean DEBUG = Constants.DEBUG;
 	public final static String NAMESPACE = "edu.mit.mobile.android.locast.ver2";
 	public final static String AUTHORITY = NAMESPACE + ".provider";
 
@@ -60,9 +79,21 @@ public class MediaProvider extends ContentProvider {
 		CAST_TABLE_NAME       = "casts",
 		CASTMEDIA_TABLE_NAME = "castmedia", // casts with multiple media objects
 		COMMENT_TABLE_NAME    = "comments",
-		TAG_TABLE_NAME        = "tags",
+		TAG_TABLE_NAME        = "tags", // a view of TAG_REFS_TABLE_NAME with the tag names
+		TAG_NAMES_TABLE_NAME  = "tag_names",
+		TAG_REFS_TABLE_NAME   = "tag_refs",
 		ITINERARY_TABLE_NAME  = "itineraries",
-		EVENT_TABLE_NAME      = "events";
+		EVENT_TABLE_NAME      = "events",
+		SYNC_METRICS_TABLE_NAME = "sync_metrics";
+
+	// the tables of items that can be tagged. Their tags' ref_class is the table name.
+	private static final String[] TAGGABLE_TABLES = {CAST_TABLE_NAME, EVENT_TABLE_NAME, ITINERARY_TABLE_NAME};
+
+	// the full-text index of each taggable table is this table with the suffix
+	private static final String SEARCH_TABLE_SUFFIX = "_search";
+	// these are the same in all the taggable tables
+	private static final String[] SEARCH_COLUMNS = {Cast._TITLE, Cast._DESCRIPTION, Cast._AUTHOR};
+	private static final String SEARCH_TAGS_COLUMN = Tag.PATH;
 
 	public final static String
 		TYPE_CAST_ITEM = "vnd.android.cursor.item/vnd."+NAMESPACE+".casts",
@@ -80,7 +111,9 @@ public class MediaProvider extends ContentProvider {
 		TYPE_ITINERARY_ITEM = "vnd.android.cursor.item/vnd."+NAMESPACE+".itineraries",
 
 		TYPE_EVENT_DIR  =  "vnd.android.cursor.dir/vnd."+NAMESPACE+"."+EVENT_TABLE_NAME,
-		TYPE_EVENT_ITEM = "vnd.android.cursor.item/vnd."+NAMESPACE+"."+EVENT_TABLE_NAME
+		TYPE_EVENT_ITEM = "vnd.android.cursor.item/vnd."+NAMESPACE+"."+EVENT_TABLE_NAME,
+
+		TYPE_SYNC_METRIC_DIR = "vnd.android.cursor.dir/vnd."+NAMESPACE+"."+SYNC_METRICS_TABLE_NAME
 		;
 
 
@@ -114,15 +147,43 @@ public class MediaProvider extends ContentProvider {
 		MATCHER_CHILD_CAST_ITEM  	 = 24,
 		MATCHER_ITINERARY_BY_TAGS    = 27,
 		MATCHER_CHILD_CASTMEDIA_DIR  = 28,
-		MATCHER_CHILD_CASTMEDIA_ITEM = 29;
+		MATCHER_CHILD_CASTMEDIA_ITEM = 29,
+		MATCHER_SYNC_METRICS_DIR     = 30,
+		MATCHER_MAINTENANCE          = 31,
+		MATCHER_TAG_POPULAR          = 32;
 		;
 
+	private final static String MAINTENANCE_PATH = "maintenance";
+
+	/**
+	 * Updating this URI runs database maintenance. The number of bytes that
+	 * were returned to the filesystem is returned. See {@link MaintenanceService}.
+	 */
+	public final static Uri MAINTENANCE_URI = Uri.parse("content://"+AUTHORITY+"/"+MAINTENANCE_PATH);
+
+	/**
+	 * A boolean value for {@link #MAINTENANCE_URI}. If true, the statistics used
+	 * by the query planner are refreshed as well.
+	 */
+	public static final String CV_MAINTENANCE_ANALYZE = "_CV_MAINTENANCE_ANALYZE";
+
+	// SQLite's auto_vacuum modes
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+	// the minimum time between requests for maintenance made by delete()
+	private static final long MAINTENANCE_REQUEST_INTERVAL = 60 * 1000; // ms
+	private long mLastMaintenanceRequest = 0;
+	private int mMaintenanceFreePages;
+
+	// the URIs that have changed during the batch running on each thread. Null when not in a batch.
+	private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<Set<Uri>>();
+
 	private static class DatabaseHelper extends SQLiteOpenHelper {
 		private static final String DB_NAME = "content.db";
-		private static final int DB_VER = 42;
+		private static final int DB_VER = 51;
 
 		public DatabaseHelper(Context context) {
-			super(context, DB_NAME, null, DB_VER);
+			super(context, DB_NAME, new QueryPlanChecker(), DB_VER);
 		}
 
 		private static final String JSON_SYNCABLE_ITEM_FIELDS =
@@ -142,7 +203,6 @@ public class MediaProvider extends ContentProvider {
 
 		@Override
 		public void onCreate(SQLiteDatabase db) {
-
 			db.execSQL("CREATE TABLE "  + CAST_TABLE_NAME + " ("
 					+ JSON_SYNCABLE_ITEM_FIELDS
 					+ JSON_COMMENTABLE_FIELDS
@@ -173,16 +233,6 @@ public class MediaProvider extends ContentProvider {
 					+ Comment._DESCRIPTION 	+ " TEXT"
 					+ ");"
 			);
-			db.execSQL("CREATE TABLE " + TAG_TABLE_NAME + " ("
-					+ Tag._ID 			+ " INTEGER PRIMARY KEY,"
-					+ Tag._REF_ID 	    + " INTEGER,"
-					+ Tag._REF_CLASS  	+ " TEXT,"
-					+ Tag._NAME    	    + " TEXT,"
-					// easiest way to prevent tag duplicates
-					+ "CONSTRAINT tag_unique UNIQUE ("+ Tag._REF_ID+ ","+Tag._REF_CLASS+","+Tag._NAME+") ON CONFLICT IGNORE"
-					+ ");"
-			);
-
 			db.execSQL("CREATE TABLE "+ CASTMEDIA_TABLE_NAME + " ("
 					+ JSON_SYNCABLE_ITEM_FIELDS
 					+ CastMedia._AUTHOR        + " TEXT,"
@@ -210,7 +260,8 @@ public class MediaProvider extends ContentProvider {
 					+ Itinerary._PRIVACY 		+ " TEXT,"
 					+ Itinerary._CASTS_URI	+ " TEXT,"
 
-					+ Itinerary._PATH 		+ " TEXT,"
+					+ Itinerary._PATH 		+ " BLOB,"
+					+ Itinerary._PATH_LEVELS	+ " BLOB,"
 					+ Itinerary._CASTS_COUNT + " INTEGER,"
 					+ Itinerary._FAVORITES_COUNT + " INTEGER,"
 					+ Itinerary._FAVORITED   + " BOOLEAN,"
@@ -240,22 +291,378 @@ public class MediaProvider extends ContentProvider {
 
 			ITINERARY_CASTS_DBHELPER.createJoinTable(db);
 			CASTS_CASTMEDIA_DBHELPER.createJoinTable(db);
+
+			createTagTables(db);
+			createSearchTables(db);
+
+			createSyncMetricsTable(db);
+
+			createGeocellIndex(db, CAST_TABLE_NAME);
+			createGeocellIndex(db, EVENT_TABLE_NAME);
+			createIndexes(db);
+		}
+
+		/**
+		 * Creates the indexes used by the provider's queries, other than
+		 * those made along with their tables. Use {@link QueryPlanChecker} to
+		 * find any queries that don't use one.
+		 *
+		 * @param db
+		 */
+		private void createIndexes(SQLiteDatabase db){
+			// Items are also looked up by their public URI when they're sync'd.
+			// It's declared UNIQUE, which indexes it already.
+
+			// the default sort orders
+			createIndex(db, CAST_TABLE_NAME, Cast._DRAFT, Cast._FAVORITED, Cast._MODIFIED_DATE);
+			createIndex(db, ITINERARY_TABLE_NAME, Itinerary._MODIFIED_DATE);
+			createIndex(db, EVENT_TABLE_NAME, Event._START_DATE);
+
+			// events that aren't over yet
+			createIndex(db, EVENT_TABLE_NAME, Event._END_DATE);
+
+			// the comments of an item
+			createIndex(db, COMMENT_TABLE_NAME, Comment._PARENT_CLASS, Comment._PARENT_ID);
+		}
+
+		/**
+		 * Creates an index on the given columns, named after the table and the first column.
+		 *
+		 * @param db
+		 * @param table
+		 * @param columns
+		 */
+		private void createIndex(SQLiteDatabase db, String table, String... columns){
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + table + "_" + columns[0]
+					+ " ON " + table + " (" + ListUtils.join(Arrays.asList(columns), ",") + ")");
+		}
+
+		/**
+		 * Creates the tag dictionary, which holds each tag name once along with
+		 * the number of items using it, and the table of the tags of each item.
+		 * Triggers keep the counts up to date and remove the tags of deleted
+		 * items. {@link #TAG_TABLE_NAME} is a view joining the two, so that
+		 * tags can be read as before.
+		 *
+		 * @param db
+		 */
+		private void createTagTables(SQLiteDatabase db){
+			db.execSQL("CREATE TABLE " + TAG_NAMES_TABLE_NAME + " ("
+					+ Tag._ID			+ " INTEGER PRIMARY KEY,"
+					+ Tag._NAME			+ " TEXT NOT NULL UNIQUE,"
+					+ Tag._ITEM_COUNT	+ " INTEGER NOT NULL DEFAULT 0"
+					+ ");"
+			);
+			// for the popular tags
+			db.execSQL("CREATE INDEX " + TAG_NAMES_TABLE_NAME + "_" + Tag._ITEM_COUNT
+					+ " ON " + TAG_NAMES_TABLE_NAME + " (" + Tag._ITEM_COUNT + ")");
+
+			db.execSQL("CREATE TABLE " + TAG_REFS_TABLE_NAME + " ("
+					+ Tag._ID			+ " INTEGER PRIMARY KEY,"
+					+ Tag._REF_CLASS	+ " TEXT,"
+					+ Tag._REF_ID		+ " INTEGER,"
+					+ Tag._TAG_ID		+ " INTEGER REFERENCES " + TAG_NAMES_TABLE_NAME + " (" + Tag._ID + "),"
+					// easiest way to prevent tag duplicates. This also indexes the tags of an item.
+					+ "CONSTRAINT tag_unique UNIQUE (" + Tag._REF_CLASS + "," + Tag._REF_ID + "," + Tag._TAG_ID + ") ON CONFLICT IGNORE"
+					+ ");"
+			);
+			// for the items with a given tag
+			db.execSQL("CREATE INDEX " + TAG_REFS_TABLE_NAME + "_" + Tag._TAG_ID + " ON " + TAG_REFS_TABLE_NAME
+					+ " (" + Tag._TAG_ID + "," + Tag._REF_CLASS + "," + Tag._REF_ID + ")");
+
+			db.execSQL("CREATE TRIGGER " + TAG_REFS_TABLE_NAME + "_insert AFTER INSERT ON " + TAG_REFS_TABLE_NAME
+					+ " BEGIN UPDATE " + TAG_NAMES_TABLE_NAME + " SET " + Tag._ITEM_COUNT + "=" + Tag._ITEM_COUNT + "+1"
+					+ " WHERE " + Tag._ID + "=NEW." + Tag._TAG_ID + "; END");
+			db.execSQL("CREATE TRIGGER " + TAG_REFS_TABLE_NAME + "_delete AFTER DELETE ON " + TAG_REFS_TABLE_NAME
+					+ " BEGIN UPDATE " + TAG_NAMES_TABLE_NAME + " SET " + Tag._ITEM_COUNT + "=" + Tag._ITEM_COUNT + "-1"
+					+ " WHERE " + Tag._ID + "=OLD." + Tag._TAG_ID + "; END");
+
+			for (final String table : TAGGABLE_TABLES){
+				db.execSQL("CREATE TRIGGER " + table + "_delete_tags AFTER DELETE ON " + table
+						+ " BEGIN DELETE FROM " + TAG_REFS_TABLE_NAME + " WHERE " + Tag._REF_CLASS + "='" + table + "'"
+						+ " AND " + Tag._REF_ID + "=OLD." + BaseColumns._ID + "; END");
+			}
+
+			db.execSQL("CREATE VIEW " + TAG_TABLE_NAME + " AS SELECT "
+					+ "r." + Tag._ID + " AS " + Tag._ID + ","
+					+ "r." + Tag._REF_CLASS + " AS " + Tag._REF_CLASS + ","
+					+ "r." + Tag._REF_ID + " AS " + Tag._REF_ID + ","
+					+ "r." + Tag._TAG_ID + " AS " + Tag._TAG_ID + ","
+					+ "n." + Tag._NAME + " AS " + Tag._NAME
+					+ " FROM " + TAG_REFS_TABLE_NAME + " AS r JOIN " + TAG_NAMES_TABLE_NAME + " AS n"
+					+ " ON n." + Tag._ID + "=r." + Tag._TAG_ID);
+		}
+
+		/**
+		 * Drops the tables made by {@link #createTagTables(SQLiteDatabase)},
+		 * along with the tag table of versions before 49.
+		 *
+		 * @param db
+		 */
+		private void dropTagTables(SQLiteDatabase db){
+			// the tag table used to be a table and is now a view, and dropping
+			// either with the wrong statement is an error
+			final Cursor c = db.query("sqlite_master", new String[]{"type"}, "name=?", new String[]{TAG_TABLE_NAME}, null, null, null);
+			try {
+				if (c.moveToFirst()){
+					db.execSQL("DROP " + ("view".equals(c.getString(0)) ? "VIEW " : "TABLE ") + TAG_TABLE_NAME);
+				}
+			}finally{
+				c.close();
+			}
+			db.execSQL("DROP TABLE IF EXISTS " + TAG_REFS_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + TAG_NAMES_TABLE_NAME);
+		}
+
+		/**
+		 * Creates a full-text index of the title, description, author and
+		 * tags of each taggable table and indexes any existing items. The
+		 * index of each table is named after it, with
+		 * {@link MediaProvider#SEARCH_TABLE_SUFFIX}, and uses the IDs of its
+		 * items. Triggers keep it up to date. System tags aren't indexed.
+		 *
+		 * @param db
+		 */
+		private void createSearchTables(SQLiteDatabase db){
+			final String columns = ListUtils.join(Arrays.asList(SEARCH_COLUMNS), ",");
+
+			for (final String table : TAGGABLE_TABLES){
+				final String search = table + SEARCH_TABLE_SUFFIX;
+				db.execSQL("CREATE VIRTUAL TABLE " + search + " USING fts3("
+						+ columns + "," + SEARCH_TAGS_COLUMN + ")");
+
+				final List<String> newValues = new ArrayList<String>(SEARCH_COLUMNS.length);
+				final List<String> setValues = new ArrayList<String>(SEARCH_COLUMNS.length);
+				for (final String column : SEARCH_COLUMNS){
+					newValues.add("NEW." + column);
+					setValues.add(column + "=NEW." + column);
+				}
+
+				db.execSQL("CREATE TRIGGER " + search + "_insert AFTER INSERT ON " + table
+						+ " BEGIN INSERT INTO " + search + " (docid," + columns + ")"
+						+ " VALUES (NEW." + BaseColumns._ID + "," + ListUtils.join(newValues, ",") + "); END");
+				db.execSQL("CREATE TRIGGER " + search + "_update AFTER UPDATE OF " + columns + " ON " + table
+						+ " BEGIN UPDATE " + search + " SET " + ListUtils.join(setValues, ",")
+						+ " WHERE docid=NEW." + BaseColumns._ID + "; END");
+				db.execSQL("CREATE TRIGGER " + search + "_delete AFTER DELETE ON " + table
+						+ " BEGIN DELETE FROM " + search + " WHERE docid=OLD." + BaseColumns._ID + "; END");
+
+				// the tags are indexed as one column, which is rewritten when they change
+				db.execSQL("CREATE TRIGGER " + search + "_insert_tag AFTER INSERT ON " + TAG_REFS_TABLE_NAME
+						+ " WHEN NEW." + Tag._REF_CLASS + "='" + table + "'"
+						+ " BEGIN UPDATE " + search + " SET " + SEARCH_TAGS_COLUMN + "=" + getSearchTagsQuery(table, "NEW." + Tag._REF_ID)
+						+ " WHERE docid=NEW." + Tag._REF_ID + "; END");
+				db.execSQL("CREATE TRIGGER " + search + "_delete_tag AFTER DELETE ON " + TAG_REFS_TABLE_NAME
+						+ " WHEN OLD." + Tag._REF_CLASS + "='" + table + "'"
+						+ " BEGIN UPDATE " + search + " SET " + SEARCH_TAGS_COLUMN + "=" + getSearchTagsQuery(table, "OLD." + Tag._REF_ID)
+						+ " WHERE docid=OLD." + Tag._REF_ID + "; END");
+
+				db.execSQL("INSERT INTO " + search + " (docid," + columns + "," + SEARCH_TAGS_COLUMN + ")"
+						+ " SELECT " + BaseColumns._ID + "," + columns + ","
+						+ getSearchTagsQuery(table, table + "." + BaseColumns._ID) + " FROM " + table);
+			}
+		}
+
+		/**
+		 * @param table
+		 * @param refId
+		 *            an expression for the ID of the item
+		 * @return a subquery of the non-system tags of the item, separated by spaces
+		 */
+		private static String getSearchTagsQuery(String table, String refId){
+			return "(SELECT group_concat(" + Tag._NAME + ",' ') FROM " + TAG_TABLE_NAME
+					+ " WHERE " + Tag._REF_CLASS + "='" + table + "' AND " + Tag._REF_ID + "=" + refId
+					+ " AND " + Tag._NAME + " NOT LIKE '%:%')";
+		}
+
+		/**
+		 * Moves the tags from the old table, which stored the name of each tag
+		 * of each item, to the tables made by {@link #createTagTables(SQLiteDatabase)}.
+		 * Tags of items that no longer exist are dropped.
+		 *
+		 * @param db
+		 */
+		private void migrateTags(SQLiteDatabase db){
+			final String oldTable = TAG_TABLE_NAME + "_old";
+			db.execSQL("ALTER TABLE " + TAG_TABLE_NAME + " RENAME TO " + oldTable);
+			createTagTables(db);
+
+			db.execSQL("INSERT OR IGNORE INTO " + TAG_NAMES_TABLE_NAME + " (" + Tag._NAME + ")"
+					+ " SELECT DISTINCT " + Tag._NAME + " FROM " + oldTable + " WHERE " + Tag._NAME + " IS NOT NULL");
+
+			// the triggers count these
+			db.execSQL("INSERT INTO " + TAG_REFS_TABLE_NAME + " (" + Tag._REF_CLASS + "," + Tag._REF_ID + "," + Tag._TAG_ID + ")"
+					+ " SELECT o." + Tag._REF_CLASS + ",o." + Tag._REF_ID + ",n." + Tag._ID
+					+ " FROM " + oldTable + " AS o JOIN " + TAG_NAMES_TABLE_NAME + " AS n ON n." + Tag._NAME + "=o." + Tag._NAME);
+
+			for (final String table : TAGGABLE_TABLES){
+				db.execSQL("DELETE FROM " + TAG_REFS_TABLE_NAME + " WHERE " + Tag._REF_CLASS + "='" + table + "'"
+						+ " AND " + Tag._REF_ID + " NOT IN (SELECT " + BaseColumns._ID + " FROM " + table + ")");
+			}
+
+			db.execSQL("DROP TABLE " + oldTable);
+		}
+
+		/**
+		 * Indexes the geocell of a locatable table, so that proximity searches
+		 * don't need to scan it.
+		 *
+		 * @param db
+		 * @param table
+		 */
+		private void createGeocellIndex(SQLiteDatabase db, String table){
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + table + "_" + Locatable.Columns._GEOCELL
+					+ " ON " + table + " (" + Locatable.Columns._GEOCELL + ")");
+		}
+
+		/**
+		 * Recomputes the geocells of the rows that have a location and match
+		 * the given selection.
+		 *
+		 * @param db
+		 * @param table
+		 * @param where a selection, or null for all rows
+		 */
+		private void updateGeocells(SQLiteDatabase db, String table, String where){
+			final Cursor c = db.query(table,
+					new String[]{BaseColumns._ID, Locatable.Columns._LATITUDE, Locatable.Columns._LONGITUDE},
+					ProviderUtils.addExtraWhere(where, Locatable.Columns._LATITUDE
+							+ " IS NOT NULL AND " + Locatable.Columns._LONGITUDE + " IS NOT NULL"),
+					null, null, null, null);
+			try {
+				final ContentValues cv = new ContentValues();
+				while (c.moveToNext()){
+					cv.put(Locatable.Columns._GEOCELL, GeocellUtils.packedToString(GeocellUtils.computePacked(
+							c.getDouble(1), c.getDouble(2), Locatable.GEOCELL_RESOLUTION)));
+					db.update(table, cv, BaseColumns._ID + "=" + c.getLong(0), null);
+				}
+			}finally{
+				c.close();
+			}
+		}
+
+		/**
+		 * Converts the itinerary paths from comma-separated text to the
+		 * {@link PolylineCodec} encoding and simplifies them.
+		 *
+		 * @param db
+		 */
+		private void encodePaths(SQLiteDatabase db){
+			final Cursor c = db.query(ITINERARY_TABLE_NAME, new String[]{Itinerary._ID, Itinerary._PATH},
+					Itinerary._PATH + " IS NOT NULL", null, null, null, null);
+			try {
+				final ContentValues cv = new ContentValues();
+				while (c.moveToNext()){
+					final byte[] path = PolylineCodec.encodeText(c.getString(1));
+					cv.put(Itinerary._PATH, path);
+					cv.put(Itinerary._PATH_LEVELS, Itinerary.computePathLevels(path));
+					db.update(ITINERARY_TABLE_NAME, cv, Itinerary._ID + "=" + c.getLong(0), null);
+				}
+			}finally{
+				c.close();
+			}
+		}
+
+		private void createSyncMetricsTable(SQLiteDatabase db){
+			db.execSQL("CREATE TABLE " + SYNC_METRICS_TABLE_NAME + " ("
+					+ SyncMetric._ID			+ " INTEGER PRIMARY KEY,"
+					+ SyncMetric._TARGET		+ " TEXT,"
+					+ SyncMetric._STARTED		+ " INTEGER,"
+					+ SyncMetric._TOTAL_TIME	+ " INTEGER,"
+					+ SyncMetric._RESPONSE_TIME	+ " INTEGER,"
+					+ SyncMetric._TRANSFER_TIME	+ " INTEGER,"
+					+ SyncMetric._PARSE_TIME	+ " INTEGER,"
+					+ SyncMetric._MAP_TIME		+ " INTEGER,"
+					+ SyncMetric._APPLY_TIME	+ " INTEGER,"
+					+ SyncMetric._POST_SYNC_TIME+ " INTEGER,"
+					+ SyncMetric._UPLOAD_TIME	+ " INTEGER,"
+					+ SyncMetric._BYTES			+ " INTEGER,"
+					+ SyncMetric._ITEMS			+ " INTEGER,"
+					+ SyncMetric._NOT_MODIFIED	+ " BOOLEAN,"
+					+ SyncMetric._ERROR			+ " TEXT"
+					+ ");"
+			);
+		}
+
+		/**
+		 * Upgrades that can be done without losing any data.
+		 *
+		 * @param db
+		 * @param version the version to upgrade to, from the one before it
+		 */
+		private void upgradeInPlace(SQLiteDatabase db, int version){
+			switch (version){
+			case 43:
+				createSyncMetricsTable(db);
+				break;
+
+			case 44:
+				// Items created locally didn't use to have a geocell, older
+				// ones were stored at a lower resolution and ones past
+				// resolution 10 were computed imprecisely, so they're all
+				// recomputed in one pass.
+				createGeocellIndex(db, CAST_TABLE_NAME);
+				createGeocellIndex(db, EVENT_TABLE_NAME);
+				updateGeocells(db, CAST_TABLE_NAME, null);
+				updateGeocells(db, EVENT_TABLE_NAME, null);
+				break;
+
+			case 45:
+			case 46:
+				// the upgrade to 44 computes the geocells
+				break;
+
+			case 47:
+				// the levels are computed by the next upgrade
+				db.execSQL("ALTER TABLE " + ITINERARY_TABLE_NAME + " ADD COLUMN " + Itinerary._PATH_LEVELS + " BLOB");
+				break;
+
+			case 48:
+				encodePaths(db);
+				break;
+
+			case 49:
+				migrateTags(db);
+				break;
+
+			case 50:
+				createSearchTables(db);
+				break;
+
+			case 51:
+				createIndexes(db);
+				ITINERARY_CASTS_DBHELPER.createJoinTableIndexes(db);
+				CASTS_CASTMEDIA_DBHELPER.createJoinTableIndexes(db);
+				break;
+
+			default:
+				throw new IllegalArgumentException("no in-place upgrade to version "+version);
+			}
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-			// If it's a step greater than 1, step through all older versions and incrementally upgrade to the latest
-			for (; oldVersion < newVersion - 1; oldVersion++){
-				onUpgrade(db, oldVersion, oldVersion + 1);
+			// versions from 42 on can be upgraded without dropping anything
+			if (oldVersion >= 42){
+				for (int version = oldVersion + 1; version <= newVersion; version++){
+					upgradeInPlace(db, version);
+				}
+				return;
 			}
 
+			// The schemas of older versions aren't known, so they're rebuilt
+			// from scratch, once, at the current version.
 			db.execSQL("DROP TABLE IF EXISTS " + CAST_TABLE_NAME);
 			db.execSQL("DROP TABLE IF EXISTS " + COMMENT_TABLE_NAME);
-			db.execSQL("DROP TABLE IF EXISTS " + TAG_TABLE_NAME);
 			db.execSQL("DROP TABLE IF EXISTS " + CASTMEDIA_TABLE_NAME);
 			db.execSQL("DROP TABLE IF EXISTS " + CASTMEDIA_TABLE_NAME);
 			db.execSQL("DROP TABLE IF EXISTS " + ITINERARY_TABLE_NAME);
 			db.execSQL("DROP TABLE IF EXISTS " + EVENT_TABLE_NAME);
+			db.execSQL("DROP TABLE IF EXISTS " + SYNC_METRICS_TABLE_NAME);
+			dropTagTables(db);
+			for (final String table : TAGGABLE_TABLES){
+				db.execSQL("DROP TABLE IF EXISTS " + table + SEARCH_TABLE_SUFFIX);
+			}
 			ITINERARY_CASTS_DBHELPER.deleteJoinTable(db);
 			CASTS_CASTMEDIA_DBHELPER.deleteJoinTable(db);
 			onCreate(db);
@@ -267,6 +674,7 @@ public class MediaProvider extends ContentProvider {
 	@Override
 	public boolean onCreate() {
 		dbHelper = new DatabaseHelper(getContext());
+		mMaintenanceFreePages = getContext().getResources().getInteger(R.integer.db_maintenance_free_pages);
 		return true;
 	}
 
@@ -279,10 +687,14 @@ public class MediaProvider extends ContentProvider {
 		switch (uriMatcher.match(uri)){
 		case MATCHER_ITEM_TAGS:
 		case MATCHER_TAG_DIR:
+		case MATCHER_TAG_POPULAR:
 
 		case MATCHER_COMMENT_ITEM:
 		case MATCHER_CHILD_COMMENT_ITEM:
 
+		case MATCHER_SYNC_METRICS_DIR:
+		case MATCHER_MAINTENANCE:
+
 			return false;
 
 		case MATCHER_CHILD_COMMENT_DIR:
@@ -336,6 +748,7 @@ public class MediaProvider extends ContentProvider {
 	// tags
 		case MATCHER_TAG_DIR:
 		case MATCHER_ITEM_TAGS:
+		case MATCHER_TAG_POPULAR:
 			return TYPE_TAG_DIR;
 
 			//////////////// itineraries
@@ -355,6 +768,9 @@ public class MediaProvider extends ContentProvider {
 		case MATCHER_EVENT_ITEM:
 			return TYPE_EVENT_ITEM;
 
+		case MATCHER_SYNC_METRICS_DIR:
+			return TYPE_SYNC_METRIC_DIR;
+
 		default:
 			throw new IllegalArgumentException("Cannot get type for URI "+uri);
 		}
@@ -363,7 +779,6 @@ public class MediaProvider extends ContentProvider {
 	@Override
 	public Uri insert(Uri uri, ContentValues values) {
 		final SQLiteDatabase db = dbHelper.getWritableDatabase();
-		final Context context = getContext();
 		long rowid;
 		final boolean syncable = canSync(uri);
 		if (syncable && !values.containsKey(JsonSyncableItem._MODIFIED_DATE)){
@@ -379,14 +794,8 @@ public class MediaProvider extends ContentProvider {
 		//////////////////////////////////////////////////////////////////////////////////
 		case MATCHER_CAST_DIR:{
 			Assert.assertNotNull(values);
-			final ContentValues cvTags = ProviderUtils.extractContentValueItem(values, Tag.PATH);
-
-			rowid = db.insert(CAST_TABLE_NAME, null, values);
-			if (rowid > 0){
-				newItem = ContentUris.withAppendedId(Cast.CONTENT_URI, rowid);
-
-				update(Uri.withAppendedPath(newItem, Tag.PATH), cvTags, null, null);
-
+			newItem = insertWithTags(values, db, CAST_TABLE_NAME, Cast.CONTENT_URI);
+			if (newItem != null){
 				if (values.containsKey(Cast._DRAFT)){
 					isDraft = values.getAsBoolean(Cast._DRAFT);
 				}else{
@@ -416,22 +825,21 @@ public class MediaProvider extends ContentProvider {
 		//////////////////////////////////////////////////////////////////////////////////
 		case MATCHER_ITEM_TAGS:{
 			final List<String> pathSegments = uri.getPathSegments();
-			values.put(Tag._REF_CLASS, pathSegments.get(pathSegments.size() - 3));
-			values.put(Tag._REF_ID, pathSegments.get(pathSegments.size() - 2));
+			final String refClass = pathSegments.get(pathSegments.size() - 3);
+			final String refId = pathSegments.get(pathSegments.size() - 2);
 
 			rowid = 0;
 
-			final ContentValues cv2 = new ContentValues(values);
-			cv2.remove(Tag.PATH);
+			final TagWriter tagWriter = new TagWriter(db);
+			db.beginTransaction();
 			try {
-				db.beginTransaction();
 				for (final String tag : TaggableItem.getList(values.getAsString(Tag.PATH))){
-					cv2.put(Tag._NAME, tag);
-					rowid = db.insert(TAG_TABLE_NAME, null, cv2);
+					rowid = tagWriter.addRef(refClass, refId, tag);
 				}
 				db.setTransactionSuccessful();
 			}finally{
 				db.endTransaction();
+				tagWriter.close();
 			}
 
 			newItem = ContentUris.withAppendedId(uri, rowid);
@@ -452,6 +860,16 @@ public class MediaProvider extends ContentProvider {
 			}
 		} break;
 		//////////////////////////////////////////////////////////////////////////////////
+		case MATCHER_SYNC_METRICS_DIR:{
+			rowid = db.insert(SYNC_METRICS_TABLE_NAME, null, values);
+			if (rowid > 0){
+				newItem = ContentUris.withAppendedId(uri, rowid);
+
+				// only keep the most recent metrics
+				db.delete(SYNC_METRICS_TABLE_NAME, SyncMetric._ID + " <= ?",
+						new String[]{String.valueOf(rowid - SyncMetric.MAX_ROWS)});
+			}
+		} break;
 
 		//////////////////////////////////////////////////////////////////////////////////
 
@@ -470,7 +888,7 @@ public class MediaProvider extends ContentProvider {
 		}
 
 		if (newItem != null){
-			context.getContentResolver().notifyChange(uri, null);
+			notifyChange(uri);
 		}else{
 			throw new SQLException("Failed to insert row into "+uri);
 		}
@@ -501,7 +919,7 @@ public class MediaProvider extends ContentProvider {
 			final long rowid = db.insert(table, null, values);
 			if (rowid > 0){
 				newItem = ContentUris.withAppendedId(contentUri, rowid);
-				update(Uri.withAppendedPath(newItem, Tag.PATH), cvTags, null, null);
+				updateTags(db, table, String.valueOf(rowid), cvTags);
 				db.setTransactionSuccessful();
 			}
 		}finally{
@@ -525,7 +943,10 @@ public class MediaProvider extends ContentProvider {
 			qb.setTables(CAST_TABLE_NAME);
 
 			final String tags = uri.getQueryParameter(TaggableItem.SERVER_QUERY_PARAMETER);
+			final String search = uri.getQueryParameter(TaggableItem.SEARCH_QUERY_PARAMETER);
 			final String dist = uri.getQueryParameter(Locatable.SERVER_QUERY_PARAMETER);
+			final String nearest = uri.getQueryParameter(Locatable.NEAREST_QUERY_PARAMETER);
+			final String bbox = uri.getQueryParameter(Locatable.BBOX_QUERY_PARAMETER);
 			final Boolean favorited = Favoritable.decodeFavoritedUri(uri);
 
 			if (favorited != null){
@@ -533,8 +954,14 @@ public class MediaProvider extends ContentProvider {
 				selectionArgs = ProviderUtils.addExtraWhereArgs(selectionArgs, favorited ? "1" : "0");
 			}
 
-			if (tags != null){
+			if (search != null){
+				c = queryBySearch(qb, db, search, CAST_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
+			}else if (tags != null){
 				c = queryByTags(qb, db, tags, CAST_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
+			}else if (bbox != null){
+				c = queryByBoundingBox(qb, db, bbox, CAST_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
+			}else if (dist != null && nearest != null){
+				c = queryNearest(qb, db, dist, nearest, CAST_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
 			}else if (dist != null){
 				c = queryByLocation(qb, db, dist, CAST_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
 			}else{
@@ -553,10 +980,19 @@ public class MediaProvider extends ContentProvider {
 		case MATCHER_EVENT_DIR:{
 			qb.setTables(EVENT_TABLE_NAME);
 			final String tags = uri.getQueryParameter(TaggableItem.SERVER_QUERY_PARAMETER);
+			final String search = uri.getQueryParameter(TaggableItem.SEARCH_QUERY_PARAMETER);
 			final String dist = uri.getQueryParameter(Locatable.SERVER_QUERY_PARAMETER);
+			final String nearest = uri.getQueryParameter(Locatable.NEAREST_QUERY_PARAMETER);
+			final String bbox = uri.getQueryParameter(Locatable.BBOX_QUERY_PARAMETER);
 
-			if (tags != null){
+			if (search != null){
+				c = queryBySearch(qb, db, search, EVENT_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
+			}else if (tags != null){
 				c = queryByTags(qb, db, tags, EVENT_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
+			}else if (bbox != null){
+				c = queryByBoundingBox(qb, db, bbox, EVENT_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
+			}else if (dist != null && nearest != null){
+				c = queryNearest(qb, db, dist, nearest, EVENT_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
 			}else if (dist != null){
 				c = queryByLocation(qb, db, dist, EVENT_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
 			}else{
@@ -613,7 +1049,27 @@ public class MediaProvider extends ContentProvider {
 			break;
 		}
 
+		case MATCHER_TAG_POPULAR:{
+			qb.setTables(TAG_NAMES_TABLE_NAME);
+			qb.appendWhere(Tag._ITEM_COUNT + ">0");
+			if (sortOrder == null){
+				sortOrder = Tag._ITEM_COUNT + " DESC";
+			}
+			String limit = uri.getQueryParameter(Tag.LIMIT_QUERY_PARAMETER);
+			if (limit != null){
+				limit = String.valueOf(Integer.parseInt(limit));
+			}
+			c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
+			break;
+		}
+
 		case MATCHER_ITINERARY_DIR:{
+			final String search = uri.getQueryParameter(TaggableItem.SEARCH_QUERY_PARAMETER);
+			if (search != null){
+				qb.setTables(ITINERARY_TABLE_NAME);
+				c = queryBySearch(qb, db, search, ITINERARY_TABLE_NAME, projection, selection, selectionArgs, sortOrder);
+				break;
+			}
 			if (sortOrder == null){
 				sortOrder = Itinerary.SORT_DEFAULT;
 			}
@@ -630,6 +1086,13 @@ public class MediaProvider extends ContentProvider {
 					null, null, sortOrder);
 		}break;
 
+		case MATCHER_SYNC_METRICS_DIR:{
+			if (sortOrder == null){
+				sortOrder = SyncMetric.SORT_DEFAULT;
+			}
+			c = db.query(SYNC_METRICS_TABLE_NAME, projection, selection, selectionArgs, null, null, sortOrder);
+		}break;
+
 			default:
 				if (mDBHelperMapper.canQuery(code)){
 					c = mDBHelperMapper.query(code, this, db, uri, projection, selection, selectionArgs, sortOrder);
@@ -642,49 +1105,362 @@ public class MediaProvider extends ContentProvider {
 		return c;
 	}
 
-	// TODO rework tag system to use m2m relationship or at least rework this to use the builder
+	/**
+	 * Queries the items that have all of the given tags. The tags are looked
+	 * up in the dictionary first, so the items are found by tag ID using the
+	 * index of the tags table.
+	 *
+	 * @param tagString a tag query. See {@link Tag#toSet(String)}
+	 */
 	private Cursor queryByTags(SQLiteQueryBuilder qb, SQLiteDatabase db, String tagString, String taggableItemTable, String[] projection, String selection, String[] selectionArgs, String sortOrder){
-		qb.setTables(taggableItemTable + " AS c, "+TAG_TABLE_NAME +" AS t");
-
 		final Set<String> tags = Tag.toSet(tagString.toLowerCase());
-		final List<String> tagFilterList = new ArrayList<String>(tags.size());
+		final List<String> tagIds = getTagIds(db, tags);
+
+		if (tagIds.size() < tags.size()){
+			// nothing has a tag that isn't in the dictionary
+			qb.appendWhere("0");
+		}else{
+			qb.appendWhere(TaggableItem._ID + " IN (SELECT " + Tag._REF_ID + " FROM " + TAG_REFS_TABLE_NAME
+					+ " WHERE " + Tag._TAG_ID + " IN (" + ListUtils.join(tagIds, ",") + ")"
+					// limit to only items of the given object class. The unary + keeps
+					// SQLite from using the index of the tags of each item instead.
+					+ " AND +" + Tag._REF_CLASS + "=" + DatabaseUtils.sqlEscapeString(taggableItemTable)
+					+ " GROUP BY " + Tag._REF_ID + " HAVING COUNT(*)=" + tags.size() + ")");
+		}
+
+		return qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+	}
+
+	// the number of matches of a search, from the offsets() of the match
+	private static final String SEARCH_RANK = "((length(_offsets) - length(replace(_offsets,' ','')) + 1) / 4)";
+
+	/**
+	 * Queries the items whose text matches a search, using the full-text
+	 * index of the table. Unless another sort order is given, the items with
+	 * the most matches are first. An excerpt of the matching text is in the
+	 * {@link TaggableItem#_SEARCH_SNIPPET} column.
+	 *
+	 * @param search the search terms. See {@link TaggableItem#getSearchUri(Uri, String)}
+	 */
+	private Cursor queryBySearch(SQLiteQueryBuilder qb, SQLiteDatabase db, String search, String taggableItemTable, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+		final String match = toSearchMatch(search);
+		if (match == null){
+			// nothing to search for, so everything matches
+			return qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+		}
+
+		final String searchTable = taggableItemTable + SEARCH_TABLE_SUFFIX;
+		qb.setTables(taggableItemTable + " JOIN (SELECT docid,"
+				+ "snippet(" + searchTable + ",'<b>','</b>','\u2026') AS " + TaggableItem._SEARCH_SNIPPET + ","
+				+ "offsets(" + searchTable + ") AS _offsets"
+				+ " FROM " + searchTable + " WHERE " + searchTable + " MATCH " + DatabaseUtils.sqlEscapeString(match) + ") AS s"
+				+ " ON " + taggableItemTable + "." + BaseColumns._ID + "=s.docid");
+		if (sortOrder == null){
+			sortOrder = SEARCH_RANK + " DESC";
+		}
+
+		return qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+	}
+
+	/**
+	 * Turns what a user typed into a full-text query that matches all its
+	 * words. Any punctuation is dropped, so that it can't be mistaken for
+	 * query syntax. Unless it's followed by a space, the last word is matched
+	 * as a prefix, as it may still be being typed.
+	 *
+	 * @param search
+	 * @return the full-text query or null if there are no words to search for
+	 */
+	private static String toSearchMatch(String search){
+		final StringBuilder match = new StringBuilder();
+		// the operators are upper case, so lower-casing the words keeps them from being read as such
+		for (final String word : search.toLowerCase().split("[^\\p{L}\\p{N}]+")){
+			if (word.length() == 0){
+				continue;
+			}
+			if (match.length() > 0){
+				match.append(' ');
+			}
+			match.append(word);
+		}
+		if (match.length() == 0){
+			return null;
+		}
+		if (Character.isLetterOrDigit(search.charAt(search.length() - 1))){
+			match.append('*');
+		}
+		return match.toString();
+	}
+
+	private static final String[] TAG_ID_PROJECTION = {Tag._ID};
+
+	/**
+	 * @param db
+	 * @param tags
+	 * @return the IDs of those of the given tags that are in the dictionary
+	 */
+	private static List<String> getTagIds(SQLiteDatabase db, Set<String> tags){
+		final List<String> placeholders = new ArrayList<String>(tags.size());
+		for (int i = 0; i < tags.size(); i++){
+			placeholders.add("?");
+		}
+		final Cursor c = db.query(TAG_NAMES_TABLE_NAME, TAG_ID_PROJECTION,
+				Tag._NAME + " IN (" + ListUtils.join(placeholders, ",") + ")",
+				tags.toArray(new String[tags.size()]), null, null, null);
+		try {
+			final List<String> tagIds = new ArrayList<String>(c.getCount());
+			while (c.moveToNext()){
+				tagIds.add(String.valueOf(c.getLong(0)));
+			}
+			return tagIds;
+		}finally{
+			c.close();
+		}
+	}
+
+	private static final String TAG_REFS_OF_ITEM_QUERY = "SELECT " + TAG_REFS_TABLE_NAME + "." + Tag._ID + "," + Tag._NAME
+			+ " FROM " + TAG_REFS_TABLE_NAME + " JOIN " + TAG_NAMES_TABLE_NAME
+			+ " ON " + TAG_NAMES_TABLE_NAME + "." + Tag._ID + "=" + Tag._TAG_ID
+			+ " WHERE " + Tag._REF_CLASS + "=? AND " + Tag._REF_ID + "=?";
+
+	/**
+	 * Sets the tags of an item. Only the tags that have changed are added or
+	 * removed, all in one transaction.
+	 *
+	 * @param db
+	 * @param refClass
+	 * @param refId
+	 * @param values
+	 *            the tags are in {@link Tag#PATH}. If
+	 *            {@link TaggableItem#CV_TAG_PREFIX} is present, only the tags
+	 *            with that prefix are changed.
+	 * @return the number of tags that were added or removed
+	 */
+	private static int updateTags(SQLiteDatabase db, String refClass, String refId, ContentValues values){
+		final Set<String> toAdd = new HashSet<String>(TaggableItem.getList(values.getAsString(Tag.PATH)));
+
+		// If the CV_TAG_PREFIX key is present, only work with tags that have that prefix.
+		final boolean filterPrefix = values.containsKey(TaggableItem.CV_TAG_PREFIX);
+		final String prefix = values.getAsString(TaggableItem.CV_TAG_PREFIX);
+		if (filterPrefix){
+			TaggableItem.filterTagsInPlace(prefix, toAdd);
+		}
+
+		int count = 0;
+		final TagWriter tagWriter = new TagWriter(db);
+		db.beginTransaction();
+		try {
+			final List<Long> toRemove = new ArrayList<Long>();
+			final Cursor c = db.rawQuery(TAG_REFS_OF_ITEM_QUERY, new String[]{refClass, refId});
+			try {
+				while (c.moveToNext()){
+					final String tag = c.getString(1);
+					if (filterPrefix && !TaggableItem.hasPrefix(prefix, tag)){
+						continue;
+					}
+					// tags that are already there are left alone
+					if (!toAdd.remove(tag)){
+						toRemove.add(c.getLong(0));
+					}
+				}
+			}finally{
+				c.close();
+			}
+
+			for (final long id : toRemove){
+				tagWriter.removeRef(id);
+				count++;
+			}
+			for (final String tag : toAdd){
+				tagWriter.addRef(refClass, refId, tag);
+				count++;
+			}
+			db.setTransactionSuccessful();
+		}finally{
+			db.endTransaction();
+			tagWriter.close();
+		}
+		return count;
+	}
 
-		qb.appendWhere("t."+Tag._REF_ID+"=c."+TaggableItem._ID);
-		for (final String tag : tags){
-			tagFilterList.add(DatabaseUtils.sqlEscapeString(tag));
+	/**
+	 * Compiled statements for adding and removing the tags of items. These are
+	 * meant to be used within a transaction and closed when it's done.
+	 *
+	 */
+	private static class TagWriter {
+		private final SQLiteStatement mFindTag;
+		private final SQLiteStatement mInsertTag;
+		private final SQLiteStatement mInsertRef;
+		private final SQLiteStatement mDeleteRef;
+
+		public TagWriter(SQLiteDatabase db) {
+			mFindTag = db.compileStatement("SELECT " + Tag._ID + " FROM " + TAG_NAMES_TABLE_NAME + " WHERE " + Tag._NAME + "=?");
+			mInsertTag = db.compileStatement("INSERT INTO " + TAG_NAMES_TABLE_NAME + " (" + Tag._NAME + ") VALUES (?)");
+			mInsertRef = db.compileStatement("INSERT INTO " + TAG_REFS_TABLE_NAME
+					+ " (" + Tag._REF_CLASS + "," + Tag._REF_ID + "," + Tag._TAG_ID + ") VALUES (?,?,?)");
+			mDeleteRef = db.compileStatement("DELETE FROM " + TAG_REFS_TABLE_NAME + " WHERE " + Tag._ID + "=?");
 		}
-		qb.appendWhere(" AND (t."+Tag._NAME+" IN ("+ListUtils.join(tagFilterList, ",")+"))");
 
-		// limit to only items of the given object class
-		qb.appendWhere(" AND t."+Tag._REF_CLASS + "=\'"+taggableItemTable+"\'");
+		/**
+		 * Looks up a tag in the dictionary, adding it if it's not there.
+		 *
+		 * @param tag
+		 * @return the ID of the tag
+		 */
+		public long getTagId(String tag){
+			mFindTag.bindString(1, tag);
+			try {
+				return mFindTag.simpleQueryForLong();
+			}catch (final SQLiteDoneException e){
+				mInsertTag.bindString(1, tag);
+				return mInsertTag.executeInsert();
+			}
+		}
 
-		// Modify the projection so that _ID explicitly refers to that of the objects being searched,
-		// not the tags. Without this, _ID is ambiguous and the query fails.
-		final String[] projection2 = ProviderUtils.addPrefixToProjection("c", projection);
+		/**
+		 * Adds the tag to the item. Duplicates are ignored.
+		 *
+		 * @param refClass
+		 * @param refId
+		 * @param tag
+		 * @return the row ID of the reference
+		 */
+		public long addRef(String refClass, String refId, String tag){
+			final long tagId = getTagId(tag);
+			mInsertRef.bindString(1, refClass);
+			mInsertRef.bindString(2, refId);
+			mInsertRef.bindLong(3, tagId);
+			return mInsertRef.executeInsert();
+		}
+
+		/**
+		 * @param refId
+		 *            the ID of the row in the tag references table
+		 */
+		public void removeRef(long refId){
+			mDeleteRef.bindLong(1, refId);
+			mDeleteRef.execute();
+		}
 
-		return qb.query(db, projection2, selection, selectionArgs,
-				"c."+TaggableItem._ID,
-				"COUNT ("+"c."+TaggableItem._ID+")="+tags.size(),
-				sortOrder);
+		public void close(){
+			mFindTag.close();
+			mInsertTag.close();
+			mInsertRef.close();
+			mDeleteRef.close();
+		}
 	}
 
 	private static final Pattern LOC_STRING_REGEX =  Pattern.compile("^([\\d\\.-]+),([\\d\\.-]+),([\\d\\.]+)");
+
+	/**
+	 * Queries the items within a distance of a point. The candidates are
+	 * found using the geocell index and are then filtered by their distance.
+	 * Unless another sort order is given, the closest items are first.
+	 *
+	 * @param locString "lon,lat,distance", with the distance in meters
+	 */
 	private Cursor queryByLocation(SQLiteQueryBuilder qb, SQLiteDatabase db, String locString, String locatableItemTable, String[] projection, String selection, String[] selectionArgs, String sortOrder){
 
 		qb.setTables(locatableItemTable);
+		final double[] loc = parseLocString(locString);
+		final double lon = loc[0];
+		final double lat = loc[1];
+		final double dist = loc[2];
+
+		final List<String> cells = Locatable.getGeocellCover(lat, lon, dist);
+		final String distance = Locatable.getDistanceExpression(lat, lon);
+
+		final String extraWhere = Locatable.getGeocellSelection(cells) + " AND " + distance + " <= " + Locatable.toDistanceExpressionValue(dist);
+
+		if (sortOrder == null){
+			sortOrder = distance;
+		}
+
+		return qb.query(db, projection, ProviderUtils.addExtraWhere(selection, extraWhere), ProviderUtils.addExtraWhereArgs(selectionArgs, Locatable.getGeocellSelectionArgs(cells)), null, null, sortOrder);
+	}
+
+	/**
+	 * Queries the k items nearest to a point, using a
+	 * {@link SQLiteGeocellQueryEngine}. Unless another sort order is given, the
+	 * closest items are first.
+	 *
+	 * @param locString "lon,lat,distance", with the maximum distance in meters
+	 * @param nearest the number of items to return
+	 */
+	private Cursor queryNearest(SQLiteQueryBuilder qb, SQLiteDatabase db, String locString, String nearest, String locatableItemTable, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+		qb.setTables(locatableItemTable);
+		final double[] loc = parseLocString(locString);
+
+		final int k;
+		try {
+			k = Integer.parseInt(nearest);
+		}catch (final NumberFormatException e){
+			throw new IllegalArgumentException("bad nearest count '"+nearest+"'");
+		}
+
+		final List<Object> baseArgs = new ArrayList<Object>();
+		if (selectionArgs != null){
+			for (final String arg : selectionArgs){
+				baseArgs.add(arg);
+			}
+		}
+		final List<Tuple<Long, Double>> results = new SQLiteGeocellQueryEngine(db, locatableItemTable)
+				.proximityFetch(new Point(loc[1], loc[0]), k, loc[2], new GeocellQuery(selection, baseArgs));
+
+		final StringBuilder ids = new StringBuilder();
+		final StringBuilder order = new StringBuilder();
+		order.append("CASE ").append(BaseColumns._ID);
+		for (int i = 0; i < results.size(); i++){
+			final long id = results.get(i).getFirst();
+			if (i > 0){
+				ids.append(',');
+			}
+			ids.append(id);
+			order.append(" WHEN ").append(id).append(" THEN ").append(i);
+		}
+		order.append(" END");
+
+		if (sortOrder == null && results.size() > 0){
+			sortOrder = order.toString();
+		}
+
+		return qb.query(db, projection, BaseColumns._ID + " IN (" + ids + ")", null, null, null, sortOrder);
+	}
+
+	private static final Pattern BBOX_STRING_REGEX = Pattern.compile("^([\\d\\.-]+),([\\d\\.-]+),([\\d\\.-]+),([\\d\\.-]+)");
+
+	/**
+	 * Queries the items within a bounding box. The resolution of the geocells
+	 * that are searched is picked by {@link Locatable#DEFAULT_COST_FUNCTION},
+	 * so this is cheap at any zoom level.
+	 *
+	 * @param bboxString "north,east,south,west", in degrees
+	 */
+	private Cursor queryByBoundingBox(SQLiteQueryBuilder qb, SQLiteDatabase db, String bboxString, String locatableItemTable, String[] projection, String selection, String[] selectionArgs, String sortOrder){
+		qb.setTables(locatableItemTable);
+		final Matcher m = BBOX_STRING_REGEX.matcher(bboxString);
+		if (!m.matches()){
+			throw new IllegalArgumentException("bad bounding box string '"+bboxString+"'");
+		}
+		final BoundingBox bbox = new BoundingBox(Double.valueOf(m.group(1)), Double.valueOf(m.group(2)), Double.valueOf(m.group(3)), Double.valueOf(m.group(4)));
+
+		final List<String> extraArgs = new ArrayList<String>();
+		final String extraWhere = Locatable.getBoundingBoxSelection(bbox, Locatable.DEFAULT_COST_FUNCTION, extraArgs);
+
+		return qb.query(db, projection, ProviderUtils.addExtraWhere(selection, extraWhere), ProviderUtils.addExtraWhereArgs(selectionArgs, extraArgs.toArray(new String[extraArgs.size()])), null, null, sortOrder);
+	}
+
+	/**
+	 * @param locString "lon,lat,distance"
+	 * @return {lon, lat, distance}
+	 */
+	private static double[] parseLocString(String locString){
 		final Matcher m = LOC_STRING_REGEX.matcher(locString);
 		if (!m.matches()){
 			throw new IllegalArgumentException("bad location string '"+locString+"'");
 		}
-		final String lon = m.group(1);
-		final String lat = m.group(2);
-		final String dist = m.group(3);
-
-		//final GeocellQuery gq = new GeocellQuery();
-		//GeocellUtils.compute(new Point(Double.valueOf(lat), Double.valueOf(lon)), resolution);
-		//String extraWhere = "(lat - 2) > ? AND (lon - 2) > ? AND (lat + 2) < ? AND (lat + 2) < ?";
-		final String[] extraArgs = {lat, lon};
-		return qb.query(db, projection, ProviderUtils.addExtraWhere(selection, Locatable.SELECTION_LAT_LON), ProviderUtils.addExtraWhereArgs(selectionArgs, extraArgs), null, null, sortOrder);
+		return new double[]{Double.valueOf(m.group(1)), Double.valueOf(m.group(2)), Double.valueOf(m.group(3))};
 	}
 
 	/**
@@ -693,12 +1469,25 @@ public class MediaProvider extends ContentProvider {
 	 */
 	public static final String CV_FLAG_DO_NOT_MARK_DIRTY = "_CV_FLAG_DO_NOT_MARK_DIRTY";
 
+	/**
+	 * Add this key to the values to tell update() to not notify observers of the change. This is
+	 * useful when making many updates at once, such as during a sync, as the caller can then
+	 * notify once when it's done.
+	 */
+	public static final String CV_FLAG_DO_NOT_NOTIFY = "_CV_FLAG_DO_NOT_NOTIFY";
+
 	@Override
 	public int update(Uri uri, ContentValues values, String where,
 			String[] whereArgs) {
 		final SQLiteDatabase db = dbHelper.getWritableDatabase();
 		int count;
 		final long id;
+
+		if (uriMatcher.match(uri) == MATCHER_MAINTENANCE){
+			final Boolean analyze = values.getAsBoolean(CV_MAINTENANCE_ANALYZE);
+			return (int) maintain(db, analyze != null && analyze);
+		}
+
 		boolean needSync = false;
 		final boolean canSync = canSync(uri);
 		if (!values.containsKey(CV_FLAG_DO_NOT_MARK_DIRTY) &&
@@ -707,6 +1496,8 @@ public class MediaProvider extends ContentProvider {
 			needSync = true;
 		}
 		values.remove(CV_FLAG_DO_NOT_MARK_DIRTY);
+		boolean notify = !values.containsKey(CV_FLAG_DO_NOT_NOTIFY);
+		values.remove(CV_FLAG_DO_NOT_NOTIFY);
 
 		final int code = uriMatcher.match(uri);
 		switch (code){
@@ -759,46 +1550,12 @@ public class MediaProvider extends ContentProvider {
 		}
 
 		case MATCHER_ITEM_TAGS:{
-			final String[] tag_projection = {Tag._REF_ID, Tag._REF_CLASS, Tag._NAME};
-
-			final Cursor tagC = query(uri, tag_projection, null, null, null);
-			final int tagIdx = tagC.getColumnIndex(Tag._NAME);
-			final Set<String> existingTags = new HashSet<String>(tagC.getCount());
-			for (tagC.moveToFirst(); !tagC.isAfterLast(); tagC.moveToNext()){
-				existingTags.add(tagC.getString(tagIdx));
-			}
-			tagC.close();
-
-			final Set<String> newTags = new HashSet<String>(TaggableItem.getList(values.getAsString(Tag.PATH)));
-
-			// If the CV_TAG_PREFIX key is present, only work with tags that have that prefix.
-			if (values.containsKey(TaggableItem.CV_TAG_PREFIX)){
-				final String prefix = values.getAsString(TaggableItem.CV_TAG_PREFIX);
-				TaggableItem.filterTagsInPlace(prefix, newTags);
-				TaggableItem.filterTagsInPlace(prefix, existingTags);
-				values.remove(TaggableItem.CV_TAG_PREFIX);
-			}
-
-			// tags that need to be removed.
-			final Set<String> toDelete = new HashSet<String>(existingTags);
-			toDelete.removeAll(newTags);
-
-			final List<String> toDeleteWhere = new ArrayList<String>(toDelete);
-			for (int i = 0; i < toDeleteWhere.size(); i++ ){
-				toDeleteWhere.set(i, Tag._NAME + "=\'" + toDeleteWhere.get(i) + "'");
-			}
-			if (toDeleteWhere.size() > 0){
-				final String delWhere = ListUtils.join(toDeleteWhere, " OR ");
-				delete(uri, delWhere, null);
+			final List<String> pathSegments = uri.getPathSegments();
+			count = updateTags(db, pathSegments.get(pathSegments.size() - 3), pathSegments.get(pathSegments.size() - 2), values);
+			if (count == 0){
+				notify = false;
 			}
-
-			// duplicates will be ignored.
-			final ContentValues cvAdd = new ContentValues();
-			cvAdd.put(Tag.PATH, TaggableItem.toListString(newTags));
-			insert(uri, cvAdd);
-			count = 0;
 			break;
-
 		}
 
 		case MATCHER_ITINERARY_DIR:{
@@ -820,7 +1577,9 @@ public class MediaProvider extends ContentProvider {
 				}
 		}
 
-		getContext().getContentResolver().notifyChange(uri, null);
+		if (notify){
+			notifyChange(uri);
+		}
 		if (needSync && canSync){
 
 			LocastSyncService.startSync(getContext(), uri, false);
@@ -872,14 +1631,18 @@ public class MediaProvider extends ContentProvider {
 
 			final List<String> pathSegments = uri.getPathSegments();
 
-			count = db.delete(TAG_TABLE_NAME,
-					ProviderUtils.addExtraWhere(where, 			Tag._REF_CLASS + "=?", 						Tag._REF_ID+"=?"),
+			// the selection can refer to the tag names, so it's applied to the view
+			count = db.delete(TAG_REFS_TABLE_NAME,
+					Tag._ID + " IN (SELECT " + Tag._ID + " FROM " + TAG_TABLE_NAME + " WHERE "
+					+ ProviderUtils.addExtraWhere(where, 			Tag._REF_CLASS + "=?", 						Tag._REF_ID+"=?") + ")",
 					ProviderUtils.addExtraWhereArgs(whereArgs, 	pathSegments.get(pathSegments.size() - 3), 	pathSegments.get(pathSegments.size() - 2)));
 			break;
 		}
 
 		case MATCHER_TAG_DIR:{
-			count = db.delete(TAG_TABLE_NAME, where, whereArgs);
+			count = db.delete(TAG_REFS_TABLE_NAME, where == null ? null
+					: Tag._ID + " IN (SELECT " + Tag._ID + " FROM " + TAG_TABLE_NAME + " WHERE " + where + ")",
+					whereArgs);
 			break;
 		}
 
@@ -892,6 +1655,10 @@ public class MediaProvider extends ContentProvider {
 			count = db.delete(ITINERARY_TABLE_NAME, ProviderUtils.addExtraWhere(where, Itinerary._ID+"=?"), ProviderUtils.addExtraWhereArgs(whereArgs, itemId));
 		}break;
 
+		case MATCHER_SYNC_METRICS_DIR:{
+			count = db.delete(SYNC_METRICS_TABLE_NAME, where, whereArgs);
+		}break;
+
 			default:
 				if (mDBHelperMapper.canDelete(code)){
 					count = mDBHelperMapper.delete(code, this, db, uri, where, whereArgs);
@@ -899,13 +1666,203 @@ public class MediaProvider extends ContentProvider {
 					throw new IllegalArgumentException("Unknown URI: "+uri);
 				}
 		}
-		if (!db.inTransaction()){
-			db.execSQL("VACUUM");
+		if (count > 0 && !db.inTransaction()){
+			requestMaintenanceIfNeeded(db);
 		}
-		getContext().getContentResolver().notifyChange(uri, null, true);
+		notifyChange(uri);
 		return count;
 	}
 
+	/**
+	 * Applies the operations in a single transaction. If an operation allows
+	 * it, the transaction is committed and others are let in before it is
+	 * applied. Observers are notified once per changed URI at the end.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		final SQLiteDatabase db = dbHelper.getWritableDatabase();
+		final boolean outermost = beginBatch();
+		db.beginTransaction();
+		try {
+			final int count = operations.size();
+			final ContentProviderResult[] results = new ContentProviderResult[count];
+			for (int i = 0; i < count; i++){
+				final ContentProviderOperation operation = operations.get(i);
+				if (i > 0 && operation.isYieldAllowed()){
+					db.yieldIfContendedSafely();
+				}
+				results[i] = operation.apply(this, results, i);
+			}
+			db.setTransactionSuccessful();
+			return results;
+		}finally{
+			db.endTransaction();
+			endBatch(outermost);
+			if (outermost){
+				requestMaintenanceIfNeeded(db);
+			}
+		}
+	}
+
+	/**
+	 * Inserts all the values in a single transaction, yielding between rows
+	 * if another thread is waiting. Observers are notified once at the end.
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		final SQLiteDatabase db = dbHelper.getWritableDatabase();
+		final boolean outermost = beginBatch();
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < values.length; i++){
+				if (i > 0){
+					db.yieldIfContendedSafely();
+				}
+				insert(uri, values[i]);
+			}
+			db.setTransactionSuccessful();
+			return values.length;
+		}finally{
+			db.endTransaction();
+			endBatch(outermost);
+		}
+	}
+
+	/**
+	 * Notifies observers of a change to the given URI. Within a batch, this is
+	 * deferred until the batch is done.
+	 *
+	 * @param uri
+	 */
+	private void notifyChange(Uri uri){
+		final Set<Uri> batch = mBatchNotifications.get();
+		if (batch != null){
+			batch.add(uri);
+		}else{
+			getContext().getContentResolver().notifyChange(uri, null);
+		}
+	}
+
+	/**
+	 * Starts deferring notifications on this thread.
+	 *
+	 * @return true if this is the outermost batch, false if it's nested in
+	 *         another one
+	 */
+	private boolean beginBatch(){
+		if (mBatchNotifications.get() != null){
+			return false;
+		}
+		mBatchNotifications.set(new LinkedHashSet<Uri>());
+		return true;
+	}
+
+	/**
+	 * Sends the notifications deferred by the outermost batch. A notification
+	 * of a URI reaches the observers of all the URIs under it too, so URIs
+	 * whose parent changed are skipped.
+	 *
+	 * @param outermost
+	 *            the result of {@link #beginBatch()}
+	 */
+	private void endBatch(boolean outermost){
+		if (!outermost){
+			return;
+		}
+		final Set<Uri> batch = mBatchNotifications.get();
+		mBatchNotifications.set(null);
+
+		final ContentResolver cr = getContext().getContentResolver();
+		for (final Uri uri : batch){
+			if (!hasAncestorIn(uri, batch)){
+				cr.notifyChange(uri, null);
+			}
+		}
+	}
+
+	private static boolean hasAncestorIn(Uri uri, Set<Uri> uris){
+		for (Uri parent = uri; parent.getPathSegments().size() > 1;){
+			parent = ProviderUtils.removeLastPathSegment(parent);
+			if (uris.contains(parent)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Starts the {@link MaintenanceService} if the database has more than
+	 * {@link R.integer#db_maintenance_free_pages} free pages. This is much
+	 * cheaper than reclaiming them on every delete.
+	 *
+	 * @param db
+	 */
+	private void requestMaintenanceIfNeeded(SQLiteDatabase db){
+		final long now = System.currentTimeMillis();
+		if (now - mLastMaintenanceRequest < MAINTENANCE_REQUEST_INTERVAL){
+			return;
+		}
+		final long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+		if (freePages > mMaintenanceFreePages){
+			mLastMaintenanceRequest = now;
+			if (DEBUG){
+				Log.d(TAG, freePages + " free pages; requesting maintenance");
+			}
+			MaintenanceService.start(getContext(), false);
+		}
+	}
+
+	/**
+	 * @param db
+	 * @return true if the database is using incremental auto_vacuum
+	 */
+	private static boolean isIncrementalVacuum(SQLiteDatabase db){
+		return DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL;
+	}
+
+	/**
+	 * Returns all free pages to the filesystem and optionally refreshes the
+	 * statistics used by the query planner.
+	 *
+	 * Databases that don't use incremental auto_vacuum yet are converted
+	 * first, which takes a full VACUUM. This includes new databases, as
+	 * android_metadata is created before {@link DatabaseHelper#onCreate(SQLiteDatabase)}
+	 * is called.
+	 *
+	 * @param db
+	 * @param analyze
+	 *            if true, runs ANALYZE too
+	 * @return the number of bytes that were reclaimed
+	 */
+	private long maintain(SQLiteDatabase db, boolean analyze){
+		if (!isIncrementalVacuum(db)){
+			Log.i(TAG, "converting database to incremental auto_vacuum");
+			db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+			db.execSQL("VACUUM");
+		}
+
+		final long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+		final long freeBefore = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+
+		// incremental_vacuum frees one page per step, so the whole result needs to be read
+		final Cursor c = db.rawQuery("PRAGMA incremental_vacuum", null);
+		try {
+			c.getCount();
+		}finally{
+			c.close();
+		}
+
+		if (analyze){
+			db.execSQL("ANALYZE");
+		}
+
+		final long freeAfter = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+		final long reclaimed = (freeBefore - freeAfter) * pageSize;
+		Log.i(TAG, "maintenance: " + freeBefore + " free pages before, " + freeAfter + " after; reclaimed " + reclaimed + " bytes");
+		return reclaimed;
+	}
+
 	/**
 	 * @param cr
 	 * @param uri
@@ -1115,6 +2072,7 @@ public class MediaProvider extends ContentProvider {
 
 		// tag list
 		uriMatcher.addURI(AUTHORITY, Tag.PATH, MATCHER_TAG_DIR);
+		uriMatcher.addURI(AUTHORITY, Tag.PATH + "/" + Tag.POPULAR_URI.getLastPathSegment(), MATCHER_TAG_POPULAR);
 
 		// Itineraries
 		uriMatcher.addURI(AUTHORITY, Itinerary.PATH, 							MATCHER_ITINERARY_DIR);
@@ -1122,6 +2080,11 @@ public class MediaProvider extends ContentProvider {
 		uriMatcher.addURI(AUTHORITY, Itinerary.PATH + "/#/" + Cast.PATH,		MATCHER_CHILD_CAST_DIR);
 		uriMatcher.addURI(AUTHORITY, Itinerary.PATH + "/#/" + Cast.PATH + "/#", MATCHER_CHILD_CAST_ITEM);
 
+		// sync metrics
+		uriMatcher.addURI(AUTHORITY, SyncMetric.PATH,							MATCHER_SYNC_METRICS_DIR);
+
+		uriMatcher.addURI(AUTHORITY, MAINTENANCE_PATH,								MATCHER_MAINTENANCE);
+
 		mDBHelperMapper.addDirMapping(MATCHER_CHILD_CAST_DIR, ITINERARY_CASTS_DBHELPER, DBHelperMapper.TYPE_ALL);
 		mDBHelperMapper.addItemMapping(MATCHER_CHILD_CAST_ITEM, ITINERARY_CASTS_DBHELPER, DBHelperMapper.TYPE_ALL);
 
@@ -0,0 +1,196 @@
+package edu.mit.mobile.android.locast.data;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/**
+ * A compact binary encoding of paths, in the spirit of Google's encoded
+ * polylines.
+ *
+ * The encoding starts with a format version byte and the number of points.
+ * Each point follows as the difference from the previous one of its latitude
+ * and longitude, in microdegrees. Neighbouring points of a path are close
+ * together, so the differences are small. They're zigzag encoded, so that
+ * small negative numbers are small too, and then written as varints: 7 bits
+ * per byte, least significant first, with the high bit set on all but the
+ * last byte. Most points take 2-4 bytes, rather than the ~20 of decimal text.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class PolylineCodec {
+
+	public static final int FORMAT_VERSION = 1;
+
+	// the most bytes a 32 bit varint can take
+	private static final int MAX_VARINT_SIZE = 5;
+
+	/**
+	 * @param latE6
+	 * @param lonE6
+	 * @param count
+	 *            the number of points in the arrays to encode
+	 * @return the encoded path
+	 */
+	public static byte[] encode(int[] latE6, int[] lonE6, int count) {
+		final byte[] buf = new byte[1 + MAX_VARINT_SIZE + count * 2 * MAX_VARINT_SIZE];
+		int pos = 0;
+		buf[pos++] = FORMAT_VERSION;
+		pos = writeVarint(buf, pos, count);
+
+		int prevLat = 0, prevLon = 0;
+		for (int i = 0; i < count; i++) {
+			pos = writeVarint(buf, pos, zigzag(latE6[i] - prevLat));
+			pos = writeVarint(buf, pos, zigzag(lonE6[i] - prevLon));
+			prevLat = latE6[i];
+			prevLon = lonE6[i];
+		}
+
+		final byte[] encoded = new byte[pos];
+		System.arraycopy(buf, 0, encoded, 0, pos);
+		return encoded;
+	}
+
+	/**
+	 * @param encoded
+	 *            an encoded path. Can be null.
+	 * @return the number of points in the path
+	 * @throws IllegalArgumentException
+	 *             if the encoding isn't recognized
+	 */
+	public static int getCount(byte[] encoded) {
+		if (encoded == null || encoded.length == 0) {
+			return 0;
+		}
+		checkVersion(encoded);
+		return readVarint(encoded, new int[] { 1 });
+	}
+
+	/**
+	 * Decodes the path into the given arrays, which must be at least
+	 * {@link #getCount(byte[])} long.
+	 *
+	 * @param encoded
+	 *            an encoded path. Can be null.
+	 * @param latE6
+	 * @param lonE6
+	 * @return the number of points decoded
+	 * @throws IllegalArgumentException
+	 *             if the encoding isn't recognized or is truncated
+	 */
+	public static int decode(byte[] encoded, int[] latE6, int[] lonE6) {
+		if (encoded == null || encoded.length == 0) {
+			return 0;
+		}
+		checkVersion(encoded);
+		final int[] pos = { 1 };
+		final int count = readVarint(encoded, pos);
+
+		int lat = 0, lon = 0;
+		for (int i = 0; i < count; i++) {
+			lat += unzigzag(readVarint(encoded, pos));
+			lon += unzigzag(readVarint(encoded, pos));
+			latE6[i] = lat;
+			lonE6[i] = lon;
+		}
+		return count;
+	}
+
+	/**
+	 * Encodes a path in the old format: comma-separated latitude, longitude
+	 * pairs in microdegrees. This is used to migrate existing data.
+	 *
+	 * @param text
+	 * @return the encoded path
+	 */
+	public static byte[] encodeText(String text) {
+		final int len = text.length();
+		int values = len > 0 ? 1 : 0;
+		for (int i = 0; i < len; i++) {
+			if (text.charAt(i) == ',') {
+				values++;
+			}
+		}
+		final int count = values / 2;
+		final int[] latE6 = new int[count];
+		final int[] lonE6 = new int[count];
+
+		int start = 0;
+		for (int i = 0; i < count * 2; i++) {
+			int end = text.indexOf(',', start);
+			if (end == -1) {
+				end = len;
+			}
+			final int value = Integer.parseInt(text.substring(start, end));
+			if (i % 2 == 0) {
+				latE6[i / 2] = value;
+			} else {
+				lonE6[i / 2] = value;
+			}
+			start = end + 1;
+		}
+		return encode(latE6, lonE6, count);
+	}
+
+	private static void checkVersion(byte[] encoded) {
+		if (encoded[0] != FORMAT_VERSION) {
+			throw new IllegalArgumentException("unknown path format " + encoded[0]);
+		}
+	}
+
+	private static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static int writeVarint(byte[] buf, int pos, int value) {
+		while ((value & ~0x7f) != 0) {
+			buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * @param buf
+	 * @param pos
+	 *            the position to read from. Updated to just after the varint.
+	 * @return the value
+	 */
+	private static int readVarint(byte[] buf, int[] pos) {
+		int value = 0;
+		int shift = 0;
+		int p = pos[0];
+		while (true) {
+			if (p >= buf.length || shift >= 7 * MAX_VARINT_SIZE) {
+				throw new IllegalArgumentException("truncated path");
+			}
+			final byte b = buf[p++];
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+		}
+		pos[0] = p;
+		return value;
+	}
+}
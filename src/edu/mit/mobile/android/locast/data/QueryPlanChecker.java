@@ -0,0 +1,160 @@
+package edu.mit.mobile.android.locast.data;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteQuery;
+import android.util.Log;
+import edu.mit.mobile.android.locast.Constants;
+
+/**
+ * A cursor factory that runs <code>EXPLAIN QUERY PLAN</code> on each distinct
+ * query made through it and reports the queries that filter a table without
+ * using an index. Queries without a WHERE clause are expected to read the whole
+ * table and aren't reported.
+ *
+ * This is off unless {@link Constants#DEBUG} is set or the log level of
+ * {@link #TAG} is DEBUG when the class is loaded:
+ *
+ * <pre>
+ * adb shell setprop log.tag.QueryPlanChecker DEBUG
+ * </pre>
+ *
+ * The plan of each reported query is logged as a warning.
+ *
+ * Queries that only differ in their numeric literals, such as the IDs that
+ * the provider puts in its selections, are only checked once.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class QueryPlanChecker implements CursorFactory {
+	public static final String TAG = QueryPlanChecker.class.getSimpleName();
+
+	private static final String EXPLAIN = "EXPLAIN QUERY PLAN ";
+
+	// numbers, and then lists of them, are replaced to tell queries apart
+	private static final Pattern NUMBER = Pattern.compile("\\b\\d+(\\.\\d+)?\\b");
+	private static final Pattern LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+
+	// a limit on the number of distinct queries that are remembered
+	private static final int MAX_CHECKED = 1000;
+
+	private static volatile boolean sEnabled = Constants.DEBUG || Log.isLoggable(TAG, Log.DEBUG);
+
+	private static final Set<String> sChecked = new HashSet<String>();
+	private static final List<String> sUnindexed = new ArrayList<String>();
+
+	public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable,
+			SQLiteQuery query) {
+		if (sEnabled) {
+			check(db, query);
+		}
+		return new SQLiteCursor(db, masterQuery, editTable, query);
+	}
+
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	/**
+	 * @return the SQL of the queries that were reported, in the order they
+	 *         were made
+	 */
+	public static List<String> getUnindexedQueries() {
+		synchronized (sChecked) {
+			return new ArrayList<String>(sUnindexed);
+		}
+	}
+
+	/**
+	 * Forgets the queries that have been checked, so they're checked again.
+	 * Once {@link #MAX_CHECKED} distinct queries have been checked, no more
+	 * are until this is called.
+	 */
+	public static void reset() {
+		synchronized (sChecked) {
+			sChecked.clear();
+			sUnindexed.clear();
+		}
+	}
+
+	private static void check(SQLiteDatabase db, SQLiteQuery query) {
+		// this is the only way to get the SQL back out of the query
+		final String sql = query.toString().replaceFirst("^SQLiteQuery: ", "");
+
+		if (sql.startsWith(EXPLAIN)) {
+			return;
+		}
+		final String key = LIST.matcher(NUMBER.matcher(sql).replaceAll("?")).replaceAll("?");
+		synchronized (sChecked) {
+			if (sChecked.size() >= MAX_CHECKED || !sChecked.add(key)) {
+				return;
+			}
+		}
+
+		// any parameters are left unbound, which doesn't change the plan
+		final Cursor plan = db.rawQuery(EXPLAIN + sql, null);
+		final StringBuilder planText = new StringBuilder();
+		boolean fullScan = false;
+		try {
+			final int detailCol = plan.getColumnIndexOrThrow("detail");
+			while (plan.moveToNext()) {
+				final String detail = plan.getString(detailCol);
+				planText.append('\n').append(detail);
+				fullScan |= isFullScan(detail);
+			}
+		} finally {
+			plan.close();
+		}
+
+		if (fullScan && sql.toUpperCase().contains(" WHERE ")) {
+			Log.w(TAG, "query doesn't use an index: " + sql + planText);
+			synchronized (sChecked) {
+				sUnindexed.add(sql);
+			}
+		}
+	}
+
+	/**
+	 * @param detail
+	 *            a line of a query plan
+	 * @return true if it's a scan of a whole table
+	 */
+	private static boolean isFullScan(String detail) {
+		if (detail.contains("INDEX") || detail.contains("PRIMARY KEY") || detail.contains("SUBQUERY")) {
+			return false;
+		}
+		// "SCAN TABLE x" since SQLite 3.7.4, "TABLE x" before
+		return detail.startsWith("SCAN ") || detail.startsWith("TABLE ");
+	}
+}
@@ -0,0 +1,281 @@
+package edu.mit.mobile.android.locast.data;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import com.beoui.geocell.GeocellQueryEngine;
+import com.beoui.geocell.GeocellUtils;
+import com.beoui.geocell.model.GeocellQuery;
+import com.beoui.geocell.model.Point;
+import com.beoui.geocell.model.Tuple;
+
+import edu.mit.mobile.android.content.ProviderUtils;
+import edu.mit.mobile.android.locast.Constants;
+
+/**
+ * A {@link GeocellQueryEngine} that looks up the items of a {@link Locatable}
+ * table by their {@link Locatable.Columns#_GEOCELL}. On top of this,
+ * {@link #proximityFetch(Point, int, double, GeocellQuery)} finds the nearest
+ * items to a point without needing to fetch a whole bounding box.
+ *
+ * The {@link GeocellQuery}'s base query is an SQL selection and its parameters
+ * are the selection arguments.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class SQLiteGeocellQueryEngine implements GeocellQueryEngine {
+	private static final String TAG = SQLiteGeocellQueryEngine.class.getSimpleName();
+	private static final boolean DEBUG = Constants.DEBUG;
+
+	private static final String[] CANDIDATE_PROJECTION = {
+		BaseColumns._ID,
+		Locatable.Columns._LATITUDE,
+		Locatable.Columns._LONGITUDE
+	};
+
+	private static final int[] NO_DIRECTION = {0, 0};
+
+	private final SQLiteDatabase mDb;
+	private final String mTable;
+
+	/**
+	 * @param db
+	 * @param table
+	 *            a table with the {@link Locatable.Columns}
+	 */
+	public SQLiteGeocellQueryEngine(SQLiteDatabase db, String table) {
+		mDb = db;
+		mTable = table;
+	}
+
+	/**
+	 * An item that was found in the given cells. Pass {@code Candidate.class}
+	 * as the entity class of {@link #query(GeocellQuery, List, Class)}.
+	 *
+	 */
+	public static class Candidate {
+		public final long id;
+		public final Point location;
+
+		Candidate(long id, Point location) {
+			this.id = id;
+			this.location = location;
+		}
+	}
+
+	/**
+	 * Finds the items that are inside any of the given geocells.
+	 *
+	 * @param baseQuery
+	 *            an additional selection. Can be null.
+	 * @param curGeocellsUnique
+	 *            the cells to search. They can be of any resolution up to
+	 *            {@link Locatable#GEOCELL_RESOLUTION}.
+	 * @param entityClass
+	 *            must be {@link Candidate}
+	 * @return the items that were found
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> query(GeocellQuery baseQuery, List<String> curGeocellsUnique,
+			Class<T> entityClass) {
+		if (!Candidate.class.equals(entityClass)) {
+			throw new IllegalArgumentException("only " + Candidate.class.getSimpleName()
+					+ " can be queried");
+		}
+		final List<T> results = new ArrayList<T>();
+		if (curGeocellsUnique.isEmpty()) {
+			return results;
+		}
+
+		String selection = Locatable.getGeocellSelection(curGeocellsUnique);
+		String[] selectionArgs = Locatable.getGeocellSelectionArgs(curGeocellsUnique);
+
+		if (baseQuery != null && baseQuery.getBaseQuery() != null) {
+			selection = ProviderUtils.addExtraWhere(baseQuery.getBaseQuery(), selection);
+			final List<Object> params = baseQuery.getParameters();
+			if (params != null) {
+				final String[] baseArgs = new String[params.size()];
+				for (int i = 0; i < baseArgs.length; i++) {
+					baseArgs[i] = String.valueOf(params.get(i));
+				}
+				selectionArgs = ProviderUtils.addExtraWhereArgs(baseArgs, selectionArgs);
+			}
+		}
+
+		final Cursor c = mDb.query(mTable, CANDIDATE_PROJECTION, selection, selectionArgs, null,
+				null, null);
+		try {
+			while (c.moveToNext()) {
+				results.add((T) new Candidate(c.getLong(0), new Point(c.getDouble(1), c.getDouble(2))));
+			}
+		} finally {
+			c.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Finds the items closest to the given point. This starts with the cell
+	 * containing the point and searches adjacent cells, then their parents,
+	 * until it has found enough items and no unsearched cell could contain a
+	 * closer one. This is the proximity fetch of Roman Nurik's geomodel.
+	 *
+	 * @param center
+	 * @param maxResults
+	 *            the maximum number of items to return
+	 * @param maxDistance
+	 *            the maximum distance of an item, in meters. 0 for no limit.
+	 * @param baseQuery
+	 *            an additional selection. Can be null.
+	 * @return the IDs of the items, paired with their distance in meters,
+	 *         closest first
+	 */
+	public List<Tuple<Long, Double>> proximityFetch(Point center, int maxResults,
+			double maxDistance, GeocellQuery baseQuery) {
+		final List<Tuple<Long, Double>> results = new ArrayList<Tuple<Long, Double>>();
+		final HashMap<Long, Tuple<Long, Double>> resultsById = new HashMap<Long, Tuple<Long, Double>>();
+		final Set<String> searchedCells = new HashSet<String>();
+
+		List<String> curGeocells = new ArrayList<String>();
+		curGeocells.add(GeocellUtils.compute(center, Locatable.GEOCELL_RESOLUTION));
+
+		List<Tuple<int[], Double>> sortedEdges = new ArrayList<Tuple<int[], Double>>();
+		sortedEdges.add(new Tuple<int[], Double>(NO_DIRECTION, 0.0));
+
+		int queries = 0;
+
+		while (!curGeocells.isEmpty()) {
+			final double closestPossibleNextResultDist = sortedEdges.get(0).getSecond();
+			if (maxDistance > 0 && closestPossibleNextResultDist > maxDistance) {
+				break;
+			}
+
+			final List<String> curGeocellsUnique = new ArrayList<String>();
+			for (final String cell : curGeocells) {
+				if (searchedCells.add(cell)) {
+					curGeocellsUnique.add(cell);
+				}
+			}
+
+			final List<Candidate> candidates = query(baseQuery, curGeocellsUnique, Candidate.class);
+			queries++;
+
+			for (final Candidate candidate : candidates) {
+				final double distance = GeocellUtils.distance(center, candidate.location);
+				if ((maxDistance > 0 && distance > maxDistance) || resultsById.containsKey(candidate.id)) {
+					continue;
+				}
+				final Tuple<Long, Double> result = new Tuple<Long, Double>(candidate.id, distance);
+				resultsById.put(candidate.id, result);
+				results.add(result);
+			}
+
+			Collections.sort(results, DISTANCE_COMPARATOR);
+			while (results.size() > maxResults) {
+				resultsById.remove(results.remove(results.size() - 1).getFirst());
+			}
+
+			sortedEdges = GeocellUtils.distanceSortedEdges(curGeocells, center);
+
+			// Anything outside of the searched cells is at least as far as
+			// their nearest edge. If that's past the farthest result, nothing
+			// closer can be found, whether by growing the search or moving
+			// on to the parent.
+			if (results.size() >= maxResults
+					&& sortedEdges.get(0).getSecond() >= results.get(maxResults - 1).getSecond()) {
+				break;
+			}
+
+			// Search the adjacent cells, making up a 2x2 square, before moving
+			// on to the parent of the ones that have been searched. The
+			// parent is searched right away if there's nothing nearby or if
+			// there are no adjacent cells because this is the edge of the grid.
+			boolean grew = false;
+			if (results.isEmpty()) {
+				// there's no point in looking at adjacent cells
+
+			} else if (curGeocells.size() == 1) {
+				// add the cell in the direction of the nearest edge
+				grew = addIfNotNull(curGeocells,
+						GeocellUtils.adjacent(curGeocells.get(0), sortedEdges.get(0).getFirst()));
+
+			} else if (curGeocells.size() == 2) {
+				// add the cells in the perpendicular direction to make a 2x2 square
+				final boolean sameRow = GeocellUtils.collinear(curGeocells.get(0), curGeocells.get(1),
+						false);
+				int[] perpendicular = null;
+				for (final Tuple<int[], Double> edge : sortedEdges) {
+					if ((edge.getFirst()[0] == 0) == sameRow) {
+						perpendicular = edge.getFirst();
+						break;
+					}
+				}
+				for (final String cell : new ArrayList<String>(curGeocells)) {
+					grew |= addIfNotNull(curGeocells, GeocellUtils.adjacent(cell, perpendicular));
+				}
+			}
+
+			if (!grew) {
+				final String parent = curGeocells.get(0).substring(0, curGeocells.get(0).length() - 1);
+				if (parent.length() == 0) {
+					break;
+				}
+				curGeocells = new ArrayList<String>();
+				curGeocells.add(parent);
+			}
+		}
+
+		if (DEBUG) {
+			Log.d(TAG, "proximity fetch of " + maxResults + " from " + mTable + " found "
+					+ results.size() + " in " + queries + " queries");
+		}
+		return results;
+	}
+
+	/**
+	 * @param cells
+	 * @param cell
+	 * @return true if the cell was added
+	 */
+	private static boolean addIfNotNull(List<String> cells, String cell) {
+		if (cell != null) {
+			cells.add(cell);
+			return true;
+		}
+		return false;
+	}
+
+	private static final Comparator<Tuple<Long, Double>> DISTANCE_COMPARATOR = new Comparator<Tuple<Long, Double>>() {
+		public int compare(Tuple<Long, Double> o1, Tuple<Long, Double> o2) {
+			return o1.getSecond().compareTo(o2.getSecond());
+		}
+	};
+}
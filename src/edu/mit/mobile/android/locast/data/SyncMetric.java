@@ -0,0 +1,76 @@
+package edu.mit.mobile.android.locast.data;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * The timing of a single sync target, broken down by phase. Only the most
+ * recent {@link #MAX_ROWS} are kept. All times are in milliseconds.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class SyncMetric implements BaseColumns {
+	public final static String
+		_TARGET			= "target",
+		_STARTED		= "started",
+		_TOTAL_TIME		= "total_time",
+		_RESPONSE_TIME	= "response_time",	// connect + time to first byte
+		_TRANSFER_TIME	= "transfer_time",	// reading the body
+		_PARSE_TIME		= "parse_time",		// splitting the body into JSON objects
+		_MAP_TIME		= "map_time",		// fromJSON() mapping to ContentValues
+		_APPLY_TIME		= "apply_time",		// applyBatch()
+		_POST_SYNC_TIME	= "post_sync_time",	// onPostSyncItem() handlers
+		_UPLOAD_TIME	= "upload_time",
+		_BYTES			= "bytes",
+		_ITEMS			= "items",
+		_NOT_MODIFIED	= "not_modified",
+		_ERROR			= "error";
+
+	public final static String[] DEFAULT_PROJECTION = {
+		_ID,
+		_TARGET,
+		_STARTED,
+		_TOTAL_TIME,
+		_RESPONSE_TIME,
+		_TRANSFER_TIME,
+		_PARSE_TIME,
+		_MAP_TIME,
+		_APPLY_TIME,
+		_POST_SYNC_TIME,
+		_UPLOAD_TIME,
+		_BYTES,
+		_ITEMS,
+		_NOT_MODIFIED,
+		_ERROR
+	};
+
+	public final static String SORT_DEFAULT = _STARTED + " DESC";
+
+	/**
+	 * The number of rows that are kept. Older rows are removed as new ones
+	 * are added.
+	 */
+	public final static int MAX_ROWS = 500;
+
+	public final static String PATH = "sync_metrics";
+	public final static Uri CONTENT_URI = Uri
+			.parse("content://"+MediaProvider.AUTHORITY+"/"+PATH);
+}
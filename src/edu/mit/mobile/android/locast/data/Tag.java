@@ -30,14 +30,38 @@ import edu.mit.mobile.android.utils.ListUtils;
 public class Tag implements BaseColumns {
 	public final static String _REF_ID   = "ref_id",
 							   _REF_CLASS= "ref_class",
-							   _NAME     = "name";
+							   _NAME     = "name",
+							   _TAG_ID   = "tag_id",
+							   _ITEM_COUNT = "item_count";
 
 	public final static String[] DEFAULT_PROJECTION = {_REF_ID, _REF_CLASS, _NAME};
+	public final static String[] POPULAR_PROJECTION = {_NAME, _ITEM_COUNT};
 	public final static String TAG_DELIM = ",";
 	public final static String PATH = "tags";
 	public final static Uri CONTENT_URI = Uri
 			.parse("content://"+MediaProvider.AUTHORITY+"/"+PATH);
 
+	/**
+	 * The tags in use, with the number of items that use them in
+	 * {@link #_ITEM_COUNT}. The most used are first.
+	 *
+	 * @see #getPopularUri(int)
+	 */
+	public final static Uri POPULAR_URI = Uri.withAppendedPath(CONTENT_URI, "popular");
+
+	/**
+	 * Limits the number of results of {@link #POPULAR_URI}.
+	 */
+	public final static String LIMIT_QUERY_PARAMETER = "limit";
+
+	/**
+	 * @param limit
+	 * @return a URI of the given number of most used tags
+	 */
+	public static Uri getPopularUri(int limit){
+		return POPULAR_URI.buildUpon().appendQueryParameter(LIMIT_QUERY_PARAMETER, String.valueOf(limit)).build();
+	}
+
 	/**
 	 * Given a tag query string, return the set of tags it represents.
 	 *
@@ -20,12 +20,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.json.JSONArray;
@@ -72,6 +69,18 @@ public abstract class TaggableItem extends JsonSyncableItem {
 	 */
 	public static final String SERVER_QUERY_PARAMETER = "tags";
 
+	/**
+	 * The name of the query parameter to search the items' text.
+	 *
+	 * @see #getSearchUri(Uri, String)
+	 */
+	public static final String SEARCH_QUERY_PARAMETER = "q";
+
+	/**
+	 * In search results, an excerpt of the matching text with the matches in &lt;b&gt; tags.
+	 */
+	public static final String _SEARCH_SNIPPET = "snippet";
+
 	/**
 	 * An item that will sync "tags" and "system_tags" fields.
 	 * @author steve
@@ -155,7 +164,8 @@ public abstract class TaggableItem extends JsonSyncableItem {
 					tags.add(ja.optString(i));
 				}
 				//Log.d(TAG, uri + " has the following "+remoteKey +": "+ tags);
-				TaggableItem.putTags(context.getContentResolver(), uri, tags, prefix);
+				// the sync engine notifies once per batch
+				TaggableItem.putTags(context.getContentResolver(), uri, tags, prefix, false);
 			}
 		}
 	}
@@ -236,10 +246,36 @@ public abstract class TaggableItem extends JsonSyncableItem {
 	 * @param prefix
 	 */
 	public static void putTags(ContentResolver cr, Uri item, Collection<String> tags, String prefix) {
+		putTags(cr, item, tags, prefix, true);
+	}
+
+	/**
+	 * Sets the tags of a given prefix for the given item. Any existing tags using the given prefix will be deleted.
+	 * @param cr
+	 * @param item
+	 * @param tags
+	 * @param prefix
+	 * @param notify if false, observers aren't notified of the change and the caller should do so.
+	 */
+	public static void putTags(ContentResolver cr, Uri item, Collection<String> tags, String prefix, boolean notify) {
+		final ContentValues cv = getTagValues(tags, prefix);
+		if (!notify){
+			cv.put(MediaProvider.CV_FLAG_DO_NOT_NOTIFY, true);
+		}
+		cr.update(Uri.withAppendedPath(item, Tag.PATH), cv, null, null);
+	}
+
+	/**
+	 * @param tags
+	 * @param prefix
+	 * @return values that set the tags of the given prefix when used to update an item's tags URI
+	 * @see #putTags(ContentResolver, Uri, Collection, String)
+	 */
+	public static ContentValues getTagValues(Collection<String> tags, String prefix) {
 		final ContentValues cv = new ContentValues();
 		cv.put(Tag.PATH, TaggableItem.toListString(addPrefixToTags(prefix, tags)));
 		cv.put(CV_TAG_PREFIX, prefix);
-		cr.update(Uri.withAppendedPath(item, Tag.PATH), cv, null, null);
+		return cv;
 	}
 
 	public static int MAX_POPULAR_TAGS = 10;
@@ -251,40 +287,18 @@ public abstract class TaggableItem extends JsonSyncableItem {
 	 * @return the top MAX_POPULAR_TAGS most popular tags in the set, with the most popular first.
 	 */
 	public static List<String> getPopularTags(ContentResolver cr){
+		final Cursor c = cr.query(Tag.getPopularUri(MAX_POPULAR_TAGS), Tag.POPULAR_PROJECTION, null, null, null);
+		try {
+			final List<String> popTags = new ArrayList<String>(c.getCount());
+			final int tagColumn = c.getColumnIndex(Tag._NAME);
 
-		final Map<String, Integer> tagPop = new HashMap<String, Integer>();
-		final List<String> popTags;
-
-		final Cursor c = cr.query(Tag.CONTENT_URI, Tag.DEFAULT_PROJECTION, null, null, null);
-		final int tagColumn = c.getColumnIndex(Tag._NAME);
-
-		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()){
-			final String tag = c.getString(tagColumn);
-
-			final Integer count = tagPop.get(tag);
-			if (count == null){
-				tagPop.put(tag, 1);
-			}else{
-				tagPop.put(tag, count + 1);
+			for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()){
+				popTags.add(c.getString(tagColumn));
 			}
+			return popTags;
+		}finally{
+			c.close();
 		}
-		c.close();
-
-		popTags = new ArrayList<String>(tagPop.keySet());
-
-		Collections.sort(popTags, new Comparator<String>() {
-			public int compare(String object1, String object2) {
-				return tagPop.get(object2).compareTo(tagPop.get(object1));
-			}
-
-		});
-		int limit;
-		if (popTags.size() < MAX_POPULAR_TAGS){
-			limit = popTags.size();
-		}else{
-			limit = MAX_POPULAR_TAGS;
-		}
-		return popTags.subList(0, limit);
 	}
 
 	/**
@@ -316,6 +330,21 @@ public abstract class TaggableItem extends JsonSyncableItem {
 		return baseUri.buildUpon().appendQueryParameter(SERVER_QUERY_PARAMETER, Tag.toTagQuery(tags))  .build();
 	}
 
+	/**
+	 * Given a base content URI of a taggable item and a search query, constructs a URI
+	 * representing the items of the baseUri whose title, description, author or tags match
+	 * all the words of the query. The last word also matches any word that starts with it,
+	 * so this can be used to search as the user types. The items with the most matches are first.
+	 *
+	 * @param baseUri a content URI of a TaggableItem
+	 * @param query the search terms, as entered by the user
+	 * @return a URI representing the matching items
+	 * @see #_SEARCH_SNIPPET
+	 */
+	public static Uri getSearchUri(Uri baseUri, String query){
+		return baseUri.buildUpon().appendQueryParameter(SEARCH_QUERY_PARAMETER, query).build();
+	}
+
 	private final static char PREFIX_SEPARATOR = ':';
 	public final static String SYSTEM_PREFIX = "system";
 
@@ -342,6 +371,15 @@ public abstract class TaggableItem extends JsonSyncableItem {
 		CollectionUtils.filterInPlace(tags, predicate);
 	}
 
+	/**
+	 * @param prefix prefix string or null for un-prefixed tags.
+	 * @param tag
+	 * @return true if the tag has the given prefix
+	 */
+	public static boolean hasPrefix(String prefix, String tag){
+		return getPrefixPredicate(prefix).apply(tag);
+	}
+
 	private static class HasPrefixPredicate implements Predicate<String> {
 		private final String mPrefix;
 
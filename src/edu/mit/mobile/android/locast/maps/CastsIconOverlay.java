@@ -42,8 +42,8 @@ public class CastsIconOverlay extends LocatableItemIconOverlay {
 	}
 
 	@Override
-	protected OverlayItem createItem(int i) {
-		mLocatableItems.moveToPosition(i);
+	protected OverlayItem createLocatableItem(int position) {
+		mLocatableItems.moveToPosition(position);
 
 		final OverlayItem item = new OverlayItem(
 				getItemLocation(mLocatableItems),
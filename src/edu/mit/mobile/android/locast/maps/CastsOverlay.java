@@ -54,8 +54,8 @@ public class CastsOverlay extends LocatableItemOverlay {
 	}
 
 	@Override
-	protected OverlayItem createItem(int i){
-		mLocatableItems.moveToPosition(i);
+	protected OverlayItem createLocatableItem(int position){
+		mLocatableItems.moveToPosition(position);
 
 		final OverlayItem item = new OverlayItem(getItemLocation(mLocatableItems),
 				mLocatableItems.getString(mTitleCol), mLocatableItems.getString(mDescriptionCol));
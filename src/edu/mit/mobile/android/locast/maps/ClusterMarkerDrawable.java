@@ -0,0 +1,119 @@
+package edu.mit.mobile.android.locast.maps;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * A map marker for a {@link MarkerClusterer.Cluster}: a circle with the number
+ * of items in it. The circle is a little larger for larger clusters. Its bounds
+ * are centered on the cluster's location.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class ClusterMarkerDrawable extends Drawable {
+	private static final int
+		COLOR_FILL = 0xcc0099ff,
+		COLOR_OUTLINE = 0xffffffff,
+		COLOR_TEXT = 0xffffffff;
+
+	// dp
+	private static final float
+		MIN_RADIUS = 14,
+		MAX_RADIUS = 24,
+		OUTLINE_WIDTH = 2,
+		TEXT_SIZE = 13;
+
+	private final String mCount;
+	private final float mRadius;
+
+	private final Paint mFillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mOutlinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	/**
+	 * @param count
+	 *            the number of items in the cluster
+	 */
+	public ClusterMarkerDrawable(int count) {
+		final float density = Resources.getSystem().getDisplayMetrics().density;
+
+		mCount = String.valueOf(count);
+		// grows with the number of digits
+		mRadius = density * Math.min(MAX_RADIUS, MIN_RADIUS + 3 * (mCount.length() - 1));
+
+		mFillPaint.setColor(COLOR_FILL);
+		mOutlinePaint.setColor(COLOR_OUTLINE);
+		mOutlinePaint.setStyle(Paint.Style.STROKE);
+		mOutlinePaint.setStrokeWidth(OUTLINE_WIDTH * density);
+		mTextPaint.setColor(COLOR_TEXT);
+		mTextPaint.setTextSize(TEXT_SIZE * density);
+		mTextPaint.setTextAlign(Paint.Align.CENTER);
+		mTextPaint.setFakeBoldText(true);
+
+		final int r = (int) Math.ceil(mRadius);
+		setBounds(-r, -r, r, r);
+	}
+
+	@Override
+	public void draw(Canvas canvas) {
+		final Rect bounds = getBounds();
+		final float cx = bounds.exactCenterX();
+		final float cy = bounds.exactCenterY();
+
+		canvas.drawCircle(cx, cy, mRadius, mFillPaint);
+		canvas.drawCircle(cx, cy, mRadius, mOutlinePaint);
+		canvas.drawText(mCount, cx, cy - (mTextPaint.ascent() + mTextPaint.descent()) / 2, mTextPaint);
+	}
+
+	@Override
+	public int getIntrinsicWidth() {
+		return (int) Math.ceil(mRadius * 2);
+	}
+
+	@Override
+	public int getIntrinsicHeight() {
+		return (int) Math.ceil(mRadius * 2);
+	}
+
+	@Override
+	public void setAlpha(int alpha) {
+		mFillPaint.setAlpha(alpha);
+		mOutlinePaint.setAlpha(alpha);
+		mTextPaint.setAlpha(alpha);
+	}
+
+	@Override
+	public void setColorFilter(ColorFilter cf) {
+		mFillPaint.setColorFilter(cf);
+		mOutlinePaint.setColorFilter(cf);
+		mTextPaint.setColorFilter(cf);
+	}
+
+	@Override
+	public int getOpacity() {
+		return PixelFormat.TRANSLUCENT;
+	}
+}
@@ -0,0 +1,74 @@
+package edu.mit.mobile.android.locast.maps;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+import edu.mit.mobile.android.locast.data.Locatable;
+
+/**
+ * A {@link CursorLoader} for {@link Locatable} items that also reads their
+ * locations in the background. The cursors it loads are
+ * {@link LocatableCursor}s, which the locatable overlays use instead of
+ * scanning the cursor on the UI thread.
+ *
+ * The projection must include {@link Locatable.Columns#_LATITUDE} and
+ * {@link Locatable.Columns#_LONGITUDE}.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class LocatableCursorLoader extends CursorLoader {
+
+	public LocatableCursorLoader(Context context, Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder) {
+		super(context, uri, projection, selection, selectionArgs, sortOrder);
+	}
+
+	@Override
+	public Cursor loadInBackground() {
+		final Cursor c = super.loadInBackground();
+		if (c == null) {
+			return null;
+		}
+		return new LocatableCursor(c, LocationSnapshot.fromCursor(c,
+				c.getColumnIndexOrThrow(Locatable.Columns._LATITUDE),
+				c.getColumnIndexOrThrow(Locatable.Columns._LONGITUDE)));
+	}
+
+	/**
+	 * A cursor along with a snapshot of its locations.
+	 *
+	 */
+	public static class LocatableCursor extends CursorWrapper {
+		private final LocationSnapshot mLocations;
+
+		public LocatableCursor(Cursor cursor, LocationSnapshot locations) {
+			super(cursor);
+			mLocations = locations;
+		}
+
+		public LocationSnapshot getLocations() {
+			return mLocations;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package edu.mit.mobile.android.locast.maps;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import android.database.Cursor;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * The locations of the rows of a cursor, along with their bounds and
+ * centroid. This is made once, ideally off the UI thread by
+ * {@link LocatableCursorLoader}, so that the map doesn't need to scan the
+ * cursor. It is never modified once made.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class LocationSnapshot {
+
+	public static final LocationSnapshot EMPTY = new LocationSnapshot(new int[0], new int[0],
+			new int[0], 0);
+
+	/**
+	 * The cursor position of each location.
+	 */
+	public final int[] positions;
+
+	public final int[] latE6;
+	public final int[] lonE6;
+
+	/**
+	 * The number of locations. Rows without a location are skipped, so this
+	 * may be smaller than the cursor.
+	 */
+	public final int count;
+
+	private int mMinLatE6, mMaxLatE6, mMinLonE6, mMaxLonE6;
+	private long mLatE6Sum, mLonE6Sum;
+
+	private LocationSnapshot(int[] positions, int[] latE6, int[] lonE6, int count) {
+		this.positions = positions;
+		this.latE6 = latE6;
+		this.lonE6 = lonE6;
+		this.count = count;
+
+		mMinLatE6 = mMinLonE6 = Integer.MAX_VALUE;
+		mMaxLatE6 = mMaxLonE6 = Integer.MIN_VALUE;
+		for (int i = 0; i < count; i++) {
+			mMinLatE6 = Math.min(mMinLatE6, latE6[i]);
+			mMaxLatE6 = Math.max(mMaxLatE6, latE6[i]);
+			mMinLonE6 = Math.min(mMinLonE6, lonE6[i]);
+			mMaxLonE6 = Math.max(mMaxLonE6, lonE6[i]);
+			mLatE6Sum += latE6[i];
+			mLonE6Sum += lonE6[i];
+		}
+	}
+
+	/**
+	 * Reads the locations of all the rows of the cursor. Rows without a
+	 * location are skipped.
+	 *
+	 * @param c
+	 *            can be null
+	 * @param latCol
+	 * @param lonCol
+	 * @return a new snapshot
+	 */
+	public static LocationSnapshot fromCursor(Cursor c, int latCol, int lonCol) {
+		if (c == null) {
+			return EMPTY;
+		}
+		final int rows = c.getCount();
+		final int[] positions = new int[rows];
+		final int[] latE6 = new int[rows];
+		final int[] lonE6 = new int[rows];
+
+		int n = 0;
+		for (c.moveToFirst(); !c.isAfterLast(); c.moveToNext()) {
+			if (c.isNull(latCol) || c.isNull(lonCol)) {
+				continue;
+			}
+			positions[n] = c.getPosition();
+			latE6[n] = (int) (c.getDouble(latCol) * 1E6);
+			lonE6[n] = (int) (c.getDouble(lonCol) * 1E6);
+			n++;
+		}
+		return new LocationSnapshot(positions, latE6, lonE6, n);
+	}
+
+	/**
+	 * this does not work properly when crossing -180/180 boundaries.
+	 *
+	 * @return the center of the bounds of the locations, or null if there are
+	 *         none
+	 */
+	public GeoPoint getCenter() {
+		if (count == 0) {
+			return null;
+		}
+		return new GeoPoint((mMaxLatE6 - mMinLatE6) / 2 + mMinLatE6, (mMaxLonE6 - mMinLonE6) / 2
+				+ mMinLonE6);
+	}
+
+	/**
+	 * @return the average of the locations, or null if there are none
+	 */
+	public GeoPoint getCentroid() {
+		if (count == 0) {
+			return null;
+		}
+		return new GeoPoint((int) (mLatE6Sum / count), (int) (mLonE6Sum / count));
+	}
+
+	public int getLatSpanE6() {
+		return count == 0 ? 0 : mMaxLatE6 - mMinLatE6;
+	}
+
+	public int getLonSpanE6() {
+		return count == 0 ? 0 : mMaxLonE6 - mMinLonE6;
+	}
+}
@@ -0,0 +1,241 @@
+package edu.mit.mobile.android.locast.maps;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.LinkedHashMap;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.google.android.maps.GeoPoint;
+
+import edu.mit.mobile.android.locast.Constants;
+
+/**
+ * Groups the locations of a {@link LocationSnapshot} into clusters of nearby
+ * markers, so that an overlay with thousands of rows only needs to create,
+ * draw and hit-test a handful of items.
+ *
+ * Rows are grouped by the square of the map's pixel grid, at the current zoom
+ * level, that they fall into. Clustering is done in the background whenever
+ * the locations or the zoom level change; panning doesn't require it to be
+ * redone. The {@link OnClustersChangedListener} is notified on the UI thread
+ * when new clusters are ready.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class MarkerClusterer {
+	private static final String TAG = MarkerClusterer.class.getSimpleName();
+	private static final boolean DEBUG = Constants.DEBUG;
+
+	private static final int NO_ZOOM = -1;
+
+	// the size of a map tile at zoom level 0, in pixels
+	private static final int TILE_SIZE = 256;
+
+	private static final Cluster[] EMPTY_CLUSTERS = new Cluster[0];
+
+	public interface OnClustersChangedListener {
+		public void onClustersChanged();
+	}
+
+	/**
+	 * A group of one or more nearby rows.
+	 *
+	 */
+	public static class Cluster {
+		/**
+		 * The cursor position of the first row in the cluster.
+		 */
+		public final int position;
+
+		public final int count;
+
+		/**
+		 * The center of the rows in the cluster.
+		 */
+		public final GeoPoint center;
+
+		Cluster(int position, int count, GeoPoint center) {
+			this.position = position;
+			this.count = count;
+			this.center = center;
+		}
+	}
+
+	private final OnClustersChangedListener mListener;
+	private final int mClusterSize;
+
+	private LocationSnapshot mLocations = LocationSnapshot.EMPTY;
+
+	private Cluster[] mClusters = EMPTY_CLUSTERS;
+
+	private int mZoomLevel = NO_ZOOM;
+	private ClusterTask mClusterTask;
+
+	/**
+	 * @param clusterSize
+	 *            the size of the squares that rows are grouped by, in pixels
+	 * @param listener
+	 */
+	public MarkerClusterer(int clusterSize, OnClustersChangedListener listener) {
+		mClusterSize = clusterSize;
+		mListener = listener;
+	}
+
+	/**
+	 * Sets the locations to cluster. The current clusters are dropped, as they
+	 * refer to the previous rows. Must be called on the UI thread.
+	 *
+	 * @param locations
+	 */
+	public void setLocations(LocationSnapshot locations) {
+		mLocations = locations;
+		mClusters = EMPTY_CLUSTERS;
+		recluster();
+	}
+
+	public LocationSnapshot getLocations() {
+		return mLocations;
+	}
+
+	/**
+	 * Clusters the rows for the given zoom level, if it's not the one they're
+	 * already clustered for. Call this when drawing.
+	 *
+	 * @param zoomLevel
+	 */
+	public void setZoomLevel(int zoomLevel) {
+		if (zoomLevel != mZoomLevel) {
+			mZoomLevel = zoomLevel;
+			recluster();
+		}
+	}
+
+	/**
+	 * @return the number of clusters
+	 */
+	public int size() {
+		return mClusters.length;
+	}
+
+	/**
+	 * @param i
+	 * @return the given cluster
+	 */
+	public Cluster getCluster(int i) {
+		return mClusters[i];
+	}
+
+	private void recluster() {
+		if (mClusterTask != null) {
+			mClusterTask.cancel(false);
+			mClusterTask = null;
+		}
+		if (mZoomLevel == NO_ZOOM) {
+			return;
+		}
+		mClusterTask = new ClusterTask(mLocations, mZoomLevel);
+		mClusterTask.execute();
+	}
+
+	private class ClusterTask extends AsyncTask<Void, Void, Cluster[]> {
+		private final LocationSnapshot mTaskLocations;
+		private final int mTaskZoomLevel;
+
+		public ClusterTask(LocationSnapshot locations, int zoomLevel) {
+			mTaskLocations = locations;
+			mTaskZoomLevel = zoomLevel;
+		}
+
+		@Override
+		protected Cluster[] doInBackground(Void... params) {
+			final long start = System.nanoTime();
+			final Cluster[] clusters = cluster(mTaskLocations, mTaskZoomLevel, mClusterSize);
+			if (DEBUG) {
+				Log.d(TAG, "clustered " + mTaskLocations.count + " markers into " + clusters.length
+						+ " at zoom " + mTaskZoomLevel + " in " + (System.nanoTime() - start)
+						/ 1000000 + "ms");
+			}
+			return clusters;
+		}
+
+		@Override
+		protected void onPostExecute(Cluster[] result) {
+			if (isCancelled() || mClusterTask != this) {
+				return;
+			}
+			mClusterTask = null;
+			mClusters = result;
+			mListener.onClustersChanged();
+		}
+	}
+
+	private static class ClusterBuilder {
+		final int position;
+		int count;
+		long latE6Sum, lonE6Sum;
+
+		ClusterBuilder(int position) {
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Groups the given locations by the square of the Mercator pixel grid
+	 * they're in at the given zoom level.
+	 *
+	 * @return the clusters, in the order of their first rows
+	 */
+	static Cluster[] cluster(LocationSnapshot locations, int zoomLevel, int clusterSize) {
+		final int[] positions = locations.positions;
+		final int[] latE6 = locations.latE6;
+		final int[] lonE6 = locations.lonE6;
+		final int count = locations.count;
+		final double worldSize = (double) TILE_SIZE * (1L << zoomLevel);
+		final LinkedHashMap<Long, ClusterBuilder> clusters = new LinkedHashMap<Long, ClusterBuilder>();
+
+		for (int i = 0; i < count; i++) {
+			final double lon = lonE6[i] / 1E6;
+			final double lat = Math.toRadians(Math.max(-85, Math.min(85, latE6[i] / 1E6)));
+
+			final double x = (lon + 180) / 360 * worldSize;
+			final double y = (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2
+					* worldSize;
+
+			final Long key = ((long) (x / clusterSize) << 32) | (long) (y / clusterSize);
+			ClusterBuilder cluster = clusters.get(key);
+			if (cluster == null) {
+				cluster = new ClusterBuilder(positions[i]);
+				clusters.put(key, cluster);
+			}
+			cluster.count++;
+			cluster.latE6Sum += latE6[i];
+			cluster.lonE6Sum += lonE6[i];
+		}
+
+		final Cluster[] result = new Cluster[clusters.size()];
+		int i = 0;
+		for (final ClusterBuilder cluster : clusters.values()) {
+			result[i++] = new Cluster(cluster.position, cluster.count, new GeoPoint(
+					(int) (cluster.latE6Sum / cluster.count), (int) (cluster.lonE6Sum / cluster.count)));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,163 @@
+package edu.mit.mobile.android.locast.maps;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+/**
+ * Simplifies paths for display at multiple zoom levels using the
+ * Douglas-Peucker algorithm.
+ *
+ * Rather than storing a separate copy of the path for each tolerance, each
+ * point is given the lowest zoom level at which it differs from the
+ * simplified path by more than {@link #TOLERANCE} pixels. Drawing only the
+ * points whose level is at or below the current zoom level gives the same
+ * result as simplifying the path with that zoom level's tolerance. This is
+ * the same idea as the levels of Google's encoded polylines.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class PathSimplifier {
+
+	/**
+	 * Points that would be dropped at this zoom level are given it anyway.
+	 */
+	public static final int MAX_ZOOM_LEVEL = 22;
+
+	/**
+	 * The largest distance a simplified path may be from the full one, in
+	 * pixels.
+	 */
+	public static final double TOLERANCE = 1.5;
+
+	// the size of a map tile at zoom level 0, in pixels
+	private static final int TILE_SIZE = 256;
+
+	/**
+	 * Computes the zoom level at which each point is needed. The first and
+	 * last points are always needed.
+	 *
+	 * @param latE6
+	 * @param lonE6
+	 * @param count
+	 *            the number of points in the arrays to use
+	 * @return the minimum zoom level of each point
+	 */
+	public static int[] getMinZoomLevels(int[] latE6, int[] lonE6, int count) {
+		final int[] levels = new int[count];
+		if (count == 0) {
+			return levels;
+		}
+
+		// The points are compared on a local equirectangular projection, in
+		// microdegrees of latitude. This is close enough to Mercator for the
+		// size of a path.
+		long latSum = 0;
+		for (int i = 0; i < count; i++) {
+			latSum += latE6[i];
+		}
+		final double lonScale = Math.cos(Math.toRadians(latSum / count / 1E6));
+
+		// the tolerance at zoom level 0, in the same units
+		final double tolerance0 = TOLERANCE * 360E6 * lonScale / TILE_SIZE;
+
+		final double[] significance = new double[count];
+		significance[0] = significance[count - 1] = Double.POSITIVE_INFINITY;
+
+		// ranges to simplify: start, end, pairs. A range never has more
+		// points than the path, so neither does the stack.
+		final int[] stack = new int[Math.max(2, count * 2)];
+		int top = 0;
+		if (count > 2) {
+			stack[top++] = 0;
+			stack[top++] = count - 1;
+		}
+
+		while (top > 0) {
+			final int end = stack[--top];
+			final int start = stack[--top];
+
+			final double ax = lonE6[start] * lonScale, ay = latE6[start];
+			final double bx = lonE6[end] * lonScale, by = latE6[end];
+
+			int farthest = -1;
+			double maxDistance = -1;
+			for (int i = start + 1; i < end; i++) {
+				final double d = segmentDistance(lonE6[i] * lonScale, latE6[i], ax, ay, bx, by);
+				if (d > maxDistance) {
+					maxDistance = d;
+					farthest = i;
+				}
+			}
+
+			// A point is only kept if the points that split the path before it
+			// are, so it can't be more significant than either end of its range.
+			significance[farthest] = Math.min(maxDistance,
+					Math.min(significance[start], significance[end]));
+
+			if (farthest - start > 1) {
+				stack[top++] = start;
+				stack[top++] = farthest;
+			}
+			if (end - farthest > 1) {
+				stack[top++] = farthest;
+				stack[top++] = end;
+			}
+		}
+
+		for (int i = 0; i < count; i++) {
+			levels[i] = toZoomLevel(significance[i], tolerance0);
+		}
+		return levels;
+	}
+
+	/**
+	 * @param significance
+	 * @param tolerance0
+	 *            the tolerance at zoom level 0
+	 * @return the lowest zoom level whose tolerance is smaller than the given
+	 *         significance
+	 */
+	private static int toZoomLevel(double significance, double tolerance0) {
+		if (significance == Double.POSITIVE_INFINITY) {
+			return 0;
+		}
+		if (significance <= 0) {
+			return MAX_ZOOM_LEVEL;
+		}
+		// the tolerance at zoom z is tolerance0 / 2^z
+		final int level = (int) Math.floor(Math.log(tolerance0 / significance) / Math.log(2)) + 1;
+		return Math.max(0, Math.min(MAX_ZOOM_LEVEL, level));
+	}
+
+	/**
+	 * @return the distance from point p to the segment ab
+	 */
+	private static double segmentDistance(double px, double py, double ax, double ay, double bx,
+			double by) {
+		final double dx = bx - ax;
+		final double dy = by - ay;
+		final double lengthSq = dx * dx + dy * dy;
+		double t = 0;
+		if (lengthSq > 0) {
+			t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSq));
+		}
+		final double ex = px - (ax + t * dx);
+		final double ey = py - (ay + t * dy);
+		return Math.sqrt(ex * ex + ey * ey);
+	}
+}
@@ -0,0 +1,122 @@
+package edu.mit.mobile.android.locast.net;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * A persistent store of the HTTP cache validators ({@code ETag} and
+ * {@code Last-Modified}) of responses, keyed by their full URI. These are
+ * used to make conditional GET requests, so that the server can respond with
+ * a 304 (Not Modified) instead of sending the whole representation again.
+ *
+ * @see <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html">RFC
+ *      2616, section 13</a>
+ *
+ */
+public class HttpValidatorStore {
+	private static final String PREFS_NAME = "http_validators";
+
+	private static final String
+		SUFFIX_ETAG = "|etag",
+		SUFFIX_LAST_MODIFIED = "|last-modified";
+
+	public static final String
+		HEADER_ETAG = "ETag",
+		HEADER_LAST_MODIFIED = "Last-Modified",
+		HEADER_IF_NONE_MATCH = "If-None-Match",
+		HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+	private final SharedPreferences mPrefs;
+
+	public HttpValidatorStore(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * Adds the {@code If-None-Match} and {@code If-Modified-Since} headers to
+	 * the request if there are any validators stored for the URI.
+	 *
+	 * @param fullUri
+	 * @param request
+	 * @return true if the request was made conditional
+	 */
+	public boolean addConditionalHeaders(String fullUri, HttpRequest request) {
+		final String etag = mPrefs.getString(fullUri + SUFFIX_ETAG, null);
+		final String lastModified = mPrefs.getString(fullUri + SUFFIX_LAST_MODIFIED, null);
+
+		if (etag != null) {
+			request.setHeader(HEADER_IF_NONE_MATCH, etag);
+		}
+		if (lastModified != null) {
+			request.setHeader(HEADER_IF_MODIFIED_SINCE, lastModified);
+		}
+		return etag != null || lastModified != null;
+	}
+
+	/**
+	 * Stores the validators from the given response. If the response has none,
+	 * any validators stored for the URI are removed.
+	 *
+	 * This should only be called once the response has been entirely
+	 * processed, as future requests may be answered with a 304.
+	 *
+	 * @param fullUri
+	 * @param response
+	 */
+	public void save(String fullUri, HttpResponse response) {
+		final Header etag = response.getFirstHeader(HEADER_ETAG);
+		final Header lastModified = response.getFirstHeader(HEADER_LAST_MODIFIED);
+
+		final SharedPreferences.Editor editor = mPrefs.edit();
+		if (etag != null) {
+			editor.putString(fullUri + SUFFIX_ETAG, etag.getValue());
+		} else {
+			editor.remove(fullUri + SUFFIX_ETAG);
+		}
+
+		if (lastModified != null) {
+			editor.putString(fullUri + SUFFIX_LAST_MODIFIED, lastModified.getValue());
+		} else {
+			editor.remove(fullUri + SUFFIX_LAST_MODIFIED);
+		}
+		editor.commit();
+	}
+
+	/**
+	 * Forgets the validators for the given URI.
+	 *
+	 * @param fullUri
+	 */
+	public void remove(String fullUri) {
+		mPrefs.edit().remove(fullUri + SUFFIX_ETAG).remove(fullUri + SUFFIX_LAST_MODIFIED)
+				.commit();
+	}
+
+	/**
+	 * Forgets all validators. This must be called whenever the local data is
+	 * cleared.
+	 */
+	public void clear() {
+		mPrefs.edit().clear().commit();
+	}
+}
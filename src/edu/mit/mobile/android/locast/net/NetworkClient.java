@@ -58,6 +58,8 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
@@ -71,6 +73,7 @@ import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
@@ -93,6 +96,7 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Bundle;
@@ -126,16 +130,39 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 		PATH_USER   = "user/me"
 		;
 
-	protected URI baseuri;
-	// one of the formats from ISO 8601
-	public final static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+	// one of the formats from ISO 8601. SimpleDateFormat isn't thread safe and
+	// syncs run on several threads, so each thread gets its own.
+	private final static ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>(){
+		@Override
+		protected SimpleDateFormat initialValue() {
+			final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+			format.setCalendar(Calendar.getInstance(TimeZone.getTimeZone("GMT")));
+			return format;
+		}
+	};
+
+	/**
+	 * The base URI and credentials that requests are made with. Requests read
+	 * this without locking; any change swaps in a whole new snapshot.
+	 */
+	private volatile Endpoint mEndpoint = new Endpoint(null, null);
 
-	private AuthScope authScope;
+	// only held while a new endpoint is being swapped in
+	private final Object mEndpointLock = new Object();
+
+	/**
+	 * All instances share a single pool of connections, which is safe to use
+	 * from multiple threads.
+	 */
+	private static ClientConnectionManager sConnectionManager;
 
 	protected final Context context;
 
 	protected final SharedPreferences prefs;
-	private boolean mOverrideCredentials;
+	private volatile boolean mOverrideCredentials;
+
+	private final HttpValidatorStore mValidators;
+
 	protected final static HttpRequestInterceptor PREEMPTIVE_AUTH = new HttpRequestInterceptor() {
 	    public void process(
 	            final HttpRequest request,
@@ -216,6 +243,7 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 
 
 		prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		mValidators = new HttpValidatorStore(context);
 		if (DEBUG) {
 			Log.i(TAG, prefs.getString(PREF_SERVER_URL, ""));
 		}
@@ -238,10 +266,6 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 
 	protected void initClient(){
 		try {
-
-
-			this.authScope = new AuthScope(baseuri.getHost(), baseuri.getPort());
-
 			loadCredentials();
 
 		} catch (final Exception e) {
@@ -250,6 +274,48 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 		}
 	}
 
+	/**
+	 * An immutable snapshot of where requests go and who they're made as.
+	 */
+	private static final class Endpoint {
+		final URI baseUri;
+		final AuthScope authScope;
+		final Credentials credentials;
+
+		Endpoint(URI baseUri, Credentials credentials) {
+			this.baseUri = baseUri;
+			this.authScope = baseUri != null ? new AuthScope(baseUri.getHost(), baseUri.getPort())
+					: null;
+			this.credentials = credentials;
+		}
+	}
+
+	/**
+	 * Credentials are taken from the current {@link Endpoint}, so that looking
+	 * them up during a request doesn't need a lock.
+	 */
+	@Override
+	protected CredentialsProvider createCredentialsProvider() {
+		return new CredentialsProvider() {
+
+			public void setCredentials(AuthScope authscope, Credentials credentials) {
+				NetworkClient.this.setCredentials(credentials);
+			}
+
+			public Credentials getCredentials(AuthScope authscope) {
+				final Endpoint endpoint = mEndpoint;
+				if (endpoint.authScope == null || endpoint.authScope.match(authscope) < 0) {
+					return null;
+				}
+				return endpoint.credentials;
+			}
+
+			public void clear() {
+				NetworkClient.this.setCredentials(null);
+			}
+		};
+	}
+
 	@Override
 	protected HttpParams createHttpParams() {
 		final HttpParams params = super.createHttpParams();
@@ -281,17 +347,41 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 
     @Override
     protected ClientConnectionManager createClientConnectionManager() {
-        final SchemeRegistry registry = new SchemeRegistry();
-        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
-        return new ThreadSafeClientConnManager(getParams(), registry);
+        return getSharedConnectionManager(context);
     }
 
+	/**
+	 * The connection limits are set by the {@code network_max_connections_total} and
+	 * {@code network_max_connections_per_route} integer resources. The per-route
+	 * limit needs to be high enough that a large media transfer doesn't hold up the
+	 * smaller JSON requests to the same server.
+	 *
+	 * @param context
+	 * @return the connection manager shared by all instances
+	 */
+	private static synchronized ClientConnectionManager getSharedConnectionManager(Context context) {
+		if (sConnectionManager == null) {
+			final SchemeRegistry registry = new SchemeRegistry();
+			registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+			registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+			final HttpParams params = new BasicHttpParams();
+			final Resources res = context.getResources();
+			ConnManagerParams.setMaxTotalConnections(params,
+					res.getInteger(R.integer.network_max_connections_total));
+			ConnManagerParams.setMaxConnectionsPerRoute(params,
+					new ConnPerRouteBean(res.getInteger(R.integer.network_max_connections_per_route)));
+
+			sConnectionManager = new ThreadSafeClientConnManager(params, registry);
+		}
+		return sConnectionManager;
+	}
+
 	/************************* credentials and pairing **********************/
 
 	public String getUsername() {
 		String username = null;
-		final Credentials credentials = getCredentialsProvider().getCredentials(authScope);
+		final Credentials credentials = mEndpoint.credentials;
 		if (credentials != null){
 			username = credentials.getUserPrincipal().getName();
 		}
@@ -337,10 +427,8 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 	 * @param credentials
 	 */
 	protected void setCredentials(Credentials credentials){
-
-		this.getCredentialsProvider().clear();
-		if (credentials != null){
-			this.getCredentialsProvider().setCredentials(authScope, credentials);
+		synchronized (mEndpointLock) {
+			mEndpoint = new Endpoint(mEndpoint.baseUri, credentials);
 		}
 	}
 
@@ -566,6 +654,75 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 
 		return res;
 	}
+
+	/**
+	 * Makes a conditional GET, using the validators stored from a previous
+	 * response to the same URI. If the server responds with 304 (Not
+	 * Modified), the response is returned as-is and has no entity; use
+	 * {@link #isNotModified(HttpResponse)} to check for this. Otherwise, the
+	 * response code is verified like {@link #get(String)}.
+	 *
+	 * Validators aren't stored automatically. Once the response has been
+	 * fully processed, call {@link #saveValidators(String, HttpResponse)}.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 * @throws JSONException
+	 * @throws NetworkProtocolException
+	 * @throws HttpResponseException
+	 */
+	public HttpResponse getIfModified(String path) throws IOException, JSONException,
+			NetworkProtocolException, HttpResponseException {
+		final String fullUri = getFullUriAsString(path);
+		final HttpGet req = new HttpGet(fullUri);
+		final boolean conditional = mValidators.addConditionalHeaders(fullUri, req);
+		if (DEBUG) {
+			Log.d("NetworkClient", "GET " + fullUri + (conditional ? " (conditional)" : ""));
+		}
+		final HttpResponse res = this.execute(req);
+
+		if (isNotModified(res)) {
+			final HttpEntity ent = res.getEntity();
+			if (ent != null) {
+				ent.consumeContent();
+			}
+			return res;
+		}
+
+		checkStatusCode(res, false);
+
+		return res;
+	}
+
+	/**
+	 * @param res
+	 * @return true if the response is a 304 (Not Modified)
+	 */
+	public static boolean isNotModified(HttpResponse res) {
+		return res.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED;
+	}
+
+	/**
+	 * Stores the cache validators of a response to {@link #getIfModified(String)}.
+	 *
+	 * @param path
+	 *            the path that was requested
+	 * @param res
+	 */
+	public void saveValidators(String path, HttpResponse res) {
+		mValidators.save(getFullUriAsString(path), res);
+	}
+
+	/**
+	 * Forgets the cache validators of a path that won't be requested again.
+	 *
+	 * @param path
+	 */
+	public void removeValidators(String path) {
+		mValidators.remove(getFullUriAsString(path));
+	}
+
 	/**
 	 * Loads a JSON object from the given URI
 	 *
@@ -599,7 +756,7 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 		return ja;
 	}
 
-	private synchronized HttpEntity getJson(String path) throws IOException, JSONException, NetworkProtocolException {
+	private HttpEntity getJson(String path) throws IOException, JSONException, NetworkProtocolException {
 
 		final HttpResponse res = get(path);
 
@@ -640,7 +797,7 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 	 * @throws IOException
 	 * @throws NetworkProtocolException
 	 */
-	protected synchronized HttpResponse put(String path, String jsonString) throws IOException,
+	protected HttpResponse put(String path, String jsonString) throws IOException,
 		NetworkProtocolException{
 		final String fullUri = getFullUriAsString(path);
 		final HttpPut r = new HttpPut(fullUri);
@@ -662,7 +819,7 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 		return c;
 	}
 
-	protected synchronized HttpResponse put(String path, String contentType, InputStream is) throws IOException,
+	protected HttpResponse put(String path, String contentType, InputStream is) throws IOException,
 		NetworkProtocolException {
 		final String fullUri = getFullUriAsString(path);
 		final HttpPut r = new HttpPut(fullUri);
@@ -680,13 +837,13 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 		return c;
 	}
 
-	public synchronized Uri getFullUri (String path){
+	public Uri getFullUri (String path){
 		Uri fullUri;
 		if (path.startsWith("http")){
 			fullUri = Uri.parse(path);
 
 		}else {
-
+			final URI baseuri = mEndpoint.baseUri;
 			fullUri = Uri.parse(baseuri.resolve(path).normalize().toASCIIString());
 			if (DEBUG) {
 				Log.d("NetworkClient", "path: " + path + ", baseUri: " + baseuri + ", fullUri: "+fullUri);
@@ -696,13 +853,13 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 		return fullUri;
 	}
 
-	public synchronized String getFullUriAsString (String path){
+	public String getFullUriAsString (String path){
 		String fullUri;
 		if (path.startsWith("http")){
 			fullUri = path;
 
 		}else {
-
+			final URI baseuri = mEndpoint.baseUri;
 			fullUri = baseuri.resolve(path).normalize().toASCIIString();
 			if (DEBUG) {
 				Log.d("NetworkClient", "path: " + path + ", baseUri: " + baseuri + ", fullUri: "+fullUri);
@@ -721,7 +878,7 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 	 * @throws IOException
 	 * @throws NetworkProtocolException
 	 */
-	public synchronized HttpResponse post(String path, String jsonString)
+	public HttpResponse post(String path, String jsonString)
 		throws IOException, NetworkProtocolException {
 
 		final String fullUri = getFullUriAsString(path);
@@ -1044,7 +1201,7 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 	    return new NetworkClient(context);
 	}
 
-	protected synchronized void loadBaseUri() {
+	protected void loadBaseUri() {
 		String baseurl = prefs.getString(PREF_SERVER_URL, context.getString(R.string.default_api_url));
 		if (!baseurl.endsWith("/")){
 			if (DEBUG) {
@@ -1056,7 +1213,10 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 
 		try {
 			final URL baseUrl = new URL(baseurl);
-			baseuri = baseUrl.toURI();
+			final URI baseuri = baseUrl.toURI();
+			synchronized (mEndpointLock) {
+				mEndpoint = new Endpoint(baseuri, mEndpoint.credentials);
+			}
 		}catch (final MalformedURLException e){
 			showError(e);
 			e.printStackTrace();
@@ -1071,7 +1231,7 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 	 *
 	 * @throws IOException
 	 */
-	protected synchronized void loadCredentials() throws IOException {
+	protected void loadCredentials() throws IOException {
 		if (mOverrideCredentials){
 			if (DEBUG){
 				Log.i(TAG, "Credentials not loaded as they were overridden");
@@ -1238,7 +1398,7 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 
 			final Object val = parameters.get(key);
 			if (val instanceof Date){
-				query.append(dateFormat.format(val));
+				query.append(formatDate((Date)val));
 			}else{
 				query.append(val.toString());
 			}
@@ -1254,11 +1414,15 @@ public class NetworkClient extends DefaultHttpClient implements OnSharedPreferen
 	/*	if (dateString.endsWith("Z")){
 			dateString = dateString.substring(0, dateString.length()-2) + "GMT";
 		}*/
-		return dateFormat.parse(dateString);
+		return dateFormat.get().parse(dateString);
 	}
 
-	static {
-		dateFormat.setCalendar(Calendar.getInstance(TimeZone.getTimeZone("GMT")));
+	/**
+	 * @param date
+	 * @return the date in the format used by the server
+	 */
+	public static String formatDate(Date date){
+		return dateFormat.get().format(date);
 	}
 
 }
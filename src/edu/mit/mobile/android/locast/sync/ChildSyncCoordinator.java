@@ -0,0 +1,228 @@
+package edu.mit.mobile.android.locast.sync;
+
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import org.json.JSONException;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+import edu.mit.mobile.android.locast.Constants;
+import edu.mit.mobile.android.locast.data.JsonSyncableItem.SyncChildRelation;
+import edu.mit.mobile.android.locast.data.NoPublicPath;
+import edu.mit.mobile.android.locast.data.SyncException;
+import edu.mit.mobile.android.locast.net.NetworkClient;
+import edu.mit.mobile.android.locast.net.NetworkProtocolException;
+
+/**
+ * Collects the child directories that are discovered while a parent is being
+ * sync'd (see {@link SyncChildRelation}) and syncs them at the end of the same
+ * pass, using the same {@link NetworkClient}. Each child directory is only
+ * fetched once per pass, no matter how many times it's requested.
+ *
+ * A coordinator is bound to the thread performing the sync, so that the
+ * {@link SyncChildRelation} hooks can find it using {@link #getCurrent()}.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class ChildSyncCoordinator {
+	private static final String TAG = ChildSyncCoordinator.class.getSimpleName();
+
+	private static final boolean DEBUG = Constants.DEBUG;
+
+	private static final ThreadLocal<ChildSyncCoordinator> sCurrent = new ThreadLocal<ChildSyncCoordinator>();
+
+	private final SyncEngine mSyncEngine;
+	private final NetworkClient mNetworkClient;
+
+	private final LinkedList<ChildSync> mPending = new LinkedList<ChildSync>();
+	private final HashSet<Uri> mSeen = new HashSet<Uri>();
+
+	private int mRequestedCount = 0;
+	private int mFetchedCount = 0;
+
+	private final SyncMetrics mPassMetrics;
+
+	/**
+	 * @param syncEngine
+	 * @param networkClient
+	 * @param target
+	 *            the target of the sync pass
+	 */
+	public ChildSyncCoordinator(SyncEngine syncEngine, NetworkClient networkClient, Uri target) {
+		mSyncEngine = syncEngine;
+		mNetworkClient = networkClient;
+		mPassMetrics = new SyncMetrics(target);
+	}
+
+	/**
+	 * @return the sum of the metrics of all the targets sync'd in this pass
+	 */
+	public SyncMetrics getPassMetrics() {
+		return mPassMetrics;
+	}
+
+	/**
+	 * @return the coordinator bound to the current thread or null if there is
+	 *         no sync in progress on this thread.
+	 */
+	public static ChildSyncCoordinator getCurrent() {
+		return sCurrent.get();
+	}
+
+	/**
+	 * Makes this the current coordinator for the calling thread.
+	 */
+	void bind() {
+		sCurrent.set(this);
+	}
+
+	/**
+	 * Removes this coordinator from the calling thread.
+	 */
+	void unbind() {
+		if (sCurrent.get() == this) {
+			sCurrent.remove();
+		}
+	}
+
+	/**
+	 * Requests that the given child directory be sync'd later on in this pass.
+	 * Requests for a directory that's already been requested are dropped.
+	 *
+	 * @param childPubPath
+	 *            the public path of the child directory, as given by the
+	 *            server
+	 * @param childDir
+	 *            the local directory that the children are stored in
+	 */
+	public void enqueue(String childPubPath, Uri childDir) {
+		mRequestedCount++;
+
+		if (!mSeen.add(childDir)) {
+			return;
+		}
+		mPending.add(new ChildSync(mNetworkClient.getFullUri(childPubPath), childDir));
+	}
+
+	/**
+	 * Syncs all the pending child directories, including any that are
+	 * discovered while doing so. A failure of one child doesn't stop the
+	 * others; it's logged and counted in the result.
+	 *
+	 * @param account
+	 * @param extras
+	 *            the extras of the parent sync
+	 * @param provider
+	 * @param syncResult
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 * @throws SyncException
+	 *             if the sync was canceled
+	 */
+	public void syncChildren(Account account, Bundle extras, ContentProviderClient provider,
+			SyncResult syncResult) throws RemoteException, OperationApplicationException,
+			SyncException {
+
+		while (!mPending.isEmpty()) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw new SyncException("child sync was canceled");
+			}
+
+			final ChildSync child = mPending.removeFirst();
+
+			final Bundle childExtras = new Bundle();
+			childExtras.putString(SyncEngine.EXTRA_DESTINATION_URI, child.destination.toString());
+			childExtras.putBoolean(SyncEngine.EXTRA_FULL_SYNC,
+					extras.getBoolean(SyncEngine.EXTRA_FULL_SYNC, false));
+
+			try {
+				mSyncEngine.sync(child.pubUri, account, childExtras, provider, syncResult);
+				mFetchedCount++;
+
+			} catch (final IOException e) {
+				syncResult.stats.numIoExceptions++;
+				Log.e(TAG, "error syncing " + child.destination, e);
+
+			} catch (final JSONException e) {
+				syncResult.stats.numParseExceptions++;
+				Log.e(TAG, "error syncing " + child.destination, e);
+
+			} catch (final NetworkProtocolException e) {
+				syncResult.stats.numParseExceptions++;
+				Log.e(TAG, "error syncing " + child.destination, e);
+
+			} catch (final NoPublicPath e) {
+				Log.e(TAG, "error syncing " + child.destination, e);
+
+			} catch (final SyncException e) {
+				Log.e(TAG, "error syncing " + child.destination, e);
+			}
+		}
+
+		if (DEBUG) {
+			Log.d(TAG, mRequestedCount + " child syncs requested, " + mFetchedCount
+					+ " fetched, " + getCoalescedCount() + " coalesced");
+		}
+	}
+
+	/**
+	 * @return the number of child syncs that have been requested during this
+	 *         pass
+	 */
+	public int getRequestedCount() {
+		return mRequestedCount;
+	}
+
+	/**
+	 * @return the number of child directories that have been successfully
+	 *         fetched during this pass
+	 */
+	public int getFetchedCount() {
+		return mFetchedCount;
+	}
+
+	/**
+	 * @return the number of child sync requests that were merged into a fetch
+	 *         that had already been requested during this pass
+	 */
+	public int getCoalescedCount() {
+		return mRequestedCount - mSeen.size();
+	}
+
+	private static class ChildSync {
+		final Uri pubUri;
+		final Uri destination;
+
+		ChildSync(Uri pubUri, Uri destination) {
+			this.pubUri = pubUri;
+			this.destination = destination;
+		}
+	}
+}
@@ -180,11 +180,18 @@ public class LocastSyncService extends Service {
 		return getSyncAdapter().getSyncAdapterBinder();
 	}
 
+	/**
+	 * The maximum number of top-level targets that are sync'd at once.
+	 */
+	private static final int MAX_PARALLEL_SYNCS = 3;
+
 	private static class LocastSyncAdapter extends AbstractThreadedSyncAdapter {
 		private final Context mContext;
 
 		private final SyncEngine mSyncEngine;
 
+		private volatile SyncPlanner mSyncPlanner;
+
 		public LocastSyncAdapter(Context context) {
 			super(context, true);
 			mContext = context;
@@ -196,6 +203,10 @@ public class LocastSyncService extends Service {
 			if (DEBUG){
 				Log.d(TAG, "onSyncCanceled()");
 			}
+			final SyncPlanner planner = mSyncPlanner;
+			if (planner != null) {
+				planner.cancel();
+			}
 			super.onSyncCanceled();
 		}
 
@@ -224,9 +235,23 @@ public class LocastSyncService extends Service {
 					if (uploadOnly){
 						mSyncEngine.uploadUnpublished(Cast.CONTENT_URI, account, extras, provider, syncResult);
 					}else{
-						mSyncEngine.sync(Cast.FEATURED, account, extras, provider, syncResult);
-						mSyncEngine.sync(Itinerary.CONTENT_URI, account, extras, provider, syncResult);
-						mSyncEngine.sync(Cast.FAVORITE, account, extras, provider, syncResult);
+						// the itineraries are sync'd alongside the casts. The two cast
+						// targets write to the same table, so they run one after the other.
+						// These top-level collections only request what has changed.
+						final Bundle plannerExtras = new Bundle(extras);
+						plannerExtras.putBoolean(SyncEngine.EXTRA_DELTA_SYNC, true);
+
+						final SyncPlanner planner = new SyncPlanner(mSyncEngine, MAX_PARALLEL_SYNCS);
+						planner.addTarget(Cast.FEATURED);
+						planner.addTarget(Itinerary.CONTENT_URI);
+						planner.addTarget(Cast.FAVORITE);
+
+						mSyncPlanner = planner;
+						try {
+							planner.run(account, plannerExtras, provider, syncResult);
+						} finally {
+							mSyncPlanner = null;
+						}
 					}
 				}
 
@@ -0,0 +1,112 @@
+package edu.mit.mobile.android.locast.sync;
+
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.Date;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import edu.mit.mobile.android.locast.net.NetworkClient;
+
+/**
+ * Persistent "modified since" high-water marks for public paths. After a
+ * directory has been completely synchronized, the newest modification date of
+ * its items is stored here so the next sync only needs to request the items
+ * that changed since then. Only the top-level collections that are sync'd
+ * with {@link SyncEngine#EXTRA_DELTA_SYNC} have a mark.
+ *
+ * All times are in the server's timescale, so a wrong local clock doesn't
+ * cause items to be skipped. As the mark only moves when an item changes, the
+ * request URI stays stable between syncs where nothing has changed.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class SyncCursorStore {
+	private static final String PREFS_NAME = "sync_cursors";
+
+	/**
+	 * The query parameter that the server uses to filter a list to only the
+	 * items modified since the given ISO 8601 date.
+	 */
+	public static final String SERVER_QUERY_PARAMETER = "modified_since";
+
+	/**
+	 * Returned by {@link #getModifiedSince(String)} when there is no cursor
+	 * for the given path.
+	 */
+	public static final long NO_CURSOR = -1;
+
+	private final SharedPreferences mPrefs;
+
+	public SyncCursorStore(Context context) {
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * @param fullUri
+	 *            the full URI of the public path
+	 * @return the newest modification date stored for the path or
+	 *         {@link #NO_CURSOR}
+	 */
+	public long getModifiedSince(String fullUri) {
+		return mPrefs.getLong(fullUri, NO_CURSOR);
+	}
+
+	/**
+	 * @param fullUri
+	 *            the full URI of the public path
+	 * @param serverTime
+	 *            the modification date, in server time, that the path has
+	 *            been synchronized up to
+	 */
+	public void setModifiedSince(String fullUri, long serverTime) {
+		mPrefs.edit().putLong(fullUri, serverTime).commit();
+	}
+
+	/**
+	 * Forgets the cursor for the given path, so the next sync will be a full
+	 * one.
+	 *
+	 * @param fullUri
+	 */
+	public void remove(String fullUri) {
+		mPrefs.edit().remove(fullUri).commit();
+	}
+
+	/**
+	 * Forgets all the cursors. This must be called whenever the local data is
+	 * cleared.
+	 */
+	public void clear() {
+		mPrefs.edit().clear().commit();
+	}
+
+	/**
+	 * @param path
+	 *            a public path, which may already have a query string
+	 * @param serverTime
+	 * @return the path with the {@link #SERVER_QUERY_PARAMETER} added
+	 */
+	public static String addModifiedSince(String path, long serverTime) {
+		return path + (path.indexOf('?') == -1 ? '?' : '&') + SERVER_QUERY_PARAMETER + "="
+				+ Uri.encode(NetworkClient.formatDate(new Date(serverTime)));
+	}
+}
@@ -23,15 +23,20 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.impl.cookie.DateParseException;
 import org.apache.http.impl.cookie.DateUtils;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -46,11 +51,13 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SyncResult;
+import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
+import edu.mit.mobile.android.json.JSONArrayStreamReader;
 import edu.mit.mobile.android.locast.Constants;
 import edu.mit.mobile.android.locast.data.Cast;
 import edu.mit.mobile.android.locast.data.CastMedia;
@@ -62,9 +69,12 @@ import edu.mit.mobile.android.locast.data.MediaProvider;
 import edu.mit.mobile.android.locast.data.NoPublicPath;
 import edu.mit.mobile.android.locast.data.SyncException;
 import edu.mit.mobile.android.locast.data.SyncMap;
+import edu.mit.mobile.android.locast.data.SyncMetric;
 import edu.mit.mobile.android.locast.net.NetworkClient;
 import edu.mit.mobile.android.locast.net.NetworkProtocolException;
+import edu.mit.mobile.android.locast.ver2.R;
 import edu.mit.mobile.android.utils.LastUpdatedMap;
+import edu.mit.mobile.android.utils.MeteredInputStream;
 import edu.mit.mobile.android.utils.StreamUtils;
 
 public class SyncEngine {
@@ -76,6 +86,21 @@ public class SyncEngine {
 	 */
 	public final static String EXTRA_DESTINATION_URI = "edu.mit.mobile.android.locast.EXTRA_DESTINATION_URI";
 
+	/**
+	 * A boolean extra. If true, directories are downloaded in full instead of
+	 * only requesting the items that have changed since the last sync.
+	 */
+	public final static String EXTRA_FULL_SYNC = "edu.mit.mobile.android.locast.EXTRA_FULL_SYNC";
+
+	/**
+	 * A boolean extra. If true, a directory only requests the items that have
+	 * changed since it was last sync'd. This is only meant for top-level
+	 * collections: the items of a relation or child directory can change
+	 * without their modification dates changing, so those are always
+	 * downloaded in full. It isn't passed on to child syncs.
+	 */
+	public final static String EXTRA_DELTA_SYNC = "edu.mit.mobile.android.locast.EXTRA_DELTA_SYNC";
+
 	private static final String CONTENT_TYPE_PREFIX_DIR = "vnd.android.cursor.dir";
 
 	private static final HashMap<String, Class<? extends JsonSyncableItem>> TYPE_MAP = new HashMap<String, Class<? extends JsonSyncableItem>>();
@@ -101,6 +126,7 @@ public class SyncEngine {
 
 	private final Context mContext;
 	private final NetworkClient mNetworkClient;
+	private final SyncCursorStore mSyncCursors;
 
 	private static final long TIMEOUT_MAX_ITEM_WAIT = (long) (30 * 1e9), // nanoseconds
 			TIMEOUT_AUTO_SYNC_MINIMUM = (long) (60 * 1e9); // nanoseconds
@@ -113,6 +139,57 @@ public class SyncEngine {
 														// differ by and still
 														// be considered equal.
 
+	/**
+	 * The number of items that are read from a streamed JSON array before
+	 * they're reconciled with the database. This bounds the memory used by a
+	 * directory sync, no matter how large the array is.
+	 */
+	private final int mStreamingBatchSize;
+
+	/**
+	 * SQLite's default limit on the number of arguments of a statement. A
+	 * batch is looked up with one argument per item, so it can't be larger.
+	 */
+	private static final int MAX_SQL_ARGUMENTS = 999;
+
+	/**
+	 * The maximum number of operations sent to the provider in one
+	 * {@link ContentProviderClient#applyBatch(ArrayList)}. The post-sync
+	 * handlers are run after each chunk, so items show up as they're written.
+	 */
+	private final int mApplyChunkSize;
+
+	/**
+	 * Within a chunk, the provider is allowed to yield its transaction every
+	 * this many operations.
+	 */
+	private final int mApplyYieldInterval;
+
+	/**
+	 * Sends the uploads of all the syncs that this engine runs, so that no more
+	 * than sync_upload_concurrency are sent to the server at once. Its threads
+	 * exit after being idle for {@link #UPLOAD_THREAD_KEEP_ALIVE} seconds, as
+	 * the engine lives as long as the process.
+	 */
+	private final ExecutorService mUploadExecutor;
+
+	private static final long UPLOAD_THREAD_KEEP_ALIVE = 30; // seconds
+
+	/**
+	 * Makes an upload wait for a free thread when they're all busy.
+	 */
+	private static final RejectedExecutionHandler WAIT_FOR_THREAD = new RejectedExecutionHandler() {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			try {
+				// one of the busy threads will take it once it's done
+				executor.getQueue().put(r);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+	};
+
 	private static final String[] SYNC_PROJECTION = new String[] {
 
 	JsonSyncableItem._ID,
@@ -139,14 +216,71 @@ public class SyncEngine {
 	public SyncEngine(Context context, NetworkClient networkClient) {
 		mContext = context;
 		mNetworkClient = networkClient;
+		mSyncCursors = new SyncCursorStore(context);
+
+		final Resources res = context.getResources();
+		mStreamingBatchSize = Math.min(res.getInteger(R.integer.sync_streaming_batch_size),
+				MAX_SQL_ARGUMENTS);
+		mApplyChunkSize = res.getInteger(R.integer.sync_apply_chunk_size);
+		mApplyYieldInterval = res.getInteger(R.integer.sync_apply_yield_interval);
+		// allowCoreThreadTimeOut() isn't available before API 9, so there are no
+		// core threads and tasks are handed straight to a thread.
+		mUploadExecutor = new ThreadPoolExecutor(0, res.getInteger(R.integer.sync_upload_concurrency),
+				UPLOAD_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				WAIT_FOR_THREAD);
 	}
 
+	/**
+	 * Synchronizes the given item or directory with the server. Any child
+	 * directories that are discovered along the way are sync'd at the end of
+	 * the same pass; see {@link ChildSyncCoordinator}.
+	 *
+	 * @param toSync
+	 *            a local content:// URI or an http(s):// public URL, in which
+	 *            case {@link #EXTRA_DESTINATION_URI} must be provided
+	 * @param account
+	 * @param extras
+	 * @param provider
+	 * @param syncResult
+	 * @return true if the item was sync'd, false if it was skipped
+	 * @throws RemoteException
+	 * @throws SyncException
+	 * @throws JSONException
+	 * @throws IOException
+	 * @throws NetworkProtocolException
+	 * @throws NoPublicPath
+	 * @throws OperationApplicationException
+	 */
 	public boolean sync(Uri toSync, Account account, Bundle extras, ContentProviderClient provider,
 			SyncResult syncResult) throws RemoteException, SyncException, JSONException,
 			IOException, NetworkProtocolException, NoPublicPath, OperationApplicationException {
 
-		final String type = provider.getType(toSync);
-		final boolean isDir = type.startsWith(CONTENT_TYPE_PREFIX_DIR);
+		// this is a child sync, which will be handled by the outermost sync
+		if (ChildSyncCoordinator.getCurrent() != null) {
+			return syncTarget(toSync, account, extras, provider, syncResult);
+		}
+
+		final ChildSyncCoordinator children = new ChildSyncCoordinator(this, mNetworkClient, toSync);
+		children.bind();
+		try {
+			final boolean synced = syncTarget(toSync, account, extras, provider, syncResult);
+
+			children.syncChildren(account, extras, provider, syncResult);
+
+			if (DEBUG) {
+				Log.i(TAG, "sync pass " + children.getPassMetrics());
+			}
+
+			return synced;
+		} finally {
+			children.unbind();
+		}
+	}
+
+	private boolean syncTarget(Uri toSync, Account account, Bundle extras,
+			ContentProviderClient provider, SyncResult syncResult) throws RemoteException,
+			SyncException, JSONException, IOException, NetworkProtocolException, NoPublicPath,
+			OperationApplicationException {
 
 		String pubPath = null;
 
@@ -164,6 +298,10 @@ public class SyncEngine {
 			toSync = Uri.parse(extras.getString(EXTRA_DESTINATION_URI));
 		}
 
+		// this must be the local URI, as the provider doesn't know about http URIs
+		final String type = provider.getType(toSync);
+		final boolean isDir = type.startsWith(CONTENT_TYPE_PREFIX_DIR);
+
 		final boolean manualSync = extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
 
 		// skip any items already sync'd
@@ -174,20 +312,78 @@ public class SyncEngine {
 			return false;
 		}
 
-		// the sync map will convert the json data to ContentValues
-		final SyncMap syncMap = getSyncMap(provider, toSync);
+		final SyncMetrics metrics = new SyncMetrics(toSync);
+		boolean completed = false;
+		try {
+			performSync(toSync, pubPath, isDir, account, extras, provider, syncResult, metrics);
+			completed = true;
 
+		} catch (final IOException e) {
+			metrics.setError(e);
+			throw e;
 
+		} catch (final JSONException e) {
+			metrics.setError(e);
+			throw e;
 
-		final HashMap<String, SyncStatus> syncStatuses = new HashMap<String, SyncEngine.SyncStatus>();
-		final ArrayList<ContentProviderOperation> cpo = new ArrayList<ContentProviderOperation>();
-		final LinkedList<String> cpoPubUris = new LinkedList<String>();
+		} catch (final NetworkProtocolException e) {
+			metrics.setError(e);
+			throw e;
+
+		} catch (final SyncException e) {
+			metrics.setError(e);
+			throw e;
+
+		} catch (final RuntimeException e) {
+			metrics.setError(e);
+			throw e;
+
+		} finally {
+			if (!completed && !metrics.hasError()) {
+				metrics.setError("sync did not complete");
+			}
+			recordMetrics(provider, metrics);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Does the actual work of {@link #syncTarget(Uri, Account, Bundle, ContentProviderClient, SyncResult)}.
+	 *
+	 * @param toSync
+	 *            the local URI
+	 * @param pubPath
+	 *            the public path, if it's already known
+	 * @param isDir
+	 * @param account
+	 * @param extras
+	 * @param provider
+	 * @param syncResult
+	 * @param metrics
+	 *            the timing of each phase is added to this
+	 * @throws RemoteException
+	 * @throws SyncException
+	 * @throws JSONException
+	 * @throws IOException
+	 * @throws NetworkProtocolException
+	 * @throws NoPublicPath
+	 * @throws OperationApplicationException
+	 */
+	private void performSync(Uri toSync, String pubPath, boolean isDir, Account account,
+			Bundle extras, ContentProviderClient provider, SyncResult syncResult,
+			SyncMetrics metrics) throws RemoteException, SyncException, JSONException,
+			IOException, NetworkProtocolException, NoPublicPath, OperationApplicationException {
+
+		// the sync map will convert the json data to ContentValues
+		final SyncMap syncMap = getSyncMap(provider, toSync);
 
 		//
 		// first things first, upload any content that needs to be uploaded.
 		//
 
-		uploadUnpublished(toSync, provider, syncMap, syncStatuses, syncResult);
+		uploadUnpublished(toSync, provider, syncMap, new HashMap<String, SyncStatus>(),
+				syncResult, metrics);
 
 		// this should ensure that all items have a pubPath when we query it below.
 
@@ -210,16 +406,41 @@ public class SyncEngine {
 		}
 
 		if (DEBUG){
-			Log.d(TAG, "sync(toSync="+toSync+", account="+account+", extras="+extras+", manualSync="+manualSync+",...)");
+			Log.d(TAG, "sync(toSync="+toSync+", account="+account+", extras="+extras+",...)");
 			Log.d(TAG, "pubPath: "+pubPath);
 		}
 
+		// only ask for the items that have changed since the last complete sync
+		// of this path, if asked to and unless a full sync has been requested.
+		final boolean useCursor = isDir && extras.getBoolean(EXTRA_DELTA_SYNC, false);
+		final String cursorKey = useCursor ? mNetworkClient.getFullUriAsString(pubPath) : null;
+		String requestPath = pubPath;
+		if (useCursor && !extras.getBoolean(EXTRA_FULL_SYNC, false)) {
+			final long modifiedSince = mSyncCursors.getModifiedSince(cursorKey);
+			if (modifiedSince != SyncCursorStore.NO_CURSOR) {
+				requestPath = SyncCursorStore.addModifiedSince(pubPath, modifiedSince);
+			}
+		}
+
 		final long request_time = System.currentTimeMillis();
+		final long requestStart = metrics.start();
 
-		final HttpResponse hr = mNetworkClient.get(pubPath);
+		final HttpResponse hr = mNetworkClient.getIfModified(requestPath);
 
+		metrics.stop(SyncMetrics.PHASE_RESPONSE, requestStart);
 		final long response_time = System.currentTimeMillis();
 
+		// nothing has changed since the last time this was sync'd, so there's
+		// nothing to parse or store.
+		if (NetworkClient.isNotModified(hr)) {
+			if (DEBUG) {
+				Log.d(TAG, requestPath + " has not been modified since the last sync");
+			}
+			metrics.setNotModified();
+			mLastUpdated.markUpdated(toSync);
+			return;
+		}
+
 		// the time compensation below allows a time-based synchronization to
 		// function even if the local clock is entirely wrong. The server's time
 		// is extracted using the Date header and all are compared relative to
@@ -256,49 +477,179 @@ public class SyncEngine {
 
 		final HttpEntity ent = hr.getEntity();
 
-		Cursor c;
-		if (isDir) {
+		final ArrayList<SyncStatus> batch = new ArrayList<SyncStatus>(mStreamingBatchSize);
 
-			final JSONArray ja = new JSONArray(StreamUtils.inputStreamToString(ent.getContent()));
-			ent.consumeContent();
+		// the newest modification date seen, in server time
+		long highWaterMark = SyncCursorStore.NO_CURSOR;
 
-			final int len = ja.length();
-			final String[] selectionArgs = new String[len];
+		// the time spent reading from this is the transfer time; the rest of
+		// the time spent reading JSON is parsing.
+		final MeteredInputStream body = new MeteredInputStream(ent.getContent());
+		long readNanos = 0;
 
-			// build the query to see which items are already in the database
-			final StringBuilder selection = new StringBuilder();
-			selection.append(JsonSyncableItem._PUBLIC_URI);
-			selection.append(" in (");
+		if (isDir) {
 
-			for (int i = 0; i < len; i++) {
-				final SyncStatus syncStatus = loadItemFromJsonObject(ja.getJSONObject(i), syncMap,
-						serverTime);
+			// the array is read one item at a time and handled in batches, so
+			// that only a batch's worth of JSON is ever held in memory
+			final JSONArrayStreamReader items = new JSONArrayStreamReader(body);
+			try {
+				while (true) {
+					long start = metrics.start();
+					if (!items.hasNext()) {
+						readNanos += System.nanoTime() - start;
+						break;
+					}
+					// the sync can be canceled part of the way through a large directory
+					if (Thread.currentThread().isInterrupted()) {
+						throw new SyncException("sync of " + toSync + " was canceled");
+					}
+					final JSONObject jo = items.next();
+					readNanos += System.nanoTime() - start;
 
-				syncStatuses.put(syncStatus.remote, syncStatus);
+					start = metrics.start();
+					final SyncStatus syncStatus = loadItemFromJsonObject(jo, syncMap, serverTime);
+					metrics.stop(SyncMetrics.PHASE_MAP, start);
+					metrics.addItems(1);
 
-				selectionArgs[i] = syncStatus.remote;
+					highWaterMark = Math.max(highWaterMark, syncStatus.remoteModifiedTime);
+					batch.add(syncStatus);
 
-				// add in a placeholder for the query
-				selection.append('?');
-				if (i != (len - 1)) {
-					selection.append(',');
+					if (batch.size() == mStreamingBatchSize) {
+						syncBatch(toSync, pubPath, batch, provider, syncMap, syncResult,
+								localTime, serverTime, localOffset, metrics);
+						batch.clear();
+					}
+				}
+				if (DEBUG) {
+					Log.d(TAG, "read " + items.getItemCount() + " items from " + pubPath);
 				}
+			} finally {
+				items.close();
+				ent.consumeContent();
 			}
-			selection.append(")");
 
-			c = provider.query(toSync, SYNC_PROJECTION, selection.toString(), selectionArgs, null);
 		} else {
-
-			final JSONObject jo = new JSONObject(StreamUtils.inputStreamToString(ent.getContent()));
+			long start = metrics.start();
+			final JSONObject jo = new JSONObject(StreamUtils.inputStreamToString(body));
 			ent.consumeContent();
-			final SyncStatus syncStatus = loadItemFromJsonObject(jo, syncMap, serverTime);
+			readNanos += System.nanoTime() - start;
+
+			start = metrics.start();
+			batch.add(loadItemFromJsonObject(jo, syncMap, serverTime));
+			metrics.stop(SyncMetrics.PHASE_MAP, start);
+			metrics.addItems(1);
+		}
+
+		metrics.add(SyncMetrics.PHASE_TRANSFER, body.getReadTime());
+		metrics.add(SyncMetrics.PHASE_PARSE, Math.max(0, readNanos - body.getReadTime()));
+		metrics.addBytes(body.getBytesRead());
+
+		if (batch.size() > 0) {
+			syncBatch(toSync, pubPath, batch, provider, syncMap, syncResult, localTime,
+					serverTime, localOffset, metrics);
+			batch.clear();
+		}
+
+		// Everything up to the newest item is now stored locally. The cursor
+		// only moves when something has changed, so the next request URI
+		// stays the same and the conditional GET can be answered with a 304.
+		if (useCursor && highWaterMark > mSyncCursors.getModifiedSince(cursorKey)) {
+			mSyncCursors.setModifiedSince(cursorKey, highWaterMark);
+
+			// this URI won't be requested again, so its validators would
+			// only pile up.
+			mNetworkClient.removeValidators(requestPath);
+
+		} else {
+			// only now that everything has been stored is it safe to skip this
+			// response in the future.
+			mNetworkClient.saveValidators(requestPath, hr);
+		}
+
+		mLastUpdated.markUpdated(toSync);
+	}
+
+	/**
+	 * Stores the metrics of a sync target. This never fails the sync.
+	 *
+	 * @param provider
+	 * @param metrics
+	 */
+	private void recordMetrics(ContentProviderClient provider, SyncMetrics metrics) {
+		metrics.finish();
+
+		if (DEBUG) {
+			Log.d(TAG, metrics.toString());
+		}
+
+		final ChildSyncCoordinator pass = ChildSyncCoordinator.getCurrent();
+		if (pass != null) {
+			pass.getPassMetrics().add(metrics);
+		}
+
+		try {
+			provider.insert(SyncMetric.CONTENT_URI, metrics.toContentValues());
+		} catch (final Exception e) {
+			Log.w(TAG, "could not store sync metrics", e);
+		}
+	}
+
+	/**
+	 * Reconciles a batch of items that were loaded from the server with what's
+	 * stored locally. Items that are newer on the server are updated, items
+	 * that are newer locally are published and items that aren't stored
+	 * locally are inserted.
+	 *
+	 * @param toSync
+	 *            the local destination of the items
+	 * @param pubPath
+	 *            the public path that the items were loaded from
+	 * @param batch
+	 *            the items, as loaded by
+	 *            {@link #loadItemFromJsonObject(JSONObject, SyncMap, long)}
+	 * @param provider
+	 * @param syncMap
+	 * @param syncResult
+	 * @param localTime
+	 *            the local time of the request
+	 * @param serverTime
+	 *            the server time of the response
+	 * @param localOffset
+	 *            add this to a server time to get the local time
+	 * @param metrics
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 * @throws SyncException
+	 * @throws JSONException
+	 * @throws IOException
+	 * @throws NetworkProtocolException
+	 */
+	private void syncBatch(Uri toSync, String pubPath, List<SyncStatus> batch,
+			ContentProviderClient provider, final SyncMap syncMap, final SyncResult syncResult,
+			long localTime, long serverTime, long localOffset, SyncMetrics metrics) throws RemoteException,
+			OperationApplicationException, SyncException, JSONException, IOException,
+			NetworkProtocolException {
+
+		final HashMap<String, SyncStatus> syncStatuses = new HashMap<String, SyncEngine.SyncStatus>();
+		final ArrayList<Builder> cpo = new ArrayList<Builder>();
+		final ArrayList<String> cpoPubUris = new ArrayList<String>();
+		final UploadPipeline localChanges = new UploadPipeline(mNetworkClient, mUploadExecutor);
 
+		for (final SyncStatus syncStatus : batch) {
 			syncStatuses.put(syncStatus.remote, syncStatus);
+		}
 
-			c = provider.query(toSync, SYNC_PROJECTION, JsonSyncableItem._PUBLIC_URI + "=?",
-					new String[] { syncStatus.remote }, null);
+		// see which items are already in the database. Batches are small enough
+		// for their public URIs to be within SQLite's limit on arguments.
+		final int len = batch.size();
+		final String[] selectionArgs = new String[len];
+		for (int i = 0; i < len; i++) {
+			selectionArgs[i] = batch.get(i).remote;
 		}
 
+		final Cursor c = provider.query(toSync, SYNC_PROJECTION,
+				getPublicUriSelection(len), selectionArgs, null);
+
 		// these items are on both sides
 		try {
 			final int pubUriCol = c.getColumnIndex(JsonSyncableItem._PUBLIC_URI);
@@ -379,7 +730,7 @@ public class SyncEngine {
 					b.withValues(itemStatus.remoteCVs);
 					b.withExpectedCount(1);
 
-					cpo.add(b.build());
+					cpo.add(b);
 					cpoPubUris.add(pubUri);
 
 					syncResult.stats.numUpdates++;
@@ -403,10 +754,14 @@ public class SyncEngine {
 					}
 					itemStatus.state = SyncState.LOCAL_DIRTY;
 
-					mNetworkClient.putJson(pubPath, JsonSyncableItem.toJSON(mContext, localUri, c, syncMap));
+					// sent once the cursor is closed. It's marked as updated
+					// once it has been sent successfully.
+					localChanges.put(pubPath, JsonSyncableItem.toJSON(mContext, localUri, c, syncMap), localUri);
 				}
 
-				mLastUpdated.markUpdated(localUri);
+				if (itemStatus.state != SyncState.LOCAL_DIRTY) {
+					mLastUpdated.markUpdated(localUri);
+				}
 
 				syncResult.stats.numEntries++;
 			} // end for
@@ -415,29 +770,40 @@ public class SyncEngine {
 			c.close();
 		}
 
+		// publish the items that are newer locally. Any errors are thrown once
+		// the rest of the batch has been stored.
+		if (DEBUG && localChanges.size() > 0) {
+			Log.d(TAG, "publishing " + localChanges.size() + " local changes...");
+		}
+		final long uploadStart = metrics.start();
+		final List<UploadPipeline.Upload> published = localChanges.send();
+		metrics.stop(SyncMetrics.PHASE_UPLOAD, uploadStart);
+		for (final UploadPipeline.Upload upload : published) {
+			if (upload.error == null) {
+				mLastUpdated.markUpdated(upload.localUri);
+			}
+		}
+
 		// apply bulk updates
 		if (cpo.size() > 0) {
 			if (DEBUG) {
 				Log.d(TAG, "applying " + cpo.size() + " bulk updates...");
 			}
 
-			final ContentProviderResult[] r = provider.applyBatch(cpo);
-			if (DEBUG) {
-				Log.d(TAG, "Done applying updates. Running postSync handler...");
-			}
+			applyInChunks(toSync, provider, cpo, cpoPubUris, metrics, new ChunkResultHandler() {
+				public void onResult(String pubUri, ContentProviderResult res)
+						throws SyncException, IOException {
+					final SyncStatus ss = syncStatuses.get(pubUri);
+					if (ss == null) {
+						Log.e(TAG, "can't get sync status for " + res.uri);
+						return;
+					}
+					syncMap.onPostSyncItem(mContext, ss.local, ss.remoteJson,
+							res.count != null ? res.count == 1 : true);
 
-			for (int i = 0; i < r.length; i++) {
-				final ContentProviderResult res = r[i];
-				final SyncStatus ss = syncStatuses.get(cpoPubUris.get(i));
-				if (ss == null) {
-					Log.e(TAG, "can't get sync status for " + res.uri);
-					continue;
+					ss.state = SyncState.NOW_UP_TO_DATE;
 				}
-				syncMap.onPostSyncItem(mContext, ss.local, ss.remoteJson,
-						res.count != null ? res.count == 1 : true);
-
-				ss.state = SyncState.NOW_UP_TO_DATE;
-			}
+			});
 
 			if (DEBUG) {
 				Log.d(TAG, "done running postSync handler.");
@@ -471,7 +837,7 @@ public class SyncEngine {
 						.newInsert(toSync);
 				b.withValues(status.remoteCVs);
 
-				cpo.add(b.build());
+				cpo.add(b);
 				cpoPubUris.add(pubUri);
 				syncResult.stats.numInserts++;
 
@@ -485,33 +851,30 @@ public class SyncEngine {
 			if (DEBUG){
 				Log.d(TAG, "bulk inserting "+ cpo.size() + " items...");
 			}
-			final ContentProviderResult[] r = provider.applyBatch(cpo);
-			if (DEBUG) {
-				Log.d(TAG, "applyBatch completed. Processing results...");
-			}
-
-			for (int i = 0; i < r.length; i++) {
-				final ContentProviderResult res = r[i];
-				if (res.uri == null) {
-					syncResult.stats.numSkippedEntries++;
-					Log.e(TAG, "result from content provider bulk operation returned null");
-					continue;
-				}
-				final SyncStatus ss = syncStatuses.get(cpoPubUris.get(i));
+			applyInChunks(toSync, provider, cpo, cpoPubUris, metrics, new ChunkResultHandler() {
+				public void onResult(String pubUri, ContentProviderResult res)
+						throws SyncException, IOException {
+					if (res.uri == null) {
+						syncResult.stats.numSkippedEntries++;
+						Log.e(TAG, "result from content provider bulk operation returned null");
+						return;
+					}
+					final SyncStatus ss = syncStatuses.get(pubUri);
 
-				if (ss == null) {
-					syncResult.stats.numSkippedEntries++;
-					Log.e(TAG, "could not find sync status for " + cpoPubUris.get(i));
-					continue;
-				}
+					if (ss == null) {
+						syncResult.stats.numSkippedEntries++;
+						Log.e(TAG, "could not find sync status for " + pubUri);
+						return;
+					}
 
-				ss.local = res.uri;
+					ss.local = res.uri;
 
-				syncMap.onPostSyncItem(mContext, res.uri, ss.remoteJson,
-						res.count != null ? res.count == 1 : true);
+					syncMap.onPostSyncItem(mContext, res.uri, ss.remoteJson,
+							res.count != null ? res.count == 1 : true);
 
-				ss.state = SyncState.NOW_UP_TO_DATE;
-			}
+					ss.state = SyncState.NOW_UP_TO_DATE;
+				}
+			});
 			if (DEBUG) {
 				Log.d(TAG, "batch updates successfully applied.");
 			}
@@ -521,11 +884,103 @@ public class SyncEngine {
 			}
 		}
 
-		syncStatuses.clear();
+		UploadPipeline.rethrowFirstError(published);
+	}
 
-		mLastUpdated.markUpdated(toSync);
+	/**
+	 * @param count
+	 *            the number of arguments
+	 * @return a selection that matches any of the given number of public URIs
+	 */
+	private static String getPublicUriSelection(int count) {
+		final StringBuilder sb = new StringBuilder(JsonSyncableItem._PUBLIC_URI.length()
+				+ 6 + count * 2);
+		sb.append(JsonSyncableItem._PUBLIC_URI);
+		sb.append(" IN (");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('?');
+		}
+		sb.append(')');
+		return sb.toString();
+	}
 
-		return true;
+	/**
+	 * Receives the result of each operation applied by
+	 * {@link SyncEngine#applyInChunks(Uri, ContentProviderClient, List, List, SyncMetrics, ChunkResultHandler)}
+	 * .
+	 */
+	private interface ChunkResultHandler {
+		/**
+		 * @param key
+		 *            the key that was given along with the operation
+		 * @param result
+		 *            the result of the operation
+		 * @throws SyncException
+		 * @throws IOException
+		 */
+		public void onResult(String key, ContentProviderResult result) throws SyncException,
+				IOException;
+	}
+
+	/**
+	 * Applies the operations in chunks of {@link #mApplyChunkSize}, so that the
+	 * provider's write lock isn't held for the whole set. Yields are allowed
+	 * every {@link #mApplyYieldInterval} operations within a chunk. The results
+	 * of each chunk are handed to the handler before the next one is applied.
+	 * Observers of the directory are notified once per chunk of any changes that
+	 * the handler made without notifying them, such as tags.
+	 *
+	 * @param dir
+	 *            the directory that the items are in
+	 * @param provider
+	 * @param ops
+	 *            the operations to apply, in order
+	 * @param keys
+	 *            a key for each operation, which is passed to the handler
+	 * @param metrics
+	 *            the time spent applying and handling results is added to this
+	 * @param handler
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 * @throws SyncException
+	 * @throws IOException
+	 */
+	private void applyInChunks(Uri dir, ContentProviderClient provider, List<Builder> ops,
+			List<String> keys, SyncMetrics metrics, ChunkResultHandler handler) throws RemoteException,
+			OperationApplicationException, SyncException, IOException {
+		final int total = ops.size();
+		final ArrayList<ContentProviderOperation> chunk = new ArrayList<ContentProviderOperation>(
+				Math.min(total, mApplyChunkSize));
+
+		for (int start = 0; start < total; start += mApplyChunkSize) {
+			final int end = Math.min(total, start + mApplyChunkSize);
+
+			chunk.clear();
+			for (int i = start; i < end; i++) {
+				final Builder b = ops.get(i);
+				if (i > start && (i - start) % mApplyYieldInterval == 0) {
+					b.withYieldAllowed(true);
+				}
+				chunk.add(b.build());
+			}
+
+			if (DEBUG) {
+				Log.d(TAG, "applying operations " + start + "-" + (end - 1) + " of " + total);
+			}
+			long phaseStart = metrics.start();
+			final ContentProviderResult[] r = provider.applyBatch(chunk);
+			metrics.stop(SyncMetrics.PHASE_APPLY, phaseStart);
+
+			phaseStart = metrics.start();
+			for (int i = 0; i < r.length; i++) {
+				handler.onResult(keys.get(start + i), r[i]);
+			}
+			mContext.getContentResolver().notifyChange(dir, null, false);
+			metrics.stop(SyncMetrics.PHASE_POST_SYNC, phaseStart);
+		}
 	}
 
 	/**
@@ -537,6 +992,7 @@ public class SyncEngine {
 	 * @param provider
 	 * @param syncMap
 	 * @param syncResult
+	 * @param metrics
 	 * @return the number of casts uploaded.
 	 * @throws JSONException
 	 * @throws NetworkProtocolException
@@ -546,82 +1002,104 @@ public class SyncEngine {
 	 * @throws OperationApplicationException
 	 * @throws SyncException
 	 */
-	private int uploadUnpublished(Uri itemDir, ContentProviderClient provider, SyncMap syncMap, HashMap<String, SyncEngine.SyncStatus> syncStatuses, SyncResult syncResult) throws JSONException, NetworkProtocolException, IOException, NoPublicPath, RemoteException, OperationApplicationException, SyncException{
+	private int uploadUnpublished(Uri itemDir, ContentProviderClient provider, SyncMap syncMap, HashMap<String, SyncEngine.SyncStatus> syncStatuses, SyncResult syncResult, SyncMetrics metrics) throws JSONException, NetworkProtocolException, IOException, NoPublicPath, RemoteException, OperationApplicationException, SyncException{
 		int count = 0;
-		final ArrayList<ContentProviderOperation> cpo = new ArrayList<ContentProviderOperation>();
 
-		final Cursor uploadMe = provider.query(itemDir, null, SELECTION_UNPUBLISHED, null, null);
-
-		final int idCol = uploadMe.getColumnIndex(JsonSyncableItem._ID);
-
-		final int toUpload = uploadMe.getCount();
-
-		final String[] localUris = new String[toUpload];
+		final UploadPipeline pipeline = new UploadPipeline(mNetworkClient, mUploadExecutor);
 
-		int i = 0;
+		// gather everything that needs to be uploaded first, so the cursor
+		// isn't held open while waiting on the network.
+		final Cursor uploadMe = provider.query(itemDir, null, SELECTION_UNPUBLISHED, null, null);
 
 		try {
+			final int idCol = uploadMe.getColumnIndex(JsonSyncableItem._ID);
+
 			for (uploadMe.moveToFirst(); !uploadMe.isAfterLast(); uploadMe.moveToNext()){
 				final Uri localUri = ContentUris.withAppendedId(itemDir, uploadMe.getLong(idCol));
 				final String postUri = MediaProvider.getPostPath(mContext, localUri);
 
 				final JSONObject jo = JsonSyncableItem.toJSON(mContext, localUri, uploadMe, syncMap);
 
-				if (DEBUG){
-					Log.d(TAG, "uploading " + localUri + " to "+ postUri);
-				}
-				final HttpResponse res = mNetworkClient.post(postUri, jo.toString());
-
-				mNetworkClient.checkStatusCode(res, true);
+				pipeline.post(postUri, jo, localUri);
+			}
+		}finally{
+			uploadMe.close();
+		}
 
-				long serverTime;
-				try {
-					serverTime = getServerTime(res);
-				}catch (final DateParseException e){
-					serverTime = System.currentTimeMillis();
-				}
+		if (pipeline.size() == 0){
+			return 0;
+		}
 
-				final JSONObject newJo = NetworkClient.toJsonObject(res);
-				try {
-					final SyncStatus ss = loadItemFromJsonObject(newJo, syncMap, serverTime);
+		long phaseStart = metrics.start();
+		final List<UploadPipeline.Upload> uploads = pipeline.send();
+		metrics.stop(SyncMetrics.PHASE_UPLOAD, phaseStart);
 
-					final Builder update = ContentProviderOperation.newUpdate(localUri);
-					update.withValues(ss.remoteCVs);
-					cpo.add(update.build());
-					localUris[i] = localUri.toString();
+		// store the server's version of everything that was successfully
+		// uploaded, all in one batch. This is done even if some of the uploads
+		// failed, so that they aren't published a second time.
+		final ArrayList<ContentProviderOperation> cpo = new ArrayList<ContentProviderOperation>(uploads.size());
+		final ArrayList<String> localUris = new ArrayList<String>(uploads.size());
 
-					syncStatuses.put(localUris[i], ss);
+		for (final UploadPipeline.Upload upload : uploads){
+			if (upload.error != null){
+				continue;
+			}
 
-					i++;
-					count++;
-					syncResult.stats.numEntries++;
-					syncResult.stats.numUpdates++;
+			long serverTime;
+			try {
+				serverTime = getServerTime(upload.response);
+			}catch (final DateParseException e){
+				serverTime = System.currentTimeMillis();
+			}
 
-				}catch (final JSONException e){
-					if (DEBUG){
-						Log.e(TAG, "result was "+newJo.toString());
-					}
-					throw e;
+			final SyncStatus ss;
+			try {
+				ss = loadItemFromJsonObject(upload.result, syncMap, serverTime);
+			}catch (final JSONException e){
+				if (DEBUG){
+					Log.e(TAG, "result was "+upload.result.toString());
 				}
+				upload.error = e;
+				continue;
 			}
-		}finally{
-			uploadMe.close();
+
+			final Builder update = ContentProviderOperation.newUpdate(upload.localUri);
+			update.withValues(ss.remoteCVs);
+			cpo.add(update.build());
+
+			ss.local = upload.localUri;
+			localUris.add(upload.localUri.toString());
+			syncStatuses.put(upload.localUri.toString(), ss);
+
+			count++;
+			syncResult.stats.numEntries++;
+			syncResult.stats.numUpdates++;
 		}
 
-		final ContentProviderResult[] cpr = provider.applyBatch(cpo);
+		if (cpo.size() > 0){
+			phaseStart = metrics.start();
+			final ContentProviderResult[] cpr = provider.applyBatch(cpo);
+			metrics.stop(SyncMetrics.PHASE_APPLY, phaseStart);
 
-		for (i = 0; i < cpr.length; i++){
-			if (cpr[i].count != 1){
-				Log.e(TAG, "error updating "+ localUris[i]);
-				syncResult.stats.numSkippedEntries++;
-				continue;
-			}
+			phaseStart = metrics.start();
 
-			final SyncStatus ss = syncStatuses.get(localUris[i]);
+			for (int i = 0; i < cpr.length; i++){
+				if (cpr[i].count != 1){
+					Log.e(TAG, "error updating "+ localUris.get(i));
+					syncResult.stats.numSkippedEntries++;
+					continue;
+				}
+
+				final SyncStatus ss = syncStatuses.get(localUris.get(i));
 
-			syncMap.onPostSyncItem(mContext, itemDir, ss.remoteJson, true);
+				syncMap.onPostSyncItem(mContext, ss.local, ss.remoteJson, true);
+			}
+			mContext.getContentResolver().notifyChange(itemDir, null, false);
+			metrics.stop(SyncMetrics.PHASE_POST_SYNC, phaseStart);
 		}
 
+		UploadPipeline.rethrowFirstError(uploads);
+
 		return count;
 	}
 
@@ -660,7 +1138,12 @@ public class SyncEngine {
 	public int uploadUnpublished(Uri itemDir, Account account, Bundle extras, ContentProviderClient provider,
 			SyncResult syncResult) throws RemoteException, SyncException, JSONException, NetworkProtocolException, IOException, NoPublicPath, OperationApplicationException {
 
-		return uploadUnpublished(itemDir, provider, getSyncMap(provider, itemDir), new HashMap<String, SyncEngine.SyncStatus>(), syncResult);
+		final SyncMetrics metrics = new SyncMetrics(itemDir);
+		try {
+			return uploadUnpublished(itemDir, provider, getSyncMap(provider, itemDir), new HashMap<String, SyncEngine.SyncStatus>(), syncResult, metrics);
+		} finally {
+			recordMetrics(provider, metrics);
+		}
 	}
 
 	/**
@@ -0,0 +1,243 @@
+package edu.mit.mobile.android.locast.sync;
+
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import android.content.ContentValues;
+import android.net.Uri;
+import edu.mit.mobile.android.locast.data.SyncMetric;
+
+/**
+ * Records how long each phase of the sync of a single target takes, along
+ * with the number of bytes and items that were transferred. Once the sync is
+ * done, it can be stored using {@link #toContentValues()}.
+ *
+ * Phases can be timed with {@link #start()} and {@link #stop(int, long)}:
+ *
+ * <pre>
+ * final long start = metrics.start();
+ * provider.applyBatch(cpo);
+ * metrics.stop(SyncMetrics.PHASE_APPLY, start);
+ * </pre>
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class SyncMetrics {
+	public static final int
+		PHASE_RESPONSE = 0,
+		PHASE_TRANSFER = 1,
+		PHASE_PARSE = 2,
+		PHASE_MAP = 3,
+		PHASE_APPLY = 4,
+		PHASE_POST_SYNC = 5,
+		PHASE_UPLOAD = 6;
+
+	private static final String[] PHASE_COLUMNS = {
+		SyncMetric._RESPONSE_TIME,
+		SyncMetric._TRANSFER_TIME,
+		SyncMetric._PARSE_TIME,
+		SyncMetric._MAP_TIME,
+		SyncMetric._APPLY_TIME,
+		SyncMetric._POST_SYNC_TIME,
+		SyncMetric._UPLOAD_TIME
+	};
+
+	private final Uri mTarget;
+	private final long mStarted = System.currentTimeMillis();
+	private final long mStartedNanos = System.nanoTime();
+	private long mTotalNanos = -1;
+
+	private final long[] mPhaseNanos = new long[PHASE_COLUMNS.length];
+
+	private long mBytes;
+	private int mItems;
+	private boolean mNotModified;
+	private String mError;
+
+	// only used when summarizing
+	private int mTargets;
+	private int mErrors;
+
+	public SyncMetrics(Uri target) {
+		mTarget = target;
+	}
+
+	/**
+	 * @return a timestamp to pass to {@link #stop(int, long)}
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Adds the time since the given start to the phase.
+	 *
+	 * @param phase
+	 *            one of the PHASE_ constants
+	 * @param start
+	 *            as returned by {@link #start()}
+	 */
+	public void stop(int phase, long start) {
+		add(phase, System.nanoTime() - start);
+	}
+
+	/**
+	 * @param phase
+	 *            one of the PHASE_ constants
+	 * @param nanos
+	 *            time to add to the phase
+	 */
+	public void add(int phase, long nanos) {
+		mPhaseNanos[phase] += nanos;
+	}
+
+	/**
+	 * @param phase
+	 *            one of the PHASE_ constants
+	 * @return the time spent in the given phase, in nanoseconds
+	 */
+	public long get(int phase) {
+		return mPhaseNanos[phase];
+	}
+
+	public void addBytes(long bytes) {
+		mBytes += bytes;
+	}
+
+	public void addItems(int items) {
+		mItems += items;
+	}
+
+	public long getBytes() {
+		return mBytes;
+	}
+
+	public int getItems() {
+		return mItems;
+	}
+
+	/**
+	 * Marks the target as not having been modified since the last sync.
+	 */
+	public void setNotModified() {
+		mNotModified = true;
+	}
+
+	/**
+	 * @param error
+	 *            the error that stopped the sync
+	 */
+	public void setError(Throwable error) {
+		setError(error.getClass().getSimpleName() + ": " + error.getMessage());
+	}
+
+	/**
+	 * @param error
+	 *            a description of the error that stopped the sync
+	 */
+	public void setError(String error) {
+		mError = error;
+	}
+
+	public boolean hasError() {
+		return mError != null;
+	}
+
+	/**
+	 * Adds the phase times and counts of another target to this one. This can
+	 * be used to summarize a whole sync pass.
+	 *
+	 * @param other
+	 */
+	public void add(SyncMetrics other) {
+		for (int i = 0; i < mPhaseNanos.length; i++) {
+			mPhaseNanos[i] += other.mPhaseNanos[i];
+		}
+		mBytes += other.mBytes;
+		mItems += other.mItems;
+		mTargets++;
+		if (other.mError != null) {
+			mErrors++;
+		}
+	}
+
+	/**
+	 * Marks the end of the sync.
+	 */
+	public void finish() {
+		mTotalNanos = System.nanoTime() - mStartedNanos;
+	}
+
+	/**
+	 * @return the total time of the sync, in nanoseconds
+	 */
+	public long getTotal() {
+		return mTotalNanos >= 0 ? mTotalNanos : System.nanoTime() - mStartedNanos;
+	}
+
+	/**
+	 * @return the metrics, suitable for inserting into
+	 *         {@link SyncMetric#CONTENT_URI}
+	 */
+	public ContentValues toContentValues() {
+		final ContentValues cv = new ContentValues();
+		cv.put(SyncMetric._TARGET, mTarget.toString());
+		cv.put(SyncMetric._STARTED, mStarted);
+		cv.put(SyncMetric._TOTAL_TIME, toMillis(getTotal()));
+		for (int i = 0; i < PHASE_COLUMNS.length; i++) {
+			cv.put(PHASE_COLUMNS[i], toMillis(mPhaseNanos[i]));
+		}
+		cv.put(SyncMetric._BYTES, mBytes);
+		cv.put(SyncMetric._ITEMS, mItems);
+		cv.put(SyncMetric._NOT_MODIFIED, mNotModified);
+		cv.put(SyncMetric._ERROR, mError);
+		return cv;
+	}
+
+	private static long toMillis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(mTarget);
+		sb.append(": total=").append(toMillis(getTotal())).append("ms");
+		for (int i = 0; i < PHASE_COLUMNS.length; i++) {
+			if (mPhaseNanos[i] == 0) {
+				continue;
+			}
+			sb.append(' ').append(PHASE_COLUMNS[i]).append('=').append(toMillis(mPhaseNanos[i]))
+					.append("ms");
+		}
+		sb.append(" bytes=").append(mBytes);
+		sb.append(" items=").append(mItems);
+		if (mNotModified) {
+			sb.append(" not modified");
+		}
+		if (mError != null) {
+			sb.append(" error=").append(mError);
+		}
+		if (mTargets > 0) {
+			sb.append(" targets=").append(mTargets);
+			sb.append(" errors=").append(mErrors);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,394 @@
+package edu.mit.mobile.android.locast.sync;
+
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+import edu.mit.mobile.android.locast.Constants;
+import edu.mit.mobile.android.locast.data.NoPublicPath;
+import edu.mit.mobile.android.locast.data.SyncException;
+import edu.mit.mobile.android.locast.net.NetworkProtocolException;
+
+/**
+ * Runs a set of {@link SyncEngine#sync(Uri, Account, Bundle, ContentProviderClient, SyncResult)}
+ * targets at the same time on a bounded pool of threads. A target only starts
+ * once all the targets it depends on have completed successfully, so a parent
+ * can be sync'd before its children.
+ *
+ * Targets with the same content type write to the same table, so they are
+ * never run at once. They're run one after another, in the order they were
+ * added, whether or not the earlier ones succeed.
+ *
+ * Each target is given its own {@link SyncResult}, whose stats are added to
+ * the overall result once the target is done.
+ *
+ * <pre>
+ * final SyncPlanner planner = new SyncPlanner(syncEngine, 3);
+ * planner.addTarget(Itinerary.CONTENT_URI);
+ * planner.addTarget(Cast.FEATURED);
+ * planner.addTarget(childDir, Itinerary.CONTENT_URI);
+ * planner.run(account, extras, provider, syncResult);
+ * </pre>
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class SyncPlanner {
+	private static final String TAG = SyncPlanner.class.getSimpleName();
+
+	private static final boolean DEBUG = Constants.DEBUG;
+
+	private static final long CANCEL_POLL_INTERVAL = 500; // ms
+
+	private final SyncEngine mSyncEngine;
+	private final int mMaxThreads;
+
+	private final LinkedHashMap<Uri, Target> mTargets = new LinkedHashMap<Uri, Target>();
+
+	private volatile boolean mCanceled = false;
+	private volatile ExecutorService mExecutor;
+
+	/**
+	 * @param syncEngine
+	 *            the engine that will perform the syncs. It must be safe to
+	 *            call from multiple threads.
+	 * @param maxThreads
+	 *            the maximum number of targets that are sync'd at once
+	 */
+	public SyncPlanner(SyncEngine syncEngine, int maxThreads) {
+		mSyncEngine = syncEngine;
+		mMaxThreads = maxThreads;
+	}
+
+	/**
+	 * Adds a target to the plan.
+	 *
+	 * @param toSync
+	 *            the URI to sync
+	 * @param dependsOn
+	 *            targets which must be successfully sync'd before this one is
+	 *            started. These must have been added to the plan already.
+	 */
+	public void addTarget(Uri toSync, Uri... dependsOn) {
+		if (mTargets.containsKey(toSync)) {
+			throw new IllegalArgumentException(toSync + " has already been added to the plan");
+		}
+		final Target target = new Target(toSync);
+		for (final Uri dependency : dependsOn) {
+			final Target parent = mTargets.get(dependency);
+			if (parent == null) {
+				throw new IllegalArgumentException(toSync + " depends on " + dependency
+						+ ", which is not in the plan");
+			}
+			target.dependencies.add(parent);
+		}
+		mTargets.put(toSync, target);
+	}
+
+	/**
+	 * Requests that the plan stop. Running targets are interrupted and no new
+	 * ones will be started. Safe to call from any thread.
+	 */
+	public void cancel() {
+		mCanceled = true;
+		final ExecutorService executor = mExecutor;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	public boolean isCanceled() {
+		return mCanceled;
+	}
+
+	/**
+	 * Runs all the targets and blocks until they have all completed, have been
+	 * skipped due to a failed dependency or the plan has been canceled.
+	 *
+	 * If any of the targets failed, the first failure is rethrown once all the
+	 * others are done. Further failures are logged.
+	 *
+	 * @param account
+	 * @param extras
+	 * @param provider
+	 * @param syncResult
+	 *            the stats of all the targets are added to this
+	 * @throws RemoteException
+	 * @throws SyncException
+	 * @throws JSONException
+	 * @throws IOException
+	 * @throws NetworkProtocolException
+	 * @throws NoPublicPath
+	 * @throws OperationApplicationException
+	 */
+	public void run(Account account, Bundle extras, ContentProviderClient provider,
+			SyncResult syncResult) throws RemoteException, SyncException, JSONException,
+			IOException, NetworkProtocolException, NoPublicPath, OperationApplicationException {
+
+		final List<Target> pending = new ArrayList<Target>(mTargets.values());
+		for (final Target target : pending) {
+			target.type = provider.getType(target.uri);
+		}
+		// the types of the targets that are running
+		final Set<String> busyTypes = new HashSet<String>();
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(mMaxThreads, pending.size())));
+		mExecutor = executor;
+		if (mCanceled) {
+			executor.shutdownNow();
+		}
+
+		final CompletionService<Target> completion = new ExecutorCompletionService<Target>(
+				executor);
+
+		Throwable firstFailure = null;
+		int running = 0;
+
+		try {
+			while (!mCanceled && (running > 0 || !pending.isEmpty())) {
+
+				// start everything whose dependencies are all satisfied
+				for (int i = 0; i < pending.size(); i++) {
+					final Target target = pending.get(i);
+					final int state = target.getReadiness();
+					if (state == Target.READY && !busyTypes.contains(target.type)) {
+						pending.remove(i--);
+						busyTypes.add(target.type);
+						completion.submit(new SyncTask(target, account, extras, provider));
+						running++;
+
+					} else if (state == Target.BLOCKED) {
+						pending.remove(i--);
+						target.state = Target.STATE_SKIPPED;
+						syncResult.stats.numSkippedEntries++;
+						Log.w(TAG, "not syncing " + target.uri + " as a dependency failed");
+					}
+				}
+
+				if (running == 0) {
+					if (!pending.isEmpty()) {
+						throw new IllegalStateException("circular dependency among " + pending);
+					}
+					break;
+				}
+
+				// poll, rather than block, so that canceling can't leave this
+				// waiting on a task that was dropped from the queue
+				final Future<Target> result = completion.poll(CANCEL_POLL_INTERVAL,
+						TimeUnit.MILLISECONDS);
+				if (result == null) {
+					continue;
+				}
+				final Target done = result.get();
+				running--;
+				busyTypes.remove(done.type);
+
+				addStats(syncResult, done.syncResult);
+
+				if (done.failure != null) {
+					if (firstFailure == null) {
+						firstFailure = done.failure;
+					} else {
+						Log.e(TAG, "error syncing " + done.uri, done.failure);
+					}
+				}
+			}
+		} catch (final InterruptedException e) {
+			// the sync was canceled by the framework
+			cancel();
+			Thread.currentThread().interrupt();
+
+		} catch (final RejectedExecutionException e) {
+			// the executor was shut down by cancel() while starting a target
+			mCanceled = true;
+
+		} catch (final ExecutionException e) {
+			// SyncTask catches everything that sync() throws
+			throw new RuntimeException(e.getCause());
+
+		} finally {
+			executor.shutdownNow();
+			mExecutor = null;
+		}
+
+		if (DEBUG && mCanceled) {
+			Log.d(TAG, "sync plan was canceled");
+		}
+
+		if (firstFailure != null) {
+			rethrow(firstFailure);
+		}
+	}
+
+	private static void addStats(SyncResult to, SyncResult from) {
+		to.stats.numAuthExceptions += from.stats.numAuthExceptions;
+		to.stats.numIoExceptions += from.stats.numIoExceptions;
+		to.stats.numParseExceptions += from.stats.numParseExceptions;
+		to.stats.numConflictDetectedExceptions += from.stats.numConflictDetectedExceptions;
+		to.stats.numInserts += from.stats.numInserts;
+		to.stats.numUpdates += from.stats.numUpdates;
+		to.stats.numDeletes += from.stats.numDeletes;
+		to.stats.numEntries += from.stats.numEntries;
+		to.stats.numSkippedEntries += from.stats.numSkippedEntries;
+
+		to.databaseError |= from.databaseError;
+		to.tooManyDeletions |= from.tooManyDeletions;
+		to.tooManyRetries |= from.tooManyRetries;
+		to.fullSyncRequested |= from.fullSyncRequested;
+		to.partialSyncUnavailable |= from.partialSyncUnavailable;
+		to.moreRecordsToGet |= from.moreRecordsToGet;
+		to.delayUntil = Math.max(to.delayUntil, from.delayUntil);
+	}
+
+	private static void rethrow(Throwable t) throws RemoteException, SyncException,
+			JSONException, IOException, NetworkProtocolException, NoPublicPath,
+			OperationApplicationException {
+		if (t instanceof RemoteException) {
+			throw (RemoteException) t;
+		} else if (t instanceof SyncException) {
+			throw (SyncException) t;
+		} else if (t instanceof JSONException) {
+			throw (JSONException) t;
+		} else if (t instanceof IOException) {
+			throw (IOException) t;
+		} else if (t instanceof NetworkProtocolException) {
+			throw (NetworkProtocolException) t;
+		} else if (t instanceof NoPublicPath) {
+			throw (NoPublicPath) t;
+		} else if (t instanceof OperationApplicationException) {
+			throw (OperationApplicationException) t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		}
+		throw new RuntimeException(t);
+	}
+
+	private class SyncTask implements Callable<Target> {
+		private final Target mTarget;
+		private final Account mAccount;
+		private final Bundle mExtras;
+		private final ContentProviderClient mProvider;
+
+		public SyncTask(Target target, Account account, Bundle extras,
+				ContentProviderClient provider) {
+			mTarget = target;
+			mAccount = account;
+			mExtras = extras;
+			mProvider = provider;
+		}
+
+		public Target call() {
+			if (DEBUG) {
+				Log.d(TAG, "starting sync of " + mTarget.uri);
+			}
+			try {
+				mSyncEngine.sync(mTarget.uri, mAccount, mExtras, mProvider, mTarget.syncResult);
+				mTarget.state = Target.STATE_DONE;
+
+			} catch (final Throwable t) {
+				mTarget.failure = t;
+				mTarget.state = Target.STATE_FAILED;
+			}
+			if (DEBUG) {
+				Log.d(TAG, "finished sync of " + mTarget.uri);
+			}
+			return mTarget;
+		}
+	}
+
+	private static class Target {
+		static final int
+			STATE_PENDING = 0,
+			STATE_DONE = 1,
+			STATE_FAILED = 2,
+			STATE_SKIPPED = 3;
+
+		static final int
+			READY = 0,
+			WAITING = 1,
+			BLOCKED = 2;
+
+		final Uri uri;
+		final List<Target> dependencies = new ArrayList<Target>();
+		final SyncResult syncResult = new SyncResult();
+
+		// the content type of the URI. Set when the plan is run.
+		String type;
+
+		volatile int state = STATE_PENDING;
+		volatile Throwable failure;
+
+		Target(Uri uri) {
+			this.uri = uri;
+		}
+
+		/**
+		 * @return {@link #READY} if all dependencies are done,
+		 *         {@link #BLOCKED} if any have failed or been skipped or
+		 *         {@link #WAITING} otherwise.
+		 */
+		int getReadiness() {
+			int readiness = READY;
+			for (final Target dependency : dependencies) {
+				switch (dependency.state) {
+					case STATE_FAILED:
+					case STATE_SKIPPED:
+						return BLOCKED;
+
+					case STATE_PENDING:
+						readiness = WAITING;
+						break;
+				}
+			}
+			return readiness;
+		}
+
+		@Override
+		public String toString() {
+			return uri.toString();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package edu.mit.mobile.android.locast.sync;
+
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.HttpResponse;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.net.Uri;
+import android.util.Log;
+import edu.mit.mobile.android.locast.Constants;
+import edu.mit.mobile.android.locast.data.SyncException;
+import edu.mit.mobile.android.locast.net.NetworkClient;
+import edu.mit.mobile.android.locast.net.NetworkProtocolException;
+
+/**
+ * Collects pending uploads and sends them to the server several at a time,
+ * over the {@link NetworkClient}'s pooled connections. This way, a large
+ * number of uploads doesn't pay a full round-trip each, one after the other.
+ *
+ * Uploads are queued with {@link #post(String, JSONObject, Uri)} and
+ * {@link #put(String, JSONObject, Uri)} and are all sent by {@link #send()},
+ * which returns once they're all done. Each {@link Upload} records either the
+ * server's response or the error that occurred, so that the successful ones
+ * can be stored even if some of the others failed.
+ *
+ * The uploads are run on an executor that is shared by all the pipelines of a
+ * {@link SyncEngine}, whose size limits the number of requests in flight.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class UploadPipeline {
+	private static final String TAG = UploadPipeline.class.getSimpleName();
+
+	private static final boolean DEBUG = Constants.DEBUG;
+
+	private final NetworkClient mNetworkClient;
+	private final ExecutorService mExecutor;
+
+	private final ArrayList<Upload> mUploads = new ArrayList<Upload>();
+
+	/**
+	 * @param networkClient
+	 * @param executor
+	 *            the uploads are sent on this
+	 */
+	public UploadPipeline(NetworkClient networkClient, ExecutorService executor) {
+		mNetworkClient = networkClient;
+		mExecutor = executor;
+	}
+
+	/**
+	 * Queues a POST of a new item.
+	 *
+	 * @param path
+	 *            the path to post to
+	 * @param item
+	 * @param localUri
+	 *            the local item that is being uploaded
+	 * @return the queued upload
+	 */
+	public Upload post(String path, JSONObject item, Uri localUri) {
+		final Upload upload = new Upload(Upload.METHOD_POST, path, item, localUri);
+		mUploads.add(upload);
+		return upload;
+	}
+
+	/**
+	 * Queues a PUT of an updated item.
+	 *
+	 * @param path
+	 *            the path to put to
+	 * @param item
+	 * @param localUri
+	 *            the local item that is being uploaded
+	 * @return the queued upload
+	 */
+	public Upload put(String path, JSONObject item, Uri localUri) {
+		final Upload upload = new Upload(Upload.METHOD_PUT, path, item, localUri);
+		mUploads.add(upload);
+		return upload;
+	}
+
+	/**
+	 * @return the number of queued uploads
+	 */
+	public int size() {
+		return mUploads.size();
+	}
+
+	/**
+	 * Sends all the queued uploads and waits for them to complete. The queue
+	 * is emptied.
+	 *
+	 * @return all the uploads, in the order they were queued. Check
+	 *         {@link Upload#error} of each to see if it was successful.
+	 * @throws SyncException
+	 *             if the thread was interrupted while waiting for the uploads
+	 */
+	public List<Upload> send() throws SyncException {
+		final ArrayList<Upload> uploads = new ArrayList<Upload>(mUploads);
+		mUploads.clear();
+
+		if (uploads.isEmpty()) {
+			return uploads;
+		}
+
+		if (DEBUG) {
+			Log.d(TAG, "sending " + uploads.size() + " uploads");
+		}
+
+		try {
+			// any uploads that haven't finished are canceled if this is interrupted
+			mExecutor.invokeAll(uploads);
+
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SyncException("upload was canceled");
+
+		} catch (final RejectedExecutionException e) {
+			// interrupted while waiting for a free thread
+			throw new SyncException("upload was canceled");
+		}
+
+		return uploads;
+	}
+
+	/**
+	 * Throws the first error among the given uploads, if there is one.
+	 *
+	 * @param uploads
+	 * @throws IOException
+	 * @throws NetworkProtocolException
+	 * @throws JSONException
+	 */
+	public static void rethrowFirstError(List<Upload> uploads) throws IOException,
+			NetworkProtocolException, JSONException {
+		for (final Upload upload : uploads) {
+			final Exception e = upload.error;
+			if (e == null) {
+				continue;
+			}
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			} else if (e instanceof NetworkProtocolException) {
+				throw (NetworkProtocolException) e;
+			} else if (e instanceof JSONException) {
+				throw (JSONException) e;
+			} else if (e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			}
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * A single upload. Once sent, either {@link #result} or {@link #error}
+	 * will be set.
+	 *
+	 */
+	public class Upload implements Callable<Upload> {
+		static final int
+			METHOD_POST = 0,
+			METHOD_PUT = 1;
+
+		private final int mMethod;
+
+		public final String path;
+		public final JSONObject item;
+		public final Uri localUri;
+
+		/**
+		 * The server's response to a POST. Its entity has already been
+		 * consumed.
+		 */
+		public HttpResponse response;
+
+		/**
+		 * The item, as returned by the server.
+		 */
+		public JSONObject result;
+
+		public Exception error;
+
+		Upload(int method, String path, JSONObject item, Uri localUri) {
+			mMethod = method;
+			this.path = path;
+			this.item = item;
+			this.localUri = localUri;
+		}
+
+		public Upload call() {
+			if (DEBUG) {
+				Log.d(TAG, "uploading " + localUri + " to " + path);
+			}
+			try {
+				switch (mMethod) {
+					case METHOD_POST: {
+						final HttpResponse res = mNetworkClient.post(path, item.toString());
+						mNetworkClient.checkStatusCode(res, true);
+
+						result = NetworkClient.toJsonObject(res);
+						response = res;
+					}
+						break;
+
+					case METHOD_PUT:
+						result = mNetworkClient.putJson(path, item);
+						break;
+
+					default:
+						throw new IllegalStateException("unknown method " + mMethod);
+				}
+
+			} catch (final Exception e) {
+				Log.e(TAG, "error uploading " + localUri, e);
+				error = e;
+			}
+			return this;
+		}
+	}
+}
@@ -33,6 +33,8 @@ import edu.mit.mobile.android.locast.data.Comment;
 import edu.mit.mobile.android.locast.data.Event;
 import edu.mit.mobile.android.locast.data.Itinerary;
 import edu.mit.mobile.android.locast.data.MediaProvider;
+import edu.mit.mobile.android.locast.net.HttpValidatorStore;
+import edu.mit.mobile.android.locast.sync.SyncCursorStore;
 import edu.mit.mobile.android.locast.ver2.R;
 
 public class ResetActivity extends Activity implements OnClickListener {
@@ -83,6 +85,10 @@ public class ResetActivity extends Activity implements OnClickListener {
 		cr.delete(Event.CONTENT_URI, null, null);
 		cr.delete(Itinerary.CONTENT_URI, null, null);
 
+		// without the local data, the next sync must be a full one
+		new SyncCursorStore(this).clear();
+		new HttpValidatorStore(this).clear();
+
 		Toast.makeText(getApplicationContext(), R.string.notice_databases_reset, Toast.LENGTH_LONG).show();
 	}
 }
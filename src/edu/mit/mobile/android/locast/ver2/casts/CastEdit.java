@@ -1,6 +1,7 @@
 package edu.mit.mobile.android.locast.ver2.casts;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -9,17 +10,20 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.location.Location;
 import android.location.LocationListener;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Images.Media;
 import android.provider.MediaStore.MediaColumns;
@@ -63,6 +67,7 @@ import edu.mit.mobile.android.locast.data.Cast;
 import edu.mit.mobile.android.locast.data.CastMedia;
 import edu.mit.mobile.android.locast.data.Locatable;
 import edu.mit.mobile.android.locast.data.MediaProvider;
+import edu.mit.mobile.android.locast.data.Tag;
 import edu.mit.mobile.android.locast.data.TaggableItem;
 import edu.mit.mobile.android.locast.maps.CastLocationOverlay;
 import edu.mit.mobile.android.locast.ver2.R;
@@ -882,23 +887,37 @@ public class CastEdit extends MapFragmentActivity implements OnClickListener,
 
 			Log.d(TAG, "inserting "+cv+" into "+ mCastBase);
 			newCast = cr.insert(mCastBase, cv);
+			Log.d(TAG, "cast URI is" + newCast);
+			if (newCast != null){
+				TaggableItem.putTags(cr, newCast, mTags.getTags());
+			}
 		}else{
 			Log.d(TAG, "updating "+mCast+" with "+ cv);
-			if (cr.update(mCast, cv, null, null) != 1){
-				throw new RuntimeException("error updating cast " + mCast);
-			}
-			newCast = mCast;
+			// the cast, its tags and its media are updated in one transaction
+			final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+			ops.add(ContentProviderOperation.newUpdate(mCast)
+					.withValues(cv)
+					.withExpectedCount(1)
+					.build());
+			ops.add(ContentProviderOperation.newUpdate(Uri.withAppendedPath(mCast, Tag.PATH))
+					.withValues(TaggableItem.getTagValues(mTags.getTags(), null))
+					.build());
 
-		}
-		Log.d(TAG, "cast URI is" + newCast);
-		if (newCast != null){
-			TaggableItem.putTags(cr, newCast, mTags.getTags());
-		}
-		if (mCast != null){
 			// XXX hack to fix possibly empty cast media. This is only called when there's existing data.
 			final ContentValues cvCastMediaDefaultTitle = new ContentValues();
 			cvCastMediaDefaultTitle.put(CastMedia._TITLE, "untitled");
-			cr.update(Cast.getCastMediaUri(mCast), cvCastMediaDefaultTitle, CastMedia._TITLE + " IS NULL", null);
+			ops.add(ContentProviderOperation.newUpdate(Cast.getCastMediaUri(mCast))
+					.withValues(cvCastMediaDefaultTitle)
+					.withSelection(CastMedia._TITLE + " IS NULL", null)
+					.build());
+			try {
+				cr.applyBatch(MediaProvider.AUTHORITY, ops);
+			} catch (final RemoteException e) {
+				throw new RuntimeException("error updating cast " + mCast, e);
+			} catch (final OperationApplicationException e) {
+				throw new RuntimeException("error updating cast " + mCast, e);
+			}
+			newCast = mCast;
 		}
 
 		return newCast;
@@ -30,7 +30,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.CursorAdapter;
 import android.support.v4_map.app.LoaderManager;
@@ -59,6 +58,7 @@ import edu.mit.mobile.android.locast.data.Favoritable;
 import edu.mit.mobile.android.locast.data.Locatable;
 import edu.mit.mobile.android.locast.data.MediaProvider;
 import edu.mit.mobile.android.locast.maps.CastsOverlay;
+import edu.mit.mobile.android.locast.maps.LocatableCursorLoader;
 import edu.mit.mobile.android.locast.sync.LocastSyncService;
 import edu.mit.mobile.android.locast.sync.LocastSyncStatusObserver;
 import edu.mit.mobile.android.locast.ver2.R;
@@ -368,10 +368,10 @@ public class LocatableListWithMap extends MapFragmentActivity implements LoaderM
 	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
 		switch (id){
 		case LOADER_ID_CAST:
-			return new CursorLoader(this, (Uri) args.getParcelable(LOADER_ARG_DATA), Cast.PROJECTION, null, null, Cast.SORT_ORDER_DEFAULT);
+			return new LocatableCursorLoader(this, (Uri) args.getParcelable(LOADER_ARG_DATA), Cast.PROJECTION, null, null, Cast.SORT_ORDER_DEFAULT);
 		case LOADER_ID_EVENT:
 			// only show events that aren't already over
-			return new CursorLoader(this, (Uri) args.getParcelable(LOADER_ARG_DATA), Event.PROJECTION,
+			return new LocatableCursorLoader(this, (Uri) args.getParcelable(LOADER_ARG_DATA), Event.PROJECTION,
 					Event._END_DATE + " >= ?",
 					new String[]{String.valueOf(System.currentTimeMillis())}, Event.SORT_ORDER_DEFAULT);
 
@@ -385,7 +385,8 @@ public class LocatableListWithMap extends MapFragmentActivity implements LoaderM
 		mAdapter.swapCursor(c);
 		mLocatableItemsOverlay.swapCursor(c);
 
-		if (c.moveToFirst()){
+		// rows without a location aren't on the map
+		if (mLocatableItemsOverlay.getLocations().count > 0){
 			mMapController.zoomToSpan(mLocatableItemsOverlay.getLatSpanE6(), mLocatableItemsOverlay.getLonSpanE6());
 			final GeoPoint center = mLocatableItemsOverlay.getCenter();
 			if (mMapView.getVisibility()==View.INVISIBLE){
@@ -33,8 +33,8 @@ public class BasicLocatableOverlay extends LocatableItemOverlay {
 	}
 
 	@Override
-	protected OverlayItem createItem(int i) {
-		this.mLocatableItems.moveToPosition(i);
+	protected OverlayItem createLocatableItem(int position) {
+		this.mLocatableItems.moveToPosition(position);
 		return new OverlayItem(getItemLocation(mLocatableItems), "", "");
 	}
 }
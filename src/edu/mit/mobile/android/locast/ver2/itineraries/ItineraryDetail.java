@@ -49,7 +49,6 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapController;
 import com.google.android.maps.MapView;
 import com.google.android.maps.Overlay;
@@ -61,7 +60,9 @@ import edu.mit.mobile.android.locast.Constants;
 import edu.mit.mobile.android.locast.casts.CastCursorAdapter;
 import edu.mit.mobile.android.locast.data.Cast;
 import edu.mit.mobile.android.locast.data.Itinerary;
+import edu.mit.mobile.android.locast.data.PolylineCodec;
 import edu.mit.mobile.android.locast.maps.CastsIconOverlay;
+import edu.mit.mobile.android.locast.maps.LocatableCursorLoader;
 import edu.mit.mobile.android.locast.sync.LocastSyncService;
 import edu.mit.mobile.android.locast.sync.LocastSyncStatusObserver;
 import edu.mit.mobile.android.locast.ver2.R;
@@ -99,7 +100,7 @@ public class ItineraryDetail extends MapFragmentActivity implements LoaderManage
 
 	private boolean mFirstLoadSync = true;
 
-	private static final String[] ITINERARY_PROJECTION = new String[]{Itinerary._ID, Itinerary._DESCRIPTION, Itinerary._TITLE, Itinerary._CASTS_COUNT, Itinerary._PATH};
+	private static final String[] ITINERARY_PROJECTION = new String[]{Itinerary._ID, Itinerary._DESCRIPTION, Itinerary._TITLE, Itinerary._CASTS_COUNT, Itinerary._PATH, Itinerary._PATH_LEVELS};
 
 	private RefreshButton mRefresh;
 
@@ -339,7 +340,7 @@ public class ItineraryDetail extends MapFragmentActivity implements LoaderManage
 			break;
 
 		case LOADER_CASTS:
-			cl = new CursorLoader(this, uri, Cast.PROJECTION, null, null, Cast.SORT_ORDER_DEFAULT);
+			cl = new LocatableCursorLoader(this, uri, Cast.PROJECTION, null, null, Cast.SORT_ORDER_DEFAULT);
 			break;
 
 		}
@@ -362,10 +363,14 @@ public class ItineraryDetail extends MapFragmentActivity implements LoaderManage
 				((TextView)findViewById(R.id.title)).setText(c.getString(c.getColumnIndex(Itinerary._TITLE)));
 
 				if (USE_MAP){
-					final List<GeoPoint> path = Itinerary.getPath(c);
-					mPathOverlay.setPath(path);
-
-						if (!path.isEmpty()) {
+					final byte[] path = Itinerary.getEncodedPath(c);
+					final int count = PolylineCodec.getCount(path);
+					final int[] latE6 = new int[count];
+					final int[] lonE6 = new int[count];
+					PolylineCodec.decode(path, latE6, lonE6);
+					mPathOverlay.setPath(latE6, lonE6, Itinerary.getPathLevels(c), count);
+
+						if (count > 0) {
 							mMapController.setCenter(mPathOverlay.getCenter());
 						}
 
@@ -17,29 +17,54 @@ package edu.mit.mobile.android.locast.ver2.itineraries;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
  */
 
+import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.ItemizedOverlay;
+import com.google.android.maps.MapView;
 import com.google.android.maps.OverlayItem;
 
 import edu.mit.mobile.android.locast.data.Locatable;
+import edu.mit.mobile.android.locast.maps.ClusterMarkerDrawable;
+import edu.mit.mobile.android.locast.maps.LocatableCursorLoader;
+import edu.mit.mobile.android.locast.maps.LocatableCursorLoader.LocatableCursor;
+import edu.mit.mobile.android.locast.maps.LocationSnapshot;
 import edu.mit.mobile.android.locast.maps.MapsUtils;
+import edu.mit.mobile.android.locast.maps.MarkerClusterer;
 
-abstract public class LocatableItemOverlay extends ItemizedOverlay<OverlayItem> {
+/**
+ * An overlay of the items in a cursor. Nearby items are grouped into clusters
+ * by a {@link MarkerClusterer}; clusters of more than one item are shown with
+ * a count. Implement {@link #createLocatableItem(int)} to make the items for
+ * single rows.
+ *
+ * Cursors loaded by a {@link LocatableCursorLoader} come with their locations
+ * already read. Others are scanned when they're set.
+ *
+ */
+abstract public class LocatableItemOverlay extends ItemizedOverlay<OverlayItem> implements MarkerClusterer.OnClustersChangedListener {
 	protected Cursor mLocatableItems;
 	private int mLatCol, mLonCol;
 
+	// dp
+	private static final int CLUSTER_SIZE = 48;
+
+	private final MarkerClusterer mClusterer = new MarkerClusterer(
+			(int) (CLUSTER_SIZE * Resources.getSystem().getDisplayMetrics().density), this);
+	private MapView mMapView;
+
 	public static final String[] LOCATABLE_ITEM_PROJECTION = {Locatable.Columns._LATITUDE, Locatable.Columns._LONGITUDE};
 
 	private final ContentObserver mContentObserver = new ContentObserver(new Handler()) {
 		@Override
 		public void onChange(boolean selfChange) {
 			super.onChange(selfChange);
-			populate();
+			updateClusters();
 		}
 	};
 
@@ -51,8 +76,8 @@ abstract public class LocatableItemOverlay extends ItemizedOverlay<OverlayItem>
 		super(marker);
 
 		mLocatableItems = items;
-
-		populate();
+		updateCursorCols();
+		updateClusters();
 	}
 
 	public static Drawable boundCenterBottom(Drawable drawable){
@@ -63,8 +88,7 @@ abstract public class LocatableItemOverlay extends ItemizedOverlay<OverlayItem>
 	public void swapCursor(Cursor locatableItems){
 		mLocatableItems = locatableItems;
 		updateCursorCols();
-
-		populate();
+		updateClusters();
 	}
 
 	public void onPause(){
@@ -83,7 +107,7 @@ abstract public class LocatableItemOverlay extends ItemizedOverlay<OverlayItem>
 		final Cursor oldCursor = mLocatableItems;
 		mLocatableItems = locatableItems;
 		updateCursorCols();
-		populate();
+		updateClusters();
 
 		if (oldCursor != null && !oldCursor.isClosed()){
 			oldCursor.close();
@@ -101,39 +125,82 @@ abstract public class LocatableItemOverlay extends ItemizedOverlay<OverlayItem>
 		return MapsUtils.getGeoPoint(item, mLatCol, mLonCol);
 	}
 
+	private void updateClusters(){
+		if (mLocatableItems instanceof LocatableCursor){
+			mClusterer.setLocations(((LocatableCursor) mLocatableItems).getLocations());
+		}else{
+			mClusterer.setLocations(LocationSnapshot.fromCursor(mLocatableItems, mLatCol, mLonCol));
+		}
+		setLastFocusedIndex(-1);
+		populate();
+	}
+
+	public void onClustersChanged() {
+		setLastFocusedIndex(-1);
+		populate();
+		if (mMapView != null){
+			mMapView.invalidate();
+		}
+	}
+
+	@Override
+	public void draw(Canvas canvas, MapView mapView, boolean shadow) {
+		mMapView = mapView;
+		// this only does anything when the zoom level changes
+		mClusterer.setZoomLevel(mapView.getZoomLevel());
+		super.draw(canvas, mapView, shadow);
+	}
+
+	@Override
+	protected final OverlayItem createItem(int i) {
+		final MarkerClusterer.Cluster cluster = mClusterer.getCluster(i);
+		if (cluster.count == 1){
+			return createLocatableItem(cluster.position);
+		}
+		final OverlayItem item = new OverlayItem(cluster.center, "", "");
+		item.setMarker(new ClusterMarkerDrawable(cluster.count));
+		return item;
+	}
+
+	/**
+	 * Creates the item for a single row.
+	 *
+	 * @param position the position of the row in {@link #mLocatableItems}
+	 * @return the item to show on the map
+	 */
+	abstract protected OverlayItem createLocatableItem(int position);
+
+	/**
+	 * @return the locations of the items. Rows without a location aren't
+	 *         included.
+	 */
+	public LocationSnapshot getLocations() {
+		return mClusterer.getLocations();
+	}
+
 	/**
 	 * this does not work properly when crossing -180/180 boundaries.
 	 *
+	 * @return the center of the items, or null if none of them have a location
 	 * @see com.google.android.maps.ItemizedOverlay#getCenter()
 	 */
 	@Override
 	public GeoPoint getCenter() {
-		int maxLat, minLat;
-		int maxLon, minLon;
-
-		mLocatableItems.moveToFirst();
-		final double[] latLon = new double[2];
-		Locatable.toLocationArray(mLocatableItems, mLatCol, mLonCol, latLon);
-		maxLat = minLat = (int)(latLon[0] * 1E6);
-		maxLon = minLon = (int)(latLon[1] * 1E6);
-		mLocatableItems.moveToNext();
-		for (; !mLocatableItems.isAfterLast(); mLocatableItems.moveToNext()){
-			Locatable.toLocationArray(mLocatableItems, mLatCol, mLonCol, latLon);
-			maxLat = Math.max(maxLat, (int)(latLon[0] * 1E6));
-			minLat = Math.min(minLat, (int)(latLon[0] * 1E6));
-
-			maxLon = Math.max(maxLon, (int)(latLon[1] * 1E6));
-			minLon = Math.min(minLon, (int)(latLon[1] * 1E6));
-		}
+		return getLocations().getCenter();
+	}
 
-		return new GeoPoint((maxLat - minLat)/2 + minLat, (maxLon - minLon)/2 + minLon);
+	@Override
+	public int getLatSpanE6() {
+		return getLocations().getLatSpanE6();
+	}
+
+	@Override
+	public int getLonSpanE6() {
+		return getLocations().getLonSpanE6();
 	}
 
 	@Override
 	public int size() {
-		if (mLocatableItems == null){
-			return 0;
-		}
-		return mLocatableItems.getCount();
+		return mClusterer.size();
 	}
 }
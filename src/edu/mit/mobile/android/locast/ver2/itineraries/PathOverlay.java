@@ -17,7 +17,6 @@ package edu.mit.mobile.android.locast.ver2.itineraries;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
  */
 
-import java.util.LinkedList;
 import java.util.List;
 
 import android.content.Context;
@@ -28,15 +27,28 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PathEffect;
 import android.graphics.Point;
+import android.graphics.RectF;
 
 import com.google.android.maps.GeoPoint;
 import com.google.android.maps.MapView;
 import com.google.android.maps.Overlay;
 import com.google.android.maps.Projection;
 
+import edu.mit.mobile.android.locast.maps.PathSimplifier;
+
 /**
  * Shows a single path, with an optional outline.
  *
+ * If the path is given the minimum zoom level of each of its points (see
+ * {@link PathSimplifier}), only the points needed at the current zoom level are
+ * drawn.
+ *
+ * The points are projected to pixels only when the path or the zoom level
+ * changes. The projected points are kept relative to the first point, so
+ * panning only moves the canvas. Only the segments near the visible part of
+ * the map are added to the drawn path; it's rebuilt when the map is panned
+ * outside of the area it covers.
+ *
  * @author steve
  *
  */
@@ -46,8 +58,30 @@ public class PathOverlay extends Overlay {
 	private final Paint mPathPaint;
 	private final Paint mPathPaintOutline;
 	private PathEffect mPathEffect;
-	private List<GeoPoint> mPathGeo = new LinkedList<GeoPoint>();
-	private Path mPath;
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int NO_ZOOM = -1;
+
+	private int[] mLatE6 = new int[INITIAL_CAPACITY];
+	private int[] mLonE6 = new int[INITIAL_CAPACITY];
+	private int mCount = 0;
+	// the minimum zoom level of each point. If null, all are drawn.
+	private int[] mMinZoomLevels;
+
+	// the points needed at mProjectedZoom, projected relative to the first point. x, y pairs.
+	private float[] mProjected = new float[INITIAL_CAPACITY * 2];
+	private int mProjectedCount;
+	private int mProjectedZoom = NO_ZOOM;
+	private GeoPoint mFirstPoint;
+
+	// the segments of mProjected that are in mPathArea
+	private final Path mPath = new Path();
+	private final RectF mPathArea = new RectF();
+	private boolean mPathDirty = true;
+
+	private final Point mOrigin = new Point();
+	private final RectF mViewport = new RectF();
+
 	private final boolean animate = false;
 
 	private boolean mShowOutline = true;
@@ -91,8 +125,27 @@ public class PathOverlay extends Overlay {
 	 * @param longitudeE6
 	 */
 	public void addPoint(int latitudeE6, int longitudeE6){
-		mPathGeo.add(new GeoPoint(latitudeE6, longitudeE6));
-		mBoundsDirty = true;
+		if (mCount == mLatE6.length){
+			final int capacity = mCount * 2;
+			final int[] latE6 = new int[capacity];
+			final int[] lonE6 = new int[capacity];
+			System.arraycopy(mLatE6, 0, latE6, 0, mCount);
+			System.arraycopy(mLonE6, 0, lonE6, 0, mCount);
+			mLatE6 = latE6;
+			mLonE6 = lonE6;
+			if (mMinZoomLevels != null){
+				final int[] levels = new int[capacity];
+				System.arraycopy(mMinZoomLevels, 0, levels, 0, mCount);
+				mMinZoomLevels = levels;
+			}
+		}
+		mLatE6[mCount] = latitudeE6;
+		mLonE6[mCount] = longitudeE6;
+		if (mMinZoomLevels != null){
+			mMinZoomLevels[mCount] = 0;
+		}
+		mCount++;
+		pathChanged();
 	}
 
 	/**
@@ -101,21 +154,94 @@ public class PathOverlay extends Overlay {
 	 * @param point
 	 */
 	public void addPoint(GeoPoint point){
-		mPathGeo.add(point);
-		mBoundsDirty = true;
+		addPoint(point.getLatitudeE6(), point.getLongitudeE6());
 	}
 
 	/**
 	 * Clear the path.
 	 */
 	public void clearPath(){
-		mPathGeo.clear();
-		mBoundsDirty = true;
+		mCount = 0;
+		pathChanged();
 	}
 
 	public void setPath(List<GeoPoint> path){
-		mPathGeo = path;
+		setPath(path, null);
+	}
+
+	/**
+	 * @param path
+	 * @param minZoomLevels
+	 *            the minimum zoom level of each point of the path. If null or
+	 *            if it doesn't match the path, all points are drawn.
+	 */
+	public void setPath(List<GeoPoint> path, int[] minZoomLevels){
+		final int count = path.size();
+		mLatE6 = new int[Math.max(count, INITIAL_CAPACITY)];
+		mLonE6 = new int[mLatE6.length];
+		int i = 0;
+		for (final GeoPoint gp : path){
+			mLatE6[i] = gp.getLatitudeE6();
+			mLonE6[i] = gp.getLongitudeE6();
+			i++;
+		}
+		mCount = count;
+		setMinZoomLevels(minZoomLevels);
+		pathChanged();
+	}
+
+	/**
+	 * Sets the path to the given points. The arrays are used directly and
+	 * shouldn't be modified afterward.
+	 *
+	 * @param latitudesE6
+	 * @param longitudesE6
+	 * @param count
+	 *            the number of points in the arrays to use
+	 */
+	public void setPath(int[] latitudesE6, int[] longitudesE6, int count){
+		setPath(latitudesE6, longitudesE6, null, count);
+	}
+
+	/**
+	 * Sets the path to the given points. The arrays are used directly and
+	 * shouldn't be modified afterward.
+	 *
+	 * @param latitudesE6
+	 * @param longitudesE6
+	 * @param minZoomLevels
+	 *            the minimum zoom level of each point. If null, all points are
+	 *            drawn.
+	 * @param count
+	 *            the number of points in the arrays to use
+	 */
+	public void setPath(int[] latitudesE6, int[] longitudesE6, int[] minZoomLevels, int count){
+		mLatE6 = latitudesE6;
+		mLonE6 = longitudesE6;
+		mCount = count;
+		setMinZoomLevels(minZoomLevels);
+		pathChanged();
+	}
+
+	private void setMinZoomLevels(int[] minZoomLevels){
+		if (minZoomLevels != null && minZoomLevels.length >= mCount){
+			mMinZoomLevels = new int[mLatE6.length];
+			System.arraycopy(minZoomLevels, 0, mMinZoomLevels, 0, mCount);
+		}else{
+			mMinZoomLevels = null;
+		}
+	}
+
+	/**
+	 * @return the number of points on the path
+	 */
+	public int size(){
+		return mCount;
+	}
+
+	private void pathChanged(){
 		mBoundsDirty = true;
+		mProjectedZoom = NO_ZOOM;
 	}
 
 	/**
@@ -130,38 +256,116 @@ public class PathOverlay extends Overlay {
 	private int maxLat, minLat;
 	private int maxLon, minLon;
 
-	private void updatePath(Projection projection){
-		mPath = new Path();
+	/**
+	 * Projects the points needed at the current zoom level, relative to the
+	 * first point. Pixels are linear in the map's projection at a given zoom
+	 * level, so this stays valid until the zoom level changes.
+	 *
+	 * @param projection
+	 * @param zoomLevel
+	 */
+	private void projectPoints(Projection projection, int zoomLevel){
+		if (mProjected.length < mCount * 2){
+			mProjected = new float[mCount * 2];
+		}
 		final Point p = new Point();
+		mFirstPoint = new GeoPoint(mLatE6[0], mLonE6[0]);
+		projection.toPixels(mFirstPoint, mOrigin);
+		final int[] levels = mMinZoomLevels;
+		int n = 0;
+		for (int i = 0; i < mCount; i++){
+			if (levels != null && levels[i] > zoomLevel){
+				continue;
+			}
+			projection.toPixels(new GeoPoint(mLatE6[i], mLonE6[i]), p);
+			mProjected[n * 2] = p.x - mOrigin.x;
+			mProjected[n * 2 + 1] = p.y - mOrigin.y;
+			n++;
+		}
+		mProjectedCount = n;
+		mProjectedZoom = zoomLevel;
+		mPathDirty = true;
+	}
 
-		boolean first = true;
-		for (final GeoPoint gp : mPathGeo){
-			projection.toPixels(gp, p);
-			if (first){
-				mPath.moveTo(p.x, p.y);
-				first = false;
-			}else{
-
-				mPath.lineTo(p.x, p.y);
+	/**
+	 * Rebuilds the drawn path from the segments that cross the given area.
+	 * Segments are tested by their bounding box, so some that don't quite
+	 * reach the area are included as well.
+	 *
+	 * @param area in the coordinates of {@link #mProjected}
+	 */
+	private void updatePath(RectF area){
+		mPath.rewind();
+		mPathArea.set(area);
+
+		final float[] pts = mProjected;
+		boolean penDown = false;
+		for (int i = 1; i < mProjectedCount; i++){
+			final float x0 = pts[i * 2 - 2], y0 = pts[i * 2 - 1];
+			final float x1 = pts[i * 2], y1 = pts[i * 2 + 1];
+
+			if (Math.max(x0, x1) < area.left || Math.min(x0, x1) > area.right
+					|| Math.max(y0, y1) < area.top || Math.min(y0, y1) > area.bottom){
+				penDown = false;
+				continue;
+			}
+			if (!penDown){
+				mPath.moveTo(x0, y0);
+				penDown = true;
 			}
+			mPath.lineTo(x1, y1);
 		}
+		mPathDirty = false;
 	}
 
 	@Override
 	public void draw(Canvas canvas, MapView mapView, boolean shadow) {
-		if (!shadow){
-			if (animate){
-				mPathEffect = new DashPathEffect (new float[]{20, 20}, ((System.currentTimeMillis() / 10) % 400)/10.0f);
-				mPathPaint.setPathEffect(mPathEffect);
-			}
-			updatePath(mapView.getProjection());
-			if (mShowOutline){
-				canvas.drawPath(mPath, mPathPaintOutline);
-			}
-			canvas.drawPath(mPath, mPathPaint);
-			if (animate) {
-				mapView.postInvalidateDelayed(50);
-			}
+		if (shadow || mCount == 0){
+			return;
+		}
+		final Projection projection = mapView.getProjection();
+		final int zoomLevel = mapView.getZoomLevel();
+		if (zoomLevel != mProjectedZoom){
+			projectPoints(projection, zoomLevel);
+		}
+
+		// where the first point is now. Everything else is relative to it.
+		projection.toPixels(mFirstPoint, mOrigin);
+
+		final int width = mapView.getWidth();
+		final int height = mapView.getHeight();
+		final float margin = mPathPaintOutline.getStrokeWidth();
+		mViewport.set(-mOrigin.x - margin, -mOrigin.y - margin, width - mOrigin.x + margin,
+				height - mOrigin.y + margin);
+
+		if (mPathDirty || !mPathArea.contains(mViewport)){
+			// cover a screen's worth around the viewport, so that panning
+			// doesn't need to rebuild the path right away.
+			final RectF area = new RectF(mViewport);
+			area.inset(-width, -height);
+			updatePath(area);
+		}
+
+		if (mPath.isEmpty()){
+			return;
+		}
+
+		if (animate){
+			mPathEffect = new DashPathEffect (new float[]{20, 20}, ((System.currentTimeMillis() / 10) % 400)/10.0f);
+			mPathPaint.setPathEffect(mPathEffect);
+		}
+
+		canvas.save();
+		canvas.translate(mOrigin.x, mOrigin.y);
+		if (mShowOutline){
+			canvas.drawPath(mPath, mPathPaintOutline);
+		}
+		canvas.drawPath(mPath, mPathPaint);
+		canvas.restore();
+
+		// this is only reached when some of the path is near the visible area
+		if (animate) {
+			mapView.postInvalidateDelayed(50);
 		}
 	};
 
@@ -170,13 +374,13 @@ public class PathOverlay extends Overlay {
 			return;
 		}
 
-		maxLat = minLat = mPathGeo.get(0).getLatitudeE6();
-		maxLon = minLon = mPathGeo.get(0).getLongitudeE6();
+		maxLat = minLat = mLatE6[0];
+		maxLon = minLon = mLonE6[0];
 
 		int lat, lon;
-		for (final GeoPoint gp : mPathGeo){
-			lat = gp.getLatitudeE6();
-			lon = gp.getLongitudeE6();
+		for (int i = 0; i < mCount; i++){
+			lat = mLatE6[i];
+			lon = mLonE6[i];
 			maxLat = Math.max(maxLat, lat);
 			minLat = Math.min(minLat, lat);
 
@@ -187,7 +391,7 @@ public class PathOverlay extends Overlay {
 	}
 
 	public int getLatSpanE6(){
-		if (mPathGeo.size() == 0){
+		if (mCount == 0){
 			return 0;
 		}
 
@@ -197,7 +401,7 @@ public class PathOverlay extends Overlay {
 	}
 
 	public int getLonSpanE6(){
-		if (mPathGeo.size() == 0){
+		if (mCount == 0){
 			return 0;
 		}
 
@@ -212,7 +416,7 @@ public class PathOverlay extends Overlay {
 	 * @return the center point of the path according to its bounds or null if there are no points on the path.
 	 */
 	public GeoPoint getCenter() {
-		if (mPathGeo.size() == 0){
+		if (mCount == 0){
 			return null;
 		}
 
@@ -17,9 +17,14 @@ package edu.mit.mobile.android.utils;
  * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
  */
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class LastUpdatedMap<T> extends HashMap<T, Long> {
+/**
+ * Keeps track of when items were last updated. Safe to use from multiple threads.
+ *
+ * @param <T>
+ */
+public class LastUpdatedMap<T> extends ConcurrentHashMap<T, Long> {
 	/**
 	 *
 	 */
@@ -0,0 +1,88 @@
+package edu.mit.mobile.android.utils;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream that counts the bytes that are read through it and the time
+ * spent waiting on the underlying stream. When the underlying stream is a
+ * network connection, this is roughly the time spent transferring the data,
+ * as opposed to processing it.
+ *
+ */
+public class MeteredInputStream extends FilterInputStream {
+	private long mBytesRead = 0;
+	private long mReadNanos = 0;
+
+	public MeteredInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		final long start = System.nanoTime();
+		final int b = super.read();
+		mReadNanos += System.nanoTime() - start;
+		if (b != -1) {
+			mBytesRead++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		final long start = System.nanoTime();
+		final int read = super.read(buffer, offset, count);
+		mReadNanos += System.nanoTime() - start;
+		if (read > 0) {
+			mBytesRead += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		final long start = System.nanoTime();
+		final long skipped = super.skip(n);
+		mReadNanos += System.nanoTime() - start;
+		mBytesRead += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * @return the number of bytes that have been read so far
+	 */
+	public long getBytesRead() {
+		return mBytesRead;
+	}
+
+	/**
+	 * @return the total time spent in read() and skip(), in nanoseconds
+	 */
+	public long getReadTime() {
+		return mReadNanos;
+	}
+}
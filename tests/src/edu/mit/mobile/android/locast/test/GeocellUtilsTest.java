@@ -0,0 +1,132 @@
+package edu.mit.mobile.android.locast.test;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.beoui.geocell.GeocellUtils;
+import com.beoui.geocell.model.Point;
+
+public class GeocellUtilsTest extends TestCase {
+
+	private static final int[][] DIRECTIONS = {
+		{-1, 1}, {0, 1}, {1, 1}, {1, 0}, {1, -1}, {0, -1}, {-1, -1}, {-1, 0}
+	};
+
+	private final Random mRandom = new Random(42);
+
+	public void testPackedStringRoundTrip() {
+		assertEquals("8", GeocellUtils.packedToString(GeocellUtils.packedFromString("8")));
+		assertEquals("0123456789abc", GeocellUtils.packedToString(GeocellUtils.packedFromString("0123456789abc")));
+		assertEquals(13, GeocellUtils.packedResolution(GeocellUtils.packedFromString("ffffffffffff0")));
+
+		try {
+			GeocellUtils.packedFromString("0123456789abcd");
+			fail("resolution 14 can't be packed");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testPackedSortsLikeStrings() {
+		final String[] cells = {"0", "00", "01", "0f", "1", "8f3", "8f30", "f"};
+		for (int i = 1; i < cells.length; i++) {
+			assertTrue(cells[i - 1] + " < " + cells[i],
+					GeocellUtils.packedFromString(cells[i - 1]) < GeocellUtils.packedFromString(cells[i]));
+		}
+	}
+
+	public void testComputeContainsPoint() {
+		final double[] box = new double[4];
+		for (int i = 0; i < 1000; i++) {
+			final double lat = mRandom.nextDouble() * 180 - 90;
+			final double lon = mRandom.nextDouble() * 360 - 180;
+			for (int resolution = 1; resolution <= GeocellUtils.MAX_PACKED_RESOLUTION; resolution++) {
+				final long cell = GeocellUtils.computePacked(lat, lon, resolution);
+				assertEquals(resolution, GeocellUtils.packedResolution(cell));
+
+				GeocellUtils.packedBox(cell, box);
+				assertTrue(lat <= box[0] && lat >= box[2]);
+				assertTrue(lon <= box[1] && lon >= box[3]);
+
+				assertEquals(GeocellUtils.packedToString(cell),
+						GeocellUtils.compute(new Point(lat, lon), resolution));
+			}
+		}
+	}
+
+	public void testAdjacentMatchesStrings() {
+		for (int i = 0; i < 1000; i++) {
+			final String cell = randomCell(1 + mRandom.nextInt(GeocellUtils.MAX_PACKED_RESOLUTION));
+			final long packed = GeocellUtils.packedFromString(cell);
+			for (final int[] dir : DIRECTIONS) {
+				final String adjacent = GeocellUtils.adjacent(cell, dir);
+				final long packedAdjacent = GeocellUtils.packedAdjacent(packed, dir[0], dir[1]);
+				if (adjacent == null) {
+					assertEquals(GeocellUtils.INVALID_PACKED, packedAdjacent);
+				} else {
+					assertEquals(adjacent, GeocellUtils.packedToString(packedAdjacent));
+				}
+			}
+		}
+	}
+
+	public void testParentAndChild() {
+		final long cell = GeocellUtils.packedFromString("8f3a");
+		assertEquals("8f3", GeocellUtils.packedToString(GeocellUtils.packedParent(cell)));
+		assertEquals("8f3a7", GeocellUtils.packedToString(GeocellUtils.packedChild(cell, 7)));
+		assertEquals("8", GeocellUtils.packedToString(GeocellUtils.packedTruncate(cell, 1)));
+		assertEquals(GeocellUtils.INVALID_PACKED,
+				GeocellUtils.packedParent(GeocellUtils.packedFromString("8")));
+	}
+
+	public void testInterpolateMatchesStrings() {
+		for (int i = 0; i < 200; i++) {
+			final double lat = mRandom.nextDouble() * 160 - 80;
+			final double lon = mRandom.nextDouble() * 340 - 170;
+			final int resolution = 1 + mRandom.nextInt(6);
+
+			final String sw = GeocellUtils.compute(new Point(lat, lon), resolution);
+			final String ne = GeocellUtils.compute(new Point(lat + mRandom.nextDouble() * 5,
+					lon + mRandom.nextDouble() * 5), resolution);
+
+			final long packedNE = GeocellUtils.packedFromString(ne);
+			final long packedSW = GeocellUtils.packedFromString(sw);
+			final long[] cells = new long[(int) GeocellUtils.packedInterpolationCount(packedNE, packedSW)];
+			final int count = GeocellUtils.packedInterpolate(packedNE, packedSW, cells);
+
+			final List<String> packedCells = new ArrayList<String>();
+			for (int j = 0; j < count; j++) {
+				packedCells.add(GeocellUtils.packedToString(cells[j]));
+			}
+			assertEquals(GeocellUtils.interpolate(ne, sw), packedCells);
+		}
+	}
+
+	private String randomCell(int resolution) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < resolution; i++) {
+			sb.append("0123456789abcdef".charAt(mRandom.nextInt(16)));
+		}
+		return sb.toString();
+	}
+}
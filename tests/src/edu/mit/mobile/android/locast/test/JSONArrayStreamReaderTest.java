@@ -0,0 +1,101 @@
+package edu.mit.mobile.android.locast.test;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.mit.mobile.android.json.JSONArrayStreamReader;
+
+public class JSONArrayStreamReaderTest extends TestCase {
+
+	private static JSONArrayStreamReader reader(String json) {
+		return new JSONArrayStreamReader(new StringReader(json));
+	}
+
+	public void testEmptyArray() throws IOException, JSONException {
+		final JSONArrayStreamReader items = reader(" [ ] ");
+		assertFalse(items.hasNext());
+		assertFalse(items.hasNext());
+		assertEquals(0, items.getItemCount());
+	}
+
+	public void testItems() throws IOException, JSONException {
+		final JSONArrayStreamReader items = reader("[{\"a\":1},\n {\"a\":2} ,{\"a\":3}]");
+		for (int i = 1; i <= 3; i++) {
+			assertTrue(items.hasNext());
+			assertEquals(i, items.next().getInt("a"));
+		}
+		assertFalse(items.hasNext());
+		assertEquals(3, items.getItemCount());
+	}
+
+	public void testDelimitersInStrings() throws IOException, JSONException {
+		final JSONArrayStreamReader items = reader("[{\"s\":\"]},[{\"},{\"s\":\"a, \\\"b\\\" \\\\\"}]");
+		assertEquals("]},[{", items.next().getString("s"));
+		assertEquals("a, \"b\" \\", items.next().getString("s"));
+		assertFalse(items.hasNext());
+	}
+
+	public void testNestedValues() throws IOException, JSONException {
+		final JSONArrayStreamReader items = reader("[{\"a\":[1,[2,3],{\"b\":{\"c\":[]}}]},{\"d\":{}}]");
+		final JSONObject first = items.next();
+		assertEquals(3, first.getJSONArray("a").length());
+		assertEquals(0, first.getJSONArray("a").getJSONObject(2).getJSONObject("b").getJSONArray("c").length());
+		assertEquals(0, items.next().getJSONObject("d").length());
+		assertFalse(items.hasNext());
+	}
+
+	public void testNotAnArray() throws IOException {
+		assertMalformed(reader("{\"a\":1}"));
+		assertMalformed(reader("[1, 2]"));
+		assertMalformed(reader("[{\"a\":1} {\"a\":2}]"));
+	}
+
+	public void testTruncated() throws IOException {
+		assertMalformed(reader(""));
+		assertMalformed(reader("["));
+		assertMalformed(reader("[{\"a\":1}"));
+		assertMalformed(reader("[{\"a\":1},"));
+		assertMalformed(reader("[{\"a\":[1,2"));
+		assertMalformed(reader("[{\"a\":\"b"));
+		assertMalformed(reader("[{\"a\":\"b\\"));
+	}
+
+	/**
+	 * Reads all the items, expecting the stream to be found malformed before the end.
+	 *
+	 * @param items
+	 * @throws IOException
+	 */
+	private void assertMalformed(JSONArrayStreamReader items) throws IOException {
+		try {
+			while (items.hasNext()) {
+				items.next();
+			}
+			fail("expected a JSONException");
+		} catch (final JSONException e) {
+			// expected
+		}
+	}
+}
@@ -19,6 +19,7 @@ package edu.mit.mobile.android.locast.test;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import android.content.ContentResolver;
@@ -26,13 +27,21 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.location.Location;
 import android.net.Uri;
 import android.test.ProviderTestCase2;
+
+import com.beoui.geocell.model.BoundingBox;
+import com.google.android.maps.GeoPoint;
+
 import edu.mit.mobile.android.locast.data.Cast;
 import edu.mit.mobile.android.locast.data.Comment;
+import edu.mit.mobile.android.locast.data.Event;
 import edu.mit.mobile.android.locast.data.Itinerary;
+import edu.mit.mobile.android.locast.data.Locatable;
 import edu.mit.mobile.android.locast.data.MediaProvider;
 import edu.mit.mobile.android.locast.data.Project;
+import edu.mit.mobile.android.locast.data.QueryPlanChecker;
 import edu.mit.mobile.android.locast.data.Tag;
 import edu.mit.mobile.android.locast.data.TaggableItem;
 
@@ -211,6 +220,151 @@ public class MediaProviderTest extends ProviderTestCase2<MediaProvider> {
 		testCastCRUD(Cast.CONTENT_URI);
 	}
 
+	public void testTagCounts(){
+		final Uri cast1 = createCast(Cast.CONTENT_URI);
+		final Uri cast2 = createCast(Cast.CONTENT_URI);
+		final Uri itinerary = createItinerary();
+		TaggableItem.putTags(mCr, cast2, Arrays.asList("robots"));
+
+		assertEquals(Arrays.asList("robots", "kittens"), TaggableItem.getPopularTags(mCr));
+
+		Cursor c = mCr.query(TaggableItem.getTagUri(Cast.CONTENT_URI, T_TAGS), Cast.PROJECTION, null, null, null);
+		assertEquals(1, c.getCount());
+		c.close();
+
+		// deleting an item removes its tags
+		assertEquals(1, mCr.delete(cast1, null, null));
+		c = mCr.query(Tag.POPULAR_URI, Tag.POPULAR_PROJECTION, null, null, null);
+		assertTrue(c.moveToFirst());
+		assertEquals("robots", c.getString(c.getColumnIndex(Tag._NAME)));
+		assertEquals(2, c.getInt(c.getColumnIndex(Tag._ITEM_COUNT)));
+		assertTrue(c.moveToNext());
+		assertEquals(1, c.getInt(c.getColumnIndex(Tag._ITEM_COUNT)));
+		c.close();
+
+		mCr.delete(cast2, null, null);
+		mCr.delete(itinerary, null, null);
+		assertTrue(TaggableItem.getPopularTags(mCr).isEmpty());
+	}
+
+	public void testSearch(){
+		final Uri cast = createCast(Cast.CONTENT_URI);
+		final String[] projection = {Cast._ID, TaggableItem._SEARCH_SNIPPET};
+
+		// title, prefix of the description, tag
+		for (final String query : new String[]{"Title", "descr", "kittens"}){
+			final Cursor c = mCr.query(TaggableItem.getSearchUri(Cast.CONTENT_URI, query), projection, null, null, null);
+			assertEquals(query, 1, c.getCount());
+			assertTrue(c.moveToFirst());
+			assertEquals(ContentUris.parseId(cast), c.getLong(c.getColumnIndex(Cast._ID)));
+			assertNotNull(c.getString(c.getColumnIndex(TaggableItem._SEARCH_SNIPPET)));
+			c.close();
+		}
+
+		// all the words need to match and the syntax is ignored
+		Cursor c = mCr.query(TaggableItem.getSearchUri(Cast.CONTENT_URI, "title OR lasers"), projection, null, null, null);
+		assertEquals(0, c.getCount());
+		c.close();
+
+		// changes are indexed
+		TaggableItem.putTags(mCr, cast, Arrays.asList(T_TAG_TO_ADD1));
+		c = mCr.query(TaggableItem.getSearchUri(Cast.CONTENT_URI, "title lasers"), projection, null, null, null);
+		assertEquals(1, c.getCount());
+		c.close();
+
+		assertEquals(1, mCr.delete(cast, null, null));
+		c = mCr.query(TaggableItem.getSearchUri(Cast.CONTENT_URI, "title"), projection, null, null, null);
+		assertEquals(0, c.getCount());
+		c.close();
+	}
+
+	private Uri createCastAt(double lat, double lon){
+		final ContentValues cv = new ContentValues();
+		cv.put(Cast._TITLE, T_TITLE);
+		Locatable.toContentValues(cv, new GeoPoint((int)(lat * 1E6), (int)(lon * 1E6)));
+		return mCr.insert(Cast.CONTENT_URI, cv);
+	}
+
+	private Set<Uri> queryIds(Uri dir){
+		final Set<Uri> items = new HashSet<Uri>();
+		final Cursor c = mCr.query(dir, new String[]{Cast._ID}, null, null, null);
+		try {
+			while (c.moveToNext()){
+				items.add(ContentUris.withAppendedId(Cast.CONTENT_URI, c.getLong(0)));
+			}
+		}finally{
+			c.close();
+		}
+		return items;
+	}
+
+	public void testBoundingBoxAcrossAntimeridian(){
+		final Uri east = createCastAt(1, 179.9);
+		final Uri west = createCastAt(-1, -179.9);
+		final Uri elsewhere = createCastAt(0, 0);
+
+		assertEquals(new HashSet<Uri>(Arrays.asList(east, west)),
+				queryIds(Locatable.toBoundingBoxSearchUri(Cast.CONTENT_URI, new BoundingBox(10, -179, -10, 179))));
+		assertEquals(new HashSet<Uri>(Arrays.asList(elsewhere)),
+				queryIds(Locatable.toBoundingBoxSearchUri(Cast.CONTENT_URI, new BoundingBox(10, 10, -10, -10))));
+
+		for (final Uri cast : new Uri[]{east, west, elsewhere}){
+			assertEquals(1, mCr.delete(cast, null, null));
+		}
+	}
+
+	public void testNearestAtAntimeridian(){
+		final Uri near = createCastAt(0.5, 179.99);
+		final Uri nearer = createCastAt(0.5, 179.999);
+
+		final Location location = new Location("test");
+		location.setLatitude(0.5);
+		location.setLongitude(179.995);
+
+		// there are fewer items than requested and no cells to the east, so
+		// this has to move on to coarser cells to finish
+		assertEquals(new HashSet<Uri>(Arrays.asList(near, nearer)),
+				queryIds(Locatable.toNearestSearchUri(Cast.CONTENT_URI, location, 5, 0)));
+
+		assertEquals(1, mCr.delete(near, null, null));
+		assertEquals(1, mCr.delete(nearer, null, null));
+	}
+
+	public void testQueryPlans(){
+		final boolean wasEnabled = QueryPlanChecker.isEnabled();
+		QueryPlanChecker.setEnabled(true);
+		QueryPlanChecker.reset();
+		try {
+			final Uri itinerary = createItinerary();
+			final Uri cast = createCast(Itinerary.getCastsUri(itinerary));
+
+			final Uri[] uris = {
+				cast,
+				Itinerary.getCastsUri(itinerary),
+				Uri.withAppendedPath(cast, Comment.PATH),
+				Uri.withAppendedPath(cast, Tag.PATH),
+				TaggableItem.getTagUri(Cast.CONTENT_URI, T_TAGS),
+				TaggableItem.getSearchUri(Cast.CONTENT_URI, T_TITLE),
+				Tag.getPopularUri(TaggableItem.MAX_POPULAR_TAGS),
+				Itinerary.CONTENT_URI,
+				Cast.CONTENT_URI,
+			};
+			for (final Uri uri : uris){
+				mCr.query(uri, null, null, null, null).close();
+			}
+			mCr.query(Event.CONTENT_URI, Event.PROJECTION, Event._END_DATE + " >= ?",
+					new String[]{String.valueOf(System.currentTimeMillis())}, Event.SORT_ORDER_DEFAULT).close();
+
+			final List<String> unindexed = QueryPlanChecker.getUnindexedQueries();
+			assertTrue(unindexed.toString(), unindexed.isEmpty());
+
+			assertEquals(1, mCr.delete(ContentUris.withAppendedId(Cast.CONTENT_URI, ContentUris.parseId(cast)), null, null));
+			assertEquals(1, mCr.delete(itinerary, null, null));
+		}finally{
+			QueryPlanChecker.setEnabled(wasEnabled);
+		}
+	}
+
 	private void assertTagsEqual(Set<String> expected, Set<String> actual){
 		assertEquals(expected.size(), actual.size());
 
@@ -0,0 +1,270 @@
+package edu.mit.mobile.android.locast.test;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.RenamingDelegatingContext;
+
+import com.google.android.maps.GeoPoint;
+
+import edu.mit.mobile.android.locast.data.Cast;
+import edu.mit.mobile.android.locast.data.Itinerary;
+import edu.mit.mobile.android.locast.data.MediaProvider;
+import edu.mit.mobile.android.locast.data.Tag;
+import edu.mit.mobile.android.locast.data.TaggableItem;
+
+/**
+ * Upgrades databases made by older versions of the app.
+ *
+ * @author <a href="mailto:spomeroy@mit.edu">Steve Pomeroy</a>
+ *
+ */
+public class MediaProviderUpgradeTest extends ProviderTestCase2<MediaProvider> {
+
+	private static final String DB_NAME = "content.db";
+
+	private static final String
+		T_TITLE = "Praia Vermelha",
+		T_PATH = "-22906847,-43172896,-22907000,-43173000";
+
+	private static final Uri
+		U_CAST_ITEM = ContentUris.withAppendedId(Cast.CONTENT_URI, 1),
+		U_ITINERARY_ITEM = ContentUris.withAppendedId(Itinerary.CONTENT_URI, 1);
+
+	public MediaProviderUpgradeTest() {
+		super(MediaProvider.class, MediaProvider.AUTHORITY);
+	}
+
+	private Context mContext;
+	private ContentResolver mCr;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = getMockContext();
+		mCr = getMockContentResolver();
+		mContext.deleteDatabase(DB_NAME);
+	}
+
+	/**
+	 * The schema of version 42, the oldest that's upgraded without losing
+	 * any data.
+	 */
+	private static final String[] SCHEMA_42 = {
+		"CREATE TABLE casts (_id INTEGER PRIMARY KEY,uri TEXT UNIQUE,modified INTEGER,server_modified INTEGER,created INTEGER,"
+			+ "comment_dir_uri TEXT,geocell TEXT,lat REAL,lon REAL,title TEXT,author TEXT,author_uri TEXT,description TEXT,"
+			+ "public_uri TEXT,privacy TEXT,favorited BOOLEAN,draft BOOLEAN,official BOOLEAN,thumbnail_uri TEXT)",
+		"CREATE TABLE comments (_id INTEGER PRIMARY KEY,uri TEXT UNIQUE,modified INTEGER,server_modified INTEGER,created INTEGER,"
+			+ "author TEXT,author_icon TEXT,parentid INTEGER,parentclass TEXT,comment_number TEXT,description TEXT)",
+		"CREATE TABLE tags (_id INTEGER PRIMARY KEY,ref_id INTEGER,ref_class TEXT,name TEXT,"
+			+ "CONSTRAINT tag_unique UNIQUE (ref_id,ref_class,name) ON CONFLICT IGNORE)",
+		"CREATE TABLE castmedia (_id INTEGER PRIMARY KEY,uri TEXT UNIQUE,modified INTEGER,server_modified INTEGER,created INTEGER,"
+			+ "author TEXT,author_uri TEXT,title TEXT,description TEXT,language TEXT,url TEXT,local_uri TEXT,mimetype TEXT,"
+			+ "thumbnail TEXT,local_thumb TEXT,offline BOOLEAN,duration INTEGER)",
+		"CREATE TABLE itineraries (_id INTEGER PRIMARY KEY,uri TEXT UNIQUE,modified INTEGER,server_modified INTEGER,created INTEGER,"
+			+ "title TEXT,author TEXT,author_uri TEXT,description TEXT,privacy TEXT,casts TEXT,path TEXT,casts_count INTEGER,"
+			+ "favorites_count INTEGER,favorited BOOLEAN,thumbnail TEXT,draft BOOLEAN)",
+		"CREATE TABLE events (_id INTEGER PRIMARY KEY,uri TEXT UNIQUE,modified INTEGER,server_modified INTEGER,created INTEGER,"
+			+ "geocell TEXT,lat REAL,lon REAL,title TEXT,author TEXT,author_uri TEXT,description TEXT,start_date INTEGER,"
+			+ "end_date INTEGER,draft BOOLEAN,thumbnail_uri TEXT)",
+		"CREATE TABLE itineraries_casts (_id INTEGER PRIMARY KEY,to_id INTEGER,from_id INTEGER)",
+		"CREATE TABLE casts_castmedia (_id INTEGER PRIMARY KEY,to_id INTEGER,from_id INTEGER)",
+	};
+
+	/**
+	 * Creates the database file, as an older version of the app would have.
+	 *
+	 * @param version
+	 * @param statements the schema and its contents
+	 */
+	private void createDatabase(int version, String[]... statements){
+		final SQLiteDatabase db = mContext.openOrCreateDatabase(DB_NAME, 0, null);
+		try {
+			for (final String[] group : statements){
+				for (final String statement : group){
+					db.execSQL(statement);
+				}
+			}
+			db.setVersion(version);
+		}finally{
+			db.close();
+		}
+	}
+
+	/**
+	 * @param context
+	 * @return the version of the database, along with the type and name of
+	 *         everything in it and the columns of its tables
+	 */
+	private static Set<String> getSchema(Context context){
+		final Set<String> schema = new TreeSet<String>();
+		final SQLiteDatabase db = context.openOrCreateDatabase(DB_NAME, 0, null);
+		try {
+			schema.add("version " + db.getVersion());
+
+			final List<String> tables = new ArrayList<String>();
+			Cursor c = db.rawQuery("SELECT type, name FROM sqlite_master", null);
+			try {
+				while (c.moveToNext()){
+					schema.add(c.getString(0) + " " + c.getString(1));
+					if ("table".equals(c.getString(0))){
+						tables.add(c.getString(1));
+					}
+				}
+			}finally{
+				c.close();
+			}
+
+			for (final String table : tables){
+				c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+				try {
+					while (c.moveToNext()){
+						schema.add("column " + table + "." + c.getString(c.getColumnIndex("name")));
+					}
+				}finally{
+					c.close();
+				}
+			}
+		}finally{
+			db.close();
+		}
+		return schema;
+	}
+
+	/**
+	 * @return the schema of a database that the provider created from scratch
+	 */
+	private Set<String> getFreshSchema(){
+		final Context context = new RenamingDelegatingContext(mContext, "fresh.");
+		context.deleteDatabase(DB_NAME);
+
+		final MediaProvider provider = new MediaProvider();
+		provider.attachInfo(context, null);
+		provider.query(Cast.CONTENT_URI, null, null, null, null).close();
+
+		return getSchema(context);
+	}
+
+	public void testUpgradeFrom42(){
+		createDatabase(42, SCHEMA_42, new String[]{
+			"INSERT INTO casts (_id, uri, title, lat, lon) VALUES (1, '/api/cast/1/', '" + T_TITLE + "', -22.955, -43.165)",
+			"INSERT INTO tags (ref_id, ref_class, name) VALUES (1, 'casts', 'beach')",
+			"INSERT INTO tags (ref_id, ref_class, name) VALUES (1, 'casts', 'music')",
+			// a tag of a cast that's gone
+			"INSERT INTO tags (ref_id, ref_class, name) VALUES (2, 'casts', 'beach')",
+			"INSERT INTO itineraries (_id, uri, title, path) VALUES (1, '/api/itinerary/1/', 'Urca', '" + T_PATH + "')",
+			"INSERT INTO itineraries_casts (to_id, from_id) VALUES (1, 1)",
+		});
+
+		Cursor c = mCr.query(U_CAST_ITEM, new String[]{Cast._TITLE}, null, null, null);
+		try {
+			assertTrue(c.moveToFirst());
+			assertEquals(T_TITLE, c.getString(0));
+		}finally{
+			c.close();
+		}
+
+		assertEquals(new HashSet<String>(Arrays.asList("beach", "music")), TaggableItem.getTags(mCr, U_CAST_ITEM));
+
+		c = mCr.query(TaggableItem.getSearchUri(Cast.CONTENT_URI, "vermelha"), new String[]{Cast._ID}, null, null, null);
+		assertEquals(1, c.getCount());
+		c.close();
+
+		c = mCr.query(U_ITINERARY_ITEM, Itinerary.PROJECTION, null, null, null);
+		try {
+			assertTrue(c.moveToFirst());
+			final List<GeoPoint> path = Itinerary.getPath(c);
+			assertEquals(2, path.size());
+			assertEquals(new GeoPoint(-22906847, -43172896), path.get(0));
+			assertEquals(new GeoPoint(-22907000, -43173000), path.get(1));
+			assertNotNull(Itinerary.getPathLevels(c));
+		}finally{
+			c.close();
+		}
+
+		c = mCr.query(Itinerary.getCastsUri(U_ITINERARY_ITEM), new String[]{Cast._ID}, null, null, null);
+		assertEquals(1, c.getCount());
+		c.close();
+
+		assertEquals(getFreshSchema(), getSchema(mContext));
+	}
+
+	public void testTagsFrom42(){
+		createDatabase(42, SCHEMA_42, new String[]{
+			"INSERT INTO casts (_id, uri, title) VALUES (1, '/api/cast/1/', '" + T_TITLE + "')",
+			"INSERT INTO casts (_id, uri, title) VALUES (3, '/api/cast/3/', '" + T_TITLE + "')",
+			"INSERT INTO tags (ref_id, ref_class, name) VALUES (1, 'casts', 'beach')",
+			"INSERT INTO tags (ref_id, ref_class, name) VALUES (1, 'casts', 'music')",
+			"INSERT INTO tags (ref_id, ref_class, name) VALUES (3, 'casts', 'music')",
+			// tags of casts that are gone aren't counted
+			"INSERT INTO tags (ref_id, ref_class, name) VALUES (2, 'casts', 'beach')",
+			"INSERT INTO tags (ref_id, ref_class, name) VALUES (2, 'casts', 'samba')",
+		});
+
+		Cursor c = mCr.query(Tag.POPULAR_URI, Tag.POPULAR_PROJECTION, null, null, null);
+		try {
+			assertTrue(c.moveToFirst());
+			assertEquals("music", c.getString(c.getColumnIndex(Tag._NAME)));
+			assertEquals(2, c.getInt(c.getColumnIndex(Tag._ITEM_COUNT)));
+			assertTrue(c.moveToNext());
+			assertEquals("beach", c.getString(c.getColumnIndex(Tag._NAME)));
+			assertEquals(1, c.getInt(c.getColumnIndex(Tag._ITEM_COUNT)));
+			assertFalse(c.moveToNext());
+		}finally{
+			c.close();
+		}
+
+		c = mCr.query(TaggableItem.getTagUri(Cast.CONTENT_URI, "music"), Cast.PROJECTION, null, null, null);
+		assertEquals(2, c.getCount());
+		c.close();
+
+		// the triggers work on the migrated tags
+		assertEquals(1, mCr.delete(U_CAST_ITEM, null, null));
+		assertEquals(Arrays.asList("music"), TaggableItem.getPopularTags(mCr));
+	}
+
+	public void testUpgradeFrom41(){
+		createDatabase(41, new String[]{
+			"CREATE TABLE casts (_id INTEGER PRIMARY KEY, uri TEXT, title TEXT)",
+			"CREATE TABLE tags (_id INTEGER PRIMARY KEY, ref_id INTEGER, ref_class TEXT, name TEXT)",
+			"CREATE TABLE itineraries_casts (_id INTEGER PRIMARY KEY, to_id INTEGER, from_id INTEGER)",
+			"INSERT INTO casts (_id, uri, title) VALUES (1, '/api/cast/1/', '" + T_TITLE + "')",
+			"INSERT INTO tags (ref_id, ref_class, name) VALUES (1, 'casts', 'beach')",
+		});
+
+		// the old data is dropped
+		final Cursor c = mCr.query(Cast.CONTENT_URI, new String[]{Cast._ID}, null, null, null);
+		assertEquals(0, c.getCount());
+		c.close();
+
+		assertEquals(getFreshSchema(), getSchema(mContext));
+	}
+}
@@ -0,0 +1,138 @@
+package edu.mit.mobile.android.locast.test;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.http.HttpResponse;
+
+import android.test.AndroidTestCase;
+import edu.mit.mobile.android.locast.net.HttpValidatorStore;
+import edu.mit.mobile.android.locast.net.NetworkClient;
+import edu.mit.mobile.android.utils.StreamUtils;
+
+public class NetworkClientTest extends AndroidTestCase {
+
+	private static final String
+		T_ETAG = "\"abc123\"",
+		T_BODY = "[]";
+
+	private ServerSocket mServerSocket;
+	private Thread mServerThread;
+	private String mBaseUrl;
+
+	private volatile int mRequestCount;
+	private volatile int mConditionalRequestCount;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		new HttpValidatorStore(getContext()).clear();
+
+		mServerSocket = new ServerSocket(0);
+		mBaseUrl = "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+		mServerThread = new Thread(mStandInServer);
+		mServerThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServerSocket.close();
+		mServerThread.join(1000);
+		new HttpValidatorStore(getContext()).clear();
+		super.tearDown();
+	}
+
+	/**
+	 * A minimal HTTP server that always returns the same entity with an ETag and
+	 * responds with a 304 when the request has a matching If-None-Match.
+	 */
+	private final Runnable mStandInServer = new Runnable() {
+		public void run() {
+			while (!mServerSocket.isClosed()) {
+				try {
+					final Socket s = mServerSocket.accept();
+					try {
+						handleRequest(s);
+					} finally {
+						s.close();
+					}
+				} catch (final IOException e) {
+					// socket was closed
+				}
+			}
+		}
+	};
+
+	private void handleRequest(Socket s) throws IOException {
+		final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		boolean matches = false;
+		for (String line = in.readLine(); line != null && line.length() > 0; line = in.readLine()) {
+			if (line.toLowerCase().startsWith("if-none-match:")) {
+				matches = T_ETAG.equals(line.substring(line.indexOf(':') + 1).trim());
+			}
+		}
+		mRequestCount++;
+
+		final StringBuilder res = new StringBuilder();
+		if (matches) {
+			mConditionalRequestCount++;
+			res.append("HTTP/1.1 304 Not Modified\r\n");
+			res.append("ETag: " + T_ETAG + "\r\n");
+			res.append("Connection: close\r\n\r\n");
+		} else {
+			res.append("HTTP/1.1 200 OK\r\n");
+			res.append("ETag: " + T_ETAG + "\r\n");
+			res.append("Content-Type: " + NetworkClient.JSON_MIME_TYPE + "\r\n");
+			res.append("Content-Length: " + T_BODY.length() + "\r\n");
+			res.append("Connection: close\r\n\r\n");
+			res.append(T_BODY);
+		}
+		final OutputStream out = s.getOutputStream();
+		out.write(res.toString().getBytes("UTF-8"));
+		out.flush();
+	}
+
+	public void testConditionalGet() throws Exception {
+		final NetworkClient nc = NetworkClient.getInstance(getContext());
+		final String uri = mBaseUrl + "cast/";
+
+		// first request is unconditional
+		HttpResponse res = nc.getIfModified(uri);
+		assertFalse(NetworkClient.isNotModified(res));
+		assertEquals(T_BODY, StreamUtils.inputStreamToString(res.getEntity().getContent()));
+		res.getEntity().consumeContent();
+
+		// without saving the validators, the request is still unconditional
+		res = nc.getIfModified(uri);
+		assertFalse(NetworkClient.isNotModified(res));
+		res.getEntity().consumeContent();
+		nc.saveValidators(uri, res);
+
+		res = nc.getIfModified(uri);
+		assertTrue(NetworkClient.isNotModified(res));
+
+		assertEquals(3, mRequestCount);
+		assertEquals(1, mConditionalRequestCount);
+	}
+}
@@ -0,0 +1,87 @@
+package edu.mit.mobile.android.locast.test;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import edu.mit.mobile.android.locast.maps.PathSimplifier;
+
+public class PathSimplifierTest extends TestCase {
+
+	public void testEndsAlwaysNeeded() {
+		final int[] levels = PathSimplifier.getMinZoomLevels(new int[] {0, 1000, 2000},
+				new int[] {0, 0, 0}, 3);
+		assertEquals(0, levels[0]);
+		assertEquals(0, levels[2]);
+	}
+
+	public void testCollinearPointsDropped() {
+		final int[] levels = PathSimplifier.getMinZoomLevels(new int[] {0, 1000, 2000, 3000},
+				new int[] {0, 1000, 2000, 3000}, 4);
+		assertEquals(PathSimplifier.MAX_ZOOM_LEVEL, levels[1]);
+		assertEquals(PathSimplifier.MAX_ZOOM_LEVEL, levels[2]);
+	}
+
+	public void testLargerDeviationsAppearSooner() {
+		// a peak of 1 degree and one of about 11m
+		final int[] levels = PathSimplifier.getMinZoomLevels(
+				new int[] {0, 1000000, 0, 100, 0},
+				new int[] {0, 1000000, 2000000, 3000000, 4000000}, 5);
+		assertTrue(levels[1] < levels[3]);
+		assertTrue(levels[1] <= 2);
+		assertTrue(levels[3] >= 13);
+	}
+
+	public void testDroppedPointsWithinTolerance() {
+		final Random random = new Random(42);
+		final int count = 500;
+		final int[] latE6 = new int[count];
+		final int[] lonE6 = new int[count];
+		for (int i = 1; i < count; i++) {
+			latE6[i] = latE6[i - 1] + random.nextInt(2001) - 1000;
+			lonE6[i] = lonE6[i - 1] + random.nextInt(2001) - 1000;
+		}
+		final int[] levels = PathSimplifier.getMinZoomLevels(latE6, lonE6, count);
+
+		for (int zoom = 0; zoom < PathSimplifier.MAX_ZOOM_LEVEL; zoom++) {
+			// the path stays close to the equator, so a pixel is about the
+			// same size in both directions
+			final double tolerance = PathSimplifier.TOLERANCE * 360E6 / 256 / (1 << zoom);
+			int prev = 0;
+			for (int i = 1; i < count; i++) {
+				if (levels[i] > zoom) {
+					continue;
+				}
+				for (int j = prev + 1; j < i; j++) {
+					assertTrue("zoom " + zoom + " point " + j,
+							distance(lonE6[j], latE6[j], lonE6[prev], latE6[prev], lonE6[i], latE6[i]) <= tolerance * 1.01);
+				}
+				prev = i;
+			}
+			assertEquals(count - 1, prev);
+		}
+	}
+
+	private static double distance(double px, double py, double ax, double ay, double bx, double by) {
+		final double dx = bx - ax, dy = by - ay;
+		final double lengthSq = dx * dx + dy * dy;
+		final double t = lengthSq == 0 ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSq));
+		return Math.hypot(px - ax - t * dx, py - ay - t * dy);
+	}
+}
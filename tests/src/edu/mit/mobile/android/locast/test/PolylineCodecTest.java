@@ -0,0 +1,112 @@
+package edu.mit.mobile.android.locast.test;
+/*
+ * Copyright (C) 2011  MIT Mobile Experience Lab
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import edu.mit.mobile.android.locast.data.PolylineCodec;
+
+public class PolylineCodecTest extends TestCase {
+
+	private static void assertRoundTrip(int[] latE6, int[] lonE6) {
+		final byte[] encoded = PolylineCodec.encode(latE6, lonE6, latE6.length);
+		assertEquals(latE6.length, PolylineCodec.getCount(encoded));
+
+		final int[] lat = new int[latE6.length];
+		final int[] lon = new int[lonE6.length];
+		assertEquals(latE6.length, PolylineCodec.decode(encoded, lat, lon));
+		assertTrue(Arrays.equals(latE6, lat));
+		assertTrue(Arrays.equals(lonE6, lon));
+	}
+
+	public void testRoundTrip() {
+		// Rio, which is entirely negative
+		assertRoundTrip(new int[] {-22906847, -22907000, -22906500},
+				new int[] {-43172896, -43173000, -43172000});
+	}
+
+	public void testLargeDeltas() {
+		assertRoundTrip(new int[] {-90000000, 90000000, -90000000, 0},
+				new int[] {-180000000, 180000000, -180000000, 0});
+		assertRoundTrip(new int[] {Integer.MIN_VALUE, Integer.MAX_VALUE},
+				new int[] {Integer.MAX_VALUE, Integer.MIN_VALUE});
+	}
+
+	public void testEmpty() {
+		assertRoundTrip(new int[0], new int[0]);
+		assertEquals(0, PolylineCodec.getCount(null));
+		assertEquals(0, PolylineCodec.decode(null, new int[0], new int[0]));
+		assertEquals(0, PolylineCodec.getCount(new byte[0]));
+	}
+
+	public void testSmallDeltasAreCompact() {
+		final int count = 100;
+		final int[] latE6 = new int[count];
+		final int[] lonE6 = new int[count];
+		for (int i = 0; i < count; i++) {
+			latE6[i] = -22906847 + i * 50;
+			lonE6[i] = -43172896 - i * 50;
+		}
+		// the first point takes up to 10 bytes, the rest 2 each
+		assertTrue(PolylineCodec.encode(latE6, lonE6, count).length <= 2 + 10 + (count - 1) * 4);
+	}
+
+	public void testEncodeText() {
+		final byte[] encoded = PolylineCodec.encodeText("-22906847,-43172896,-22907000,-43173000");
+		final int[] lat = new int[2];
+		final int[] lon = new int[2];
+		assertEquals(2, PolylineCodec.decode(encoded, lat, lon));
+		assertTrue(Arrays.equals(new int[] {-22906847, -22907000}, lat));
+		assertTrue(Arrays.equals(new int[] {-43172896, -43173000}, lon));
+
+		assertEquals(0, PolylineCodec.getCount(PolylineCodec.encodeText("")));
+	}
+
+	public void testUnknownVersion() {
+		final byte[] encoded = PolylineCodec.encode(new int[] {1}, new int[] {1}, 1);
+		encoded[0] = PolylineCodec.FORMAT_VERSION + 1;
+		try {
+			PolylineCodec.getCount(encoded);
+			fail("expected an IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			PolylineCodec.decode(encoded, new int[1], new int[1]);
+			fail("expected an IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testTruncated() {
+		final byte[] encoded = PolylineCodec.encode(new int[] {-22906847, -22907000},
+				new int[] {-43172896, -43173000}, 2);
+		for (int len = 1; len < encoded.length; len++) {
+			final byte[] truncated = new byte[len];
+			System.arraycopy(encoded, 0, truncated, 0, len);
+			try {
+				PolylineCodec.decode(truncated, new int[2], new int[2]);
+				fail("expected an IllegalArgumentException decoding " + len + " bytes");
+			} catch (final IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}